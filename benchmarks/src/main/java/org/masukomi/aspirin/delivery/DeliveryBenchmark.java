@@ -0,0 +1,106 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.dns.DnsResolver;
+import org.masukomi.aspirin.listener.AspirinListener;
+import org.masukomi.aspirin.listener.ResultState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>End-to-end benchmark of delivery: messages are added to Aspirin, then
+ * dispatched by the {@link DeliveryManager} and sent to an in-process
+ * {@link SmtpSink}. An operation is a delivered message.</p>
+ *
+ * <p>MX record of the recipient domain is put into the DNS cache, so there
+ * is no DNS lookup.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class DeliveryBenchmark {
+	
+	private static final int BATCH_SIZE = 1000;
+	private static final String RECIPIENT_DOMAIN = "sink.example.com";
+	
+	@Param({"3", "20"})
+	public int threads;
+	
+	private SmtpSink smtpSink;
+	private volatile CountDownLatch batchLatch;
+	private final AtomicLong failedCount = new AtomicLong();
+	private AspirinListener listener = new AspirinListener() {
+		@Override
+		public void delivered(String mailId, String recipient, ResultState state, String resultContent) {
+			if( state == ResultState.FAILED )
+				failedCount.incrementAndGet();
+			if( state == ResultState.SENT || state == ResultState.FAILED )
+				batchLatch.countDown();
+		}
+	};
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		smtpSink = new SmtpSink();
+		Aspirin.getConfiguration().setDeliveryThreadsActiveMax(threads);
+		Aspirin.getConfiguration().setDeliveryThreadsIdleMax(threads);
+		Aspirin.getConfiguration().setDeliveryBounceOnFailure(false);
+		Aspirin.getConfiguration().setDeliveryDomainActiveMax(threads);
+		DnsResolver.getCache().put(RECIPIENT_DOMAIN, Collections.singletonList(new URLName("smtp://127.0.0.1:"+smtpSink.getPort())), TimeUnit.DAYS.toMillis(1));
+		Aspirin.addListener(listener);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Aspirin.removeListener(listener);
+		Aspirin.shutdown();
+		smtpSink.close();
+		if( 0 < failedCount.get() )
+			System.err.println("DeliveryBenchmark: "+failedCount.get()+" deliveries failed.");
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void deliver() throws Exception {
+		batchLatch = new CountDownLatch(BATCH_SIZE);
+		for( int i = 0; i < BATCH_SIZE; i++ )
+		{
+			MimeMessage msg = Aspirin.createNewMimeMessage();
+			msg.setFrom(new InternetAddress("sender@example.com"));
+			msg.setRecipient(RecipientType.TO, new InternetAddress("user"+i+"@"+RECIPIENT_DOMAIN));
+			msg.setSubject("Benchmark message");
+			msg.setText("Benchmark message body.\r\n");
+			Aspirin.add(msg);
+		}
+		batchLatch.await();
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.masukomi.aspirin.delivery;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>In-process SMTP server which accepts every message and throws it away.
+ * It understands only the commands used by JavaMail SMTP transport.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class SmtpSink implements Runnable {
+	
+	private final ServerSocket serverSocket;
+	private final AtomicLong messageCount = new AtomicLong();
+	private volatile boolean running = true;
+	
+	public SmtpSink() throws IOException {
+		serverSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+		Thread acceptThread = new Thread(this, "SmtpSink-Accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+	
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+	}
+	
+	@Override
+	public void run() {
+		while( running )
+		{
+			try {
+				final Socket socket = serverSocket.accept();
+				Thread sessionThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						handle(socket);
+					}
+				}, "SmtpSink-Session");
+				sessionThread.setDaemon(true);
+				sessionThread.start();
+			} catch (IOException ioe) {
+				// Server socket is closed
+			}
+		}
+	}
+	
+	private void handle(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			OutputStream out = socket.getOutputStream();
+			reply(out, "220 localhost SmtpSink");
+			String line;
+			while( (line = in.readLine()) != null )
+			{
+				String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+				if( command.equals("EHLO") )
+					reply(out, "250-localhost\r\n250 8BITMIME");
+				else
+				if( command.equals("DATA") )
+				{
+					reply(out, "354 End data with <CR><LF>.<CR><LF>");
+					while( (line = in.readLine()) != null && !line.equals(".") )
+						;
+					messageCount.incrementAndGet();
+					reply(out, "250 OK");
+				}
+				else
+				if( command.equals("QUIT") )
+				{
+					reply(out, "221 Bye");
+					break;
+				}
+				else
+					// HELO, MAIL, RCPT, RSET, NOOP
+					reply(out, "250 OK");
+			}
+		} catch (IOException ioe) {
+			// Connection closed by client
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				// Nothing to do
+			}
+		}
+	}
+	
+	private void reply(OutputStream out, String response) throws IOException {
+		out.write((response+"\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.masukomi.aspirin.AspirinInternal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmark of {@link FileMailStore} with MIME messages of typical sizes:
+ * a short text mail, a HTML newsletter, and a mail with an attachment.</p>
+ *
+ * <p>Messages are written to a fixed set of mail IDs, so disk usage does not
+ * grow while the benchmark is running. Stored messages are held only by weak
+ * references, so after the garbage collection in setup every read parses the
+ * message from its file.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FileMailStoreBenchmark {
+	
+	private static final int MAIL_COUNT = 100;
+	
+	/** Size of message content in bytes. */
+	@Param({"2048", "65536", "1048576"})
+	public int messageSize;
+	
+	private File rootDir;
+	private FileMailStore mailStore;
+	private MimeMessage message;
+	private int setCounter = 0;
+	private int getCounter = 0;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		rootDir = File.createTempFile("aspirin-benchmark", "");
+		rootDir.delete();
+		rootDir.mkdirs();
+		mailStore = new FileMailStore();
+		mailStore.setRootDir(rootDir);
+		mailStore.setSubDirCount(1);
+		mailStore.init();
+		message = createMessage(messageSize);
+		for( int i = 0; i < MAIL_COUNT; i++ )
+			mailStore.set("mail-"+i, createMessage(messageSize));
+		System.gc();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for( int i = 0; i < MAIL_COUNT; i++ )
+			mailStore.remove("mail-"+i);
+		for( File subDir : rootDir.listFiles() )
+			subDir.delete();
+		rootDir.delete();
+	}
+	
+	@Benchmark
+	public void set() {
+		mailStore.set("mail-"+(setCounter++ % MAIL_COUNT), message);
+	}
+	
+	@Benchmark
+	public MimeMessage get() {
+		return mailStore.get("mail-"+(getCounter++ % MAIL_COUNT));
+	}
+	
+	/**
+	 * Small messages are plain text. Larger messages have a HTML body and the
+	 * rest of the size as a binary attachment, which is base64 encoded.
+	 */
+	private static MimeMessage createMessage(int size) throws Exception {
+		MimeMessage msg = AspirinInternal.createNewMimeMessage();
+		msg.setFrom(new InternetAddress("sender@example.com"));
+		msg.setRecipient(RecipientType.TO, new InternetAddress("recipient@example.com"));
+		msg.setSubject("Benchmark message of "+size+" bytes");
+		Random rand = new Random(size);
+		if( size <= 4096 )
+		{
+			msg.setText(createText(rand, size));
+		}
+		else
+		{
+			int htmlSize = Math.min(size, 32768);
+			MimeBodyPart htmlPart = new MimeBodyPart();
+			htmlPart.setContent("<html><body><p>"+createText(rand, htmlSize)+"</p></body></html>", "text/html; charset=UTF-8");
+			MimeMultipart multipart = new MimeMultipart();
+			multipart.addBodyPart(htmlPart);
+			if( htmlSize < size )
+			{
+				byte[] attachment = new byte[size - htmlSize];
+				rand.nextBytes(attachment);
+				MimeBodyPart attachmentPart = new MimeBodyPart();
+				attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+				attachmentPart.setFileName("attachment.bin");
+				multipart.addBodyPart(attachmentPart);
+			}
+			msg.setContent(multipart);
+		}
+		msg.saveChanges();
+		return msg;
+	}
+	
+	private static String createText(Random rand, int size) {
+		StringBuilder sb = new StringBuilder(size);
+		while( sb.length() < size )
+		{
+			sb.append((char)('a' + rand.nextInt(26)));
+			if( rand.nextInt(8) == 0 )
+				sb.append(' ');
+			if( rand.nextInt(80) == 0 )
+				sb.append("\r\n");
+		}
+		return sb.toString();
+	}
+
+}
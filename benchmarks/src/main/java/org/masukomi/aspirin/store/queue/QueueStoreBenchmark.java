@@ -0,0 +1,115 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.AspirinInternal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmark of the hot paths of {@link QueueStore} implementations: adding
+ * new items, and claiming an item with storing its sending result.</p>
+ *
+ * <p>The store is filled with the given count of queued items before the
+ * measurement. Attempt delay is zero and attempt count is unlimited, so a
+ * requeued item is sendable again in the next millisecond, and the queue size
+ * is stable while claiming.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class QueueStoreBenchmark {
+	
+	private static final int RECIPIENTS_PER_FILL_MAIL = 1000;
+	
+	@Param({"10000", "100000", "1000000"})
+	public int size;
+	
+	@Param({"simple", "compact", "sqlite"})
+	public String store;
+	
+	private QueueStore queueStore;
+	private File sqliteDbFile;
+	private long mailCounter = 0;
+	private List<InternetAddress> benchmarkRecipients;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(Integer.MAX_VALUE);
+		if( "sqlite".equals(store) )
+		{
+			sqliteDbFile = File.createTempFile("aspirin-benchmark", ".db");
+			queueStore = new SqliteQueueStore(sqliteDbFile.getAbsolutePath());
+		}
+		else
+		if( "compact".equals(store) )
+			queueStore = new CompactQueueStore();
+		else
+			queueStore = new SimpleQueueStore();
+		queueStore.init();
+		/*
+		 * Fill mails have a lot of recipients, so the SQLite store fills in a
+		 * transaction per mail.
+		 */
+		for( int filled = 0; filled < size; filled += RECIPIENTS_PER_FILL_MAIL )
+		{
+			List<InternetAddress> recipients = new ArrayList<InternetAddress>(RECIPIENTS_PER_FILL_MAIL);
+			for( int i = 0; i < RECIPIENTS_PER_FILL_MAIL && filled + i < size; i++ )
+				recipients.add(new InternetAddress("user"+i+"@domain"+(filled + i) % 100+".example.com"));
+			queueStore.add("fill-"+filled, -1L, recipients);
+		}
+		benchmarkRecipients = Collections.singletonList(new InternetAddress("user@benchmark.example.com"));
+		// Initial items have to be sendable
+		Thread.sleep(2);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		if( queueStore instanceof Closeable )
+			((Closeable)queueStore).close();
+		if( sqliteDbFile != null )
+			sqliteDbFile.delete();
+	}
+	
+	@Benchmark
+	public void add() throws Exception {
+		queueStore.add("mail-"+(mailCounter++), -1L, benchmarkRecipients);
+	}
+	
+	@Benchmark
+	public QueueInfo nextAndSetSendingResult() {
+		QueueInfo qi = queueStore.next();
+		if( qi != null )
+		{
+			qi.setState(DeliveryState.QUEUED);
+			queueStore.setSendingResult(qi);
+		}
+		return qi;
+	}
+
+}
@@ -1,11 +1,15 @@
 package org.masukomi.aspirin;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.config.Configuration;
+import org.masukomi.aspirin.delivery.MailFuture;
 import org.masukomi.aspirin.listener.AspirinListener;
 import org.masukomi.aspirin.store.mail.FileMailStore;
 import org.masukomi.aspirin.store.mail.MailStore;
@@ -38,7 +42,9 @@ import org.masukomi.aspirin.store.queue.QueueStore;
  * object.</p>
  * 
  * <p><b>Hint:</b> If you need a Quality-of-Service mail sending, use
- * {@link FileMailStore} and additional <b>SqliteQueueStore</b>, they could 
+ * {@link FileMailStore} or {@link org.masukomi.aspirin.store.mail.SegmentMailStore} 
+ * and additional <b>SqliteQueueStore</b> or 
+ * {@link org.masukomi.aspirin.store.queue.WalQueueStore}, they could 
  * preserve emails in queue between runs or on Java failure.</p>
  * 
  * @author Laszlo Solova
@@ -79,6 +85,82 @@ public class Aspirin {
 		AspirinInternal.add(msg, expiry);
 	}
 	
+	/**
+	 * Add MimeMessage to deliver it asynchronously. The message is stored 
+	 * by a background thread, so the caller does not wait for writing the 
+	 * message to the stores. The message should not be changed after it is 
+	 * added.
+	 * @param msg MimeMessage to deliver.
+	 * @return Future of storing the message. Its {@link MailFuture#getDelivery()} 
+	 * future is done when the message is delivered to all recipients.
+	 * @throws MessagingException If headers of message could not be read.
+	 */
+	public static MailFuture addAsync(MimeMessage msg) throws MessagingException {
+		return AspirinInternal.addAsync(msg, -1);
+	}
+	
+	/**
+	 * Add MimeMessage to delivery asynchronously.
+	 * @param msg MimeMessage
+	 * @param expiry Expiration of this email in milliseconds from now.
+	 * @return Future of storing and of final delivery.
+	 * @throws MessagingException If headers of message could not be read.
+	 * @see #addAsync(MimeMessage)
+	 */
+	public static MailFuture addAsync(MimeMessage msg, long expiry) throws MessagingException {
+		return AspirinInternal.addAsync(msg, expiry);
+	}
+	
+	/**
+	 * Add more MimeMessages to deliver them. Messages are stored together, 
+	 * which is much cheaper than adding them one by one. Every message is 
+	 * added or none of them.
+	 * @param msgs MimeMessages to deliver.
+	 * @return Futures of messages in the order of messages, they are done. 
+	 * Their {@link MailFuture#getDelivery()} futures are done when messages 
+	 * are delivered to all recipients.
+	 * @throws MessagingException If messages could not be added, then none 
+	 * of them is added.
+	 */
+	public static List<MailFuture> addAll(Collection<MimeMessage> msgs) throws MessagingException {
+		return AspirinInternal.addAll(msgs, true);
+	}
+	
+	/**
+	 * Add more MimeMessages to deliver them.
+	 * @param msgs MimeMessages to deliver.
+	 * @param allOrNothing If true, then every message is added or none of 
+	 * them, and the failure is thrown. Otherwise the result of every message 
+	 * is given by its future.
+	 * @return Futures of messages in the order of messages, they are done.
+	 * @throws MessagingException If messages could not be added in 
+	 * all-or-nothing mode.
+	 * @see #addAll(Collection)
+	 */
+	public static List<MailFuture> addAll(Collection<MimeMessage> msgs, boolean allOrNothing) throws MessagingException {
+		return AspirinInternal.addAll(msgs, allOrNothing);
+	}
+	
+	/**
+	 * Add a campaign: one template MimeMessage delivered to many recipients. 
+	 * The template is stored once, and every recipient gets its own message 
+	 * when it is sent. Its To header is the recipient, <code>${name}</code> 
+	 * tokens in headers and in the body of template are replaced by the 
+	 * merge variables of recipient. The <code>${recipient}</code> token is 
+	 * replaced by the recipient address, if there is no such variable. The 
+	 * body is merged without decoding, so non-ASCII values should be used 
+	 * only in 8bit UTF-8 parts, see 
+	 * {@link org.masukomi.aspirin.store.mail.MergedMimeMessage}.
+	 * @param template The template MimeMessage.
+	 * @param recipientVariables Merge variables by recipient addresses, the 
+	 * variables could be null. Variables with null value are not defined.
+	 * @return Future of final delivery to all recipients, storing is done.
+	 * @throws MessagingException If the campaign could not be added.
+	 */
+	public static MailFuture addCampaign(MimeMessage template, Map<String, Map<String, String>> recipientVariables) throws MessagingException {
+		return AspirinInternal.addCampaign(template, recipientVariables);
+	}
+	
 	/**
 	 * Add mail delivery status listener.
 	 * @param listener AspirinListener object
@@ -1,22 +1,22 @@
 package org.masukomi.aspirin;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
-import javax.mail.Address;
-import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMessage.RecipientType;
 
 import org.masukomi.aspirin.config.Configuration;
 import org.masukomi.aspirin.delivery.DeliveryManager;
+import org.masukomi.aspirin.delivery.MailFuture;
 import org.masukomi.aspirin.listener.AspirinListener;
 import org.masukomi.aspirin.listener.ListenerManager;
+import org.masukomi.aspirin.store.mail.MessageHeaders;
 import org.slf4j.Logger;
 
 /**
@@ -81,6 +81,51 @@ public class AspirinInternal {
 		add(msg);
 	}
 	
+	/**
+	 * Add MimeMessage to delivery asynchronously.
+	 * @param msg MimeMessage
+	 * @param expiry Expiration of this email in milliseconds from now.
+	 * @return Future of storing and of final delivery.
+	 * @throws MessagingException If headers of message could not be read.
+	 */
+	public static MailFuture addAsync(MimeMessage msg, long expiry) throws MessagingException {
+		if( 0 < expiry )
+			setExpiry(msg, expiry);
+		if( !deliveryManager.isAlive() )
+			deliveryManager.start();
+		return deliveryManager.addAsync(msg);
+	}
+	
+	/**
+	 * Add more MimeMessages to delivery together.
+	 * @param msgs MimeMessages to deliver.
+	 * @param allOrNothing If true, then every message is added or none of 
+	 * them. Otherwise every message has its own result.
+	 * @return Futures of messages in the order of messages, they are done.
+	 * @throws MessagingException If messages could not be added in 
+	 * all-or-nothing mode.
+	 */
+	public static List<MailFuture> addAll(Collection<MimeMessage> msgs, boolean allOrNothing) throws MessagingException {
+		if( !deliveryManager.isAlive() )
+			deliveryManager.start();
+		return deliveryManager.addAll(msgs, allOrNothing);
+	}
+	
+	/**
+	 * Add a campaign to delivery. The template is stored once, and every 
+	 * recipient gets its own message rendered from the template with its 
+	 * merge variables.
+	 * @param template The template MimeMessage.
+	 * @param recipientVariables Merge variables by recipient addresses.
+	 * @return Future of final delivery, storing is done.
+	 * @throws MessagingException If the campaign could not be added.
+	 */
+	public static MailFuture addCampaign(MimeMessage template, Map<String, Map<String, String>> recipientVariables) throws MessagingException {
+		if( !deliveryManager.isAlive() )
+			deliveryManager.start();
+		return deliveryManager.addCampaign(template, recipientVariables);
+	}
+	
 	/**
 	 * Add mail delivery status listener.
 	 * @param listener AspirinListener object
@@ -132,31 +177,14 @@ public class AspirinInternal {
 		return mMesg;
 	}
 	
+	/**
+	 * Extract recipients from To, Cc and Bcc headers of message.
+	 * @param message The MimeMessage, only its headers are used.
+	 * @return Recipients of message.
+	 * @throws MessagingException If an address header could not be parsed.
+	 */
 	public static Collection<InternetAddress> extractRecipients(MimeMessage message) throws MessagingException {
-		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
-		
-		Address[] addresses;
-		Message.RecipientType[] types = new Message.RecipientType[]{
-				RecipientType.TO,
-				RecipientType.CC,
-				RecipientType.BCC
-		};
-		for( Message.RecipientType recType : types )
-		{
-			addresses = message.getRecipients(recType);
-			if (addresses != null)
-			{
-				for (Address addr : addresses)
-				{
-					try {
-						recipients.add((InternetAddress)addr);
-					} catch (Exception e) {
-						getLogger().warn("Recipient parsing failed.", e);
-					}
-				}
-			}
-		}
-		return recipients;
+		return MessageHeaders.of(message).getRecipients();
 	}
 	
 	/**
@@ -177,15 +205,8 @@ public class AspirinInternal {
 	 * @return An unique mail id associated to this MimeMessage.
 	 */
 	public static String getMailID(MimeMessage message) {
-		String[] headers;
-		try {
-			headers = message.getHeader(Aspirin.HEADER_MAIL_ID);
-			if( headers != null && 0 < headers.length )
-				return headers[0];
-		} catch (MessagingException e) {
-			getLogger().error("MailID header could not be get from MimeMessage.", e);
-		}
-		return message.toString();
+		String mailid = MessageHeaders.of(message).getMailID();
+		return ( mailid != null ) ? mailid : message.toString();
 	}
 	
 	/**
@@ -194,24 +215,7 @@ public class AspirinInternal {
 	 * @return Expiry in milliseconds.
 	 */
 	public static long getExpiry(MimeMessage message) {
-		String headers[];
-		try {
-			headers = message.getHeader(Aspirin.HEADER_EXPIRY);
-			if( headers != null && 0 < headers.length )
-				return expiryFormat.parse(headers[0]).getTime();
-		} catch (Exception e) {
-			getLogger().error("Expiration header could not be get from MimeMessage.", e);
-		}
-		if( configuration.getExpiry() == Configuration.NEVER_EXPIRES )
-			return Long.MAX_VALUE;
-		try {
-			Date sentDate = message.getReceivedDate();
-			if( sentDate != null )
-				return sentDate.getTime()+configuration.getExpiry();
-		} catch (MessagingException e) {
-			getLogger().error("Expiration calculation could not be based on message date.",e);
-		}
-		return System.currentTimeMillis()+configuration.getExpiry();
+		return MessageHeaders.of(message).getExpiry();
 	}
 	
 	public static void setExpiry(MimeMessage message, long expiry) {
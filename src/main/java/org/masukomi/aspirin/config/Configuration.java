@@ -114,6 +114,61 @@ import org.slf4j.LoggerFactory;
  *     JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.connection.idle.timeout</td>
+ *     <td>Integer</td>
+ *     <td>The time in milliseconds while an idle SMTP connection is kept open 
+ *     for reuse. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.messages.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of messages sent through one pooled SMTP connection. 
+ *     Value 1 disables connection reuse. <i>Change by JMX applied 
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.recipients.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of recipients of the same email and the same domain 
+ *     delivered in one SMTP transaction (one DATA with more RCPT TO 
+ *     commands). Default value is 1, it means every recipient is delivered 
+ *     separately. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.size</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of domains stored in the MX record cache. Value 0 
+ *     disables caching. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.negative.ttl</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds while a domain without any mail server is kept 
+ *     in the MX record cache. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.domain.active.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of parallel deliveries to the same recipient domain. 
+ *     Domains are served in round-robin order. Default: 10. <i>Change by JMX 
+ *     applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.domain.rate.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of messages per second sent to the same recipient 
+ *     domain. If it is 0, then the rate is not limited. Default: 0. <i>Change 
+ *     by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.threads.virtual</td>
+ *     <td>Boolean</td>
+ *     <td>If true, every delivery runs on a new virtual thread (if the JVM 
+ *     supports them) and parallel deliveries are limited by recipient domain, 
+ *     not by thread pool size. Default: false. <i>Change by JMX applied 
+ *     immediately, running deliveries are finished on their threads.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.encoding</td>
  *     <td>String</td>
  *     <td>The MIME encoding. <i>Change by JMX applied immediately.</i></td>
@@ -186,11 +241,19 @@ public class Configuration implements ConfigurationMBean {
 		parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_COUNT,		3,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_DELAY,		300000,			Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_BOUNCE_ON_FAILURE,	true,			Parameter.TYPE_BOOLEAN));
+		parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT,	30000,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX,	100,		Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_DEBUG,				false,			Parameter.TYPE_BOOLEAN));
+		parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_ACTIVE_MAX,	10,				Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_RATE_MAX,		0,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY,				-1L,			Parameter.TYPE_LONG));
+		parameterList.add(new Parameter(PARAM_DELIVERY_RECIPIENTS_MAX,		1,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_ACTIVE_MAX,	3,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_IDLE_MAX,	3,				Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_VIRTUAL,		false,			Parameter.TYPE_BOOLEAN));
 		parameterList.add(new Parameter(PARAM_DELIVERY_TIMEOUT,				30000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_SIZE,				10000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_NEGATIVE_TTL,		60000,			Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_ENCODING,						"UTF-8",		Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_HOSTNAME,						"localhost",	Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_LOGGER_NAME,					"Aspirin",		Parameter.TYPE_STRING));
@@ -268,6 +331,46 @@ public class Configuration implements ConfigurationMBean {
 		return (Integer)configParameters.get(PARAM_DELIVERY_TIMEOUT);
 	}
 	
+	@Override
+	public int getDeliveryConnectionIdleTimeout() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+	}
+	
+	@Override
+	public int getDeliveryConnectionMessagesMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+	}
+	
+	@Override
+	public int getDeliveryRecipientsMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_RECIPIENTS_MAX);
+	}
+	
+	@Override
+	public int getDnsCacheSize() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_SIZE);
+	}
+	
+	@Override
+	public int getDnsCacheNegativeTtl() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_NEGATIVE_TTL);
+	}
+	
+	@Override
+	public int getDeliveryDomainActiveMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_DOMAIN_ACTIVE_MAX);
+	}
+	
+	@Override
+	public boolean isDeliveryThreadsVirtual() {
+		return (Boolean)configParameters.get(PARAM_DELIVERY_THREADS_VIRTUAL);
+	}
+	
+	@Override
+	public int getDeliveryDomainRateMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_DOMAIN_RATE_MAX);
+	}
+	
 	@Override
 	public long getExpiry() {
 		return (Long)configParameters.get(PARAM_DELIVERY_EXPIRY);
@@ -377,6 +480,54 @@ public class Configuration implements ConfigurationMBean {
 		notifyListeners(PARAM_DELIVERY_TIMEOUT);
 	}
 	
+	@Override
+	public void setDeliveryConnectionIdleTimeout(int idleTimeout) {
+		configParameters.put(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT, idleTimeout);
+		notifyListeners(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+	}
+	
+	@Override
+	public void setDeliveryConnectionMessagesMax(int messagesMax) {
+		configParameters.put(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX, messagesMax);
+		notifyListeners(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+	}
+	
+	@Override
+	public void setDeliveryRecipientsMax(int recipientsMax) {
+		configParameters.put(PARAM_DELIVERY_RECIPIENTS_MAX, recipientsMax);
+		notifyListeners(PARAM_DELIVERY_RECIPIENTS_MAX);
+	}
+	
+	@Override
+	public void setDnsCacheSize(int cacheSize) {
+		configParameters.put(PARAM_DNS_CACHE_SIZE, cacheSize);
+		notifyListeners(PARAM_DNS_CACHE_SIZE);
+	}
+	
+	@Override
+	public void setDnsCacheNegativeTtl(int negativeTtl) {
+		configParameters.put(PARAM_DNS_CACHE_NEGATIVE_TTL, negativeTtl);
+		notifyListeners(PARAM_DNS_CACHE_NEGATIVE_TTL);
+	}
+	
+	@Override
+	public void setDeliveryDomainActiveMax(int domainActiveMax) {
+		configParameters.put(PARAM_DELIVERY_DOMAIN_ACTIVE_MAX, domainActiveMax);
+		notifyListeners(PARAM_DELIVERY_DOMAIN_ACTIVE_MAX);
+	}
+	
+	@Override
+	public void setDeliveryThreadsVirtual(boolean virtualThreads) {
+		configParameters.put(PARAM_DELIVERY_THREADS_VIRTUAL, virtualThreads);
+		notifyListeners(PARAM_DELIVERY_THREADS_VIRTUAL);
+	}
+	
+	@Override
+	public void setDeliveryDomainRateMax(int domainRateMax) {
+		configParameters.put(PARAM_DELIVERY_DOMAIN_RATE_MAX, domainRateMax);
+		notifyListeners(PARAM_DELIVERY_DOMAIN_RATE_MAX);
+	}
+	
 	@Override
 	public void setExpiry(long expiry) {
 		configParameters.put(PARAM_DELIVERY_EXPIRY, expiry);
@@ -499,6 +650,7 @@ public class Configuration implements ConfigurationMBean {
 	private static final String MAIL_SMTP_CONNECTIONTIMEOUT = "mail.smtp.connectiontimeout";
 	private static final String MAIL_SMTP_HOST = "mail.smtp.host";
 	private static final String MAIL_SMTP_LOCALHOST = "mail.smtp.localhost";
+	private static final String MAIL_SMTP_SENDPARTIAL = "mail.smtp.sendpartial";
 	private static final String MAIL_SMTP_TIMEOUT = "mail.smtp.timeout";
 	
 	private void updateMailSession() {
@@ -509,6 +661,7 @@ public class Configuration implements ConfigurationMBean {
 		mailSessionProps.put(MAIL_MIME_CHARSET, getEncoding()); //The mail.mime.charset System property can be used to specify the default MIME charset to use for encoded words and text parts that don't otherwise specify a charset. Normally, the default MIME charset is derived from the default Java charset, as specified in the file.encoding System property. Most applications will have no need to explicitly set the default MIME charset. In cases where the default MIME charset to be used for mail messages is different than the charset used for files stored on the system, this property should be set.
 		mailSessionProps.put(MAIL_SMTP_CONNECTIONTIMEOUT, getDeliveryTimeout()); //Socket connection timeout value in milliseconds. Default is infinite timeout.
 		mailSessionProps.put(MAIL_SMTP_TIMEOUT, getDeliveryTimeout()); //Socket I/O timeout value in milliseconds. Default is infinite timeout.
+		mailSessionProps.put(MAIL_SMTP_SENDPARTIAL, "true"); //If some recipients of a grouped delivery are rejected, the message is sent to the accepted ones and the rejected ones are reported in a SendFailedException.
 		Session newSession = Session.getInstance(mailSessionProps);
 		
 		// Set communication debug
@@ -2,7 +2,10 @@ package org.masukomi.aspirin.config;
 
 import javax.mail.Transport;
 
+import org.masukomi.aspirin.store.mail.CachingMailStore;
+import org.masukomi.aspirin.store.mail.DeduplicatingMailStore;
 import org.masukomi.aspirin.store.mail.FileMailStore;
+import org.masukomi.aspirin.store.mail.SegmentMailStore;
 import org.masukomi.aspirin.store.mail.SimpleMailStore;
 
 /**
@@ -17,11 +20,19 @@ public interface ConfigurationMBean {
 	public static final String PARAM_DELIVERY_ATTEMPT_DELAY			= "aspirin.delivery.attempt.delay";
 	public static final String PARAM_DELIVERY_ATTEMPT_COUNT			= "aspirin.delivery.attempt.count";
 	public static final String PARAM_DELIVERY_BOUNCE_ON_FAILURE		= "aspirin.delivery.bounce-on-failure";
+	public static final String PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT	= "aspirin.delivery.connection.idle.timeout";
+	public static final String PARAM_DELIVERY_CONNECTION_MESSAGES_MAX	= "aspirin.delivery.connection.messages.max";
 	public static final String PARAM_DELIVERY_DEBUG					= "aspirin.delivery.debug";
+	public static final String PARAM_DELIVERY_DOMAIN_ACTIVE_MAX		= "aspirin.delivery.domain.active.max";
+	public static final String PARAM_DELIVERY_DOMAIN_RATE_MAX		= "aspirin.delivery.domain.rate.max";
 	public static final String PARAM_DELIVERY_EXPIRY				= "aspirin.delivery.expiry";
+	public static final String PARAM_DELIVERY_RECIPIENTS_MAX		= "aspirin.delivery.recipients.max";
 	public static final String PARAM_DELIVERY_THREADS_ACTIVE_MAX	= "aspirin.delivery.threads.active.max";
 	public static final String PARAM_DELIVERY_THREADS_IDLE_MAX		= "aspirin.delivery.threads.idle.max";
+	public static final String PARAM_DELIVERY_THREADS_VIRTUAL		= "aspirin.delivery.threads.virtual";
 	public static final String PARAM_DELIVERY_TIMEOUT				= "aspirin.delivery.timeout";
+	public static final String PARAM_DNS_CACHE_SIZE					= "aspirin.dns.cache.size";
+	public static final String PARAM_DNS_CACHE_NEGATIVE_TTL			= "aspirin.dns.cache.negative.ttl";
 	public static final String PARAM_ENCODING						= "aspirin.encoding";
 	public static final String PARAM_HOSTNAME						= "aspirin.hostname";
 	public static final String PARAM_LOGGER_NAME					= "aspirin.logger.name";
@@ -57,6 +68,41 @@ public interface ConfigurationMBean {
 	 * @return The socket and {@link Transport} timeout in a delivery.
 	 */
 	public int getDeliveryTimeout();
+	/**
+	 * @return The time in milliseconds while an idle SMTP connection is kept 
+	 * open for reuse.
+	 */
+	public int getDeliveryConnectionIdleTimeout();
+	/**
+	 * @return The maximal count of messages sent through one SMTP connection.
+	 */
+	public int getDeliveryConnectionMessagesMax();
+	/**
+	 * @return The maximal count of recipients delivered in one SMTP transaction.
+	 */
+	public int getDeliveryRecipientsMax();
+	/**
+	 * @return The maximal count of domains stored in the MX record cache.
+	 */
+	public int getDnsCacheSize();
+	/**
+	 * @return The time in milliseconds while a domain without mail server is 
+	 * cached.
+	 */
+	public int getDnsCacheNegativeTtl();
+	/**
+	 * @return Maximal count of parallel deliveries to the same recipient domain.
+	 */
+	public int getDeliveryDomainActiveMax();
+	/**
+	 * @return True, if deliveries run on virtual threads.
+	 */
+	public boolean isDeliveryThreadsVirtual();
+	/**
+	 * @return Maximal count of messages per second sent to the same recipient 
+	 * domain. Zero means unlimited.
+	 */
+	public int getDeliveryDomainRateMax();
 	/**
 	 * @return The name of MIME encoding of emails.
 	 */
@@ -139,6 +185,55 @@ public interface ConfigurationMBean {
 	 * @param timeout The value of timeout in milliseconds.
 	 */
 	public void setDeliveryTimeout(int timeout);
+	/**
+	 * Set the time while an idle SMTP connection is kept open in the connection 
+	 * pool. Connections idle for a longer time are closed.
+	 * @param idleTimeout The idle time in milliseconds.
+	 */
+	public void setDeliveryConnectionIdleTimeout(int idleTimeout);
+	/**
+	 * Set the maximal count of messages sent through one SMTP connection. After 
+	 * this count the connection is closed and a new one is opened. Value 1 
+	 * disables connection reuse.
+	 * @param messagesMax The count of messages.
+	 */
+	public void setDeliveryConnectionMessagesMax(int messagesMax);
+	/**
+	 * Set the maximal count of recipients of the same email and the same domain, 
+	 * which are delivered in one SMTP transaction. Value 1 disables grouping of 
+	 * recipients.
+	 * @param recipientsMax The count of recipients.
+	 */
+	public void setDeliveryRecipientsMax(int recipientsMax);
+	/**
+	 * Set the maximal count of domains stored in the MX record cache. Value 0 
+	 * disables caching.
+	 * @param cacheSize The count of cached domains.
+	 */
+	public void setDnsCacheSize(int cacheSize);
+	/**
+	 * Set the time while a domain without mail server is cached. These domains 
+	 * are not resolved again in this time.
+	 * @param negativeTtl The time in milliseconds.
+	 */
+	public void setDnsCacheNegativeTtl(int negativeTtl);
+	/**
+	 * Set the maximal count of parallel deliveries to the same recipient domain.
+	 * @param domainActiveMax Maximal count of parallel deliveries per domain.
+	 */
+	public void setDeliveryDomainActiveMax(int domainActiveMax);
+	/**
+	 * Set deliveries to run on virtual threads. If the JVM does not support 
+	 * virtual threads, then the thread pool is used.
+	 * @param virtualThreads True, if deliveries should run on virtual threads.
+	 */
+	public void setDeliveryThreadsVirtual(boolean virtualThreads);
+	/**
+	 * Set the maximal count of messages per second sent to the same recipient 
+	 * domain.
+	 * @param domainRateMax Messages per second, zero means unlimited.
+	 */
+	public void setDeliveryDomainRateMax(int domainRateMax);
 	/**
 	 * Set the encoding of MIME messages. For example: "UTF-8".
 	 * @param encoding The MIME encoding.
@@ -164,7 +259,9 @@ public interface ConfigurationMBean {
 	public void setLoggerPrefix(String loggerPrefix);
 	/**
 	 * Set the mail store class name, where MimeMessages will be stored. 
-	 * Built-in stores are {@link SimpleMailStore} and {@link FileMailStore}.
+	 * Built-in stores are {@link SimpleMailStore}, {@link FileMailStore}, 
+	 * {@link SegmentMailStore} and {@link DeduplicatingMailStore}. Recently used messages of a store could be 
+	 * cached in memory by {@link CachingMailStore}.
 	 * @param className The implementation class of MailStore.
 	 */
 	public void setMailStoreClassName(String className);
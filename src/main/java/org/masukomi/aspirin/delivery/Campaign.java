@@ -0,0 +1,217 @@
+package org.masukomi.aspirin.delivery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.store.mail.MergedMimeMessage;
+import org.masukomi.aspirin.store.mail.RawMimeMessage;
+
+/**
+ * <p>A campaign is one template message delivered to many recipients, with
+ * merge variables of every recipient. The template is stored once in the
+ * mail store, and the recipients are queued as the recipients of one mail.
+ * The merge variables are stored in the mail store as a text message next to
+ * the template. Messages of recipients are rendered by
+ * {@link MergedMimeMessage} when they are delivered, so the stores and the
+ * memory grow only with the count of recipients.</p>
+ *
+ * <p>Campaigns are marked by their stored messages, not by their mail IDs.
+ * The template has the {@value #HEADER_MERGE_MAIL_ID} header with the mail
+ * ID of merge variables, and the message of merge variables has the
+ * {@value #HEADER_CAMPAIGN_MAIL_ID} header with the mail ID of campaign.
+ * The mail ID of merge variables is the mail ID of campaign with a generated
+ * suffix, so it does not collide with mail IDs of other messages, and the
+ * maintenance could find the campaign of unqueued merge variables without
+ * loading them.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+class Campaign {
+	
+	/** Header of template, its value is the mail ID of merge variables. */
+	static final String HEADER_MERGE_MAIL_ID = "X-Aspirin-Merge-MailID";
+	/** Header of merge variables, its value is the mail ID of campaign. */
+	static final String HEADER_CAMPAIGN_MAIL_ID = "X-Aspirin-Campaign-MailID";
+	
+	private static final String MERGE_MAIL_ID_INFIX = ".merge.";
+	
+	private final String mailid;
+	private final String mergeMailid;
+	/** Merge variables by recipient addresses. */
+	private final Map<String, Map<String, String>> variables;
+	private RawMimeMessage template = null;
+	
+	/**
+	 * @param mailid Mail ID of campaign.
+	 * @param mergeMailid Mail ID of merge variables.
+	 * @param variables Merge variables by recipient addresses.
+	 */
+	Campaign(String mailid, String mergeMailid, Map<String, Map<String, String>> variables) {
+		this.mailid = mailid;
+		this.mergeMailid = mergeMailid;
+		this.variables = variables;
+	}
+	
+	/**
+	 * @return A new mail ID for the merge variables of campaign.
+	 */
+	static String createMergeMailId(String mailid) {
+		return mailid+MERGE_MAIL_ID_INFIX+UUID.randomUUID();
+	}
+	
+	/**
+	 * @return Mail ID of campaign by the mail ID of merge variables, or null
+	 * if the mail ID is not created by {@link #createMergeMailId(String)}.
+	 * The mark of the stored message has to be checked too, other messages
+	 * could have such mail ID.
+	 */
+	static String getCampaignMailId(String mergeMailid) {
+		int infixIndex = mergeMailid.lastIndexOf(MERGE_MAIL_ID_INFIX);
+		return ( infixIndex < 0 ) ? null : mergeMailid.substring(0, infixIndex);
+	}
+	
+	/**
+	 * @return Mail ID of merge variables, if the stored message is the
+	 * template of a campaign, otherwise null.
+	 */
+	static String getMergeMailId(MimeMessage message) throws MessagingException {
+		return message.getHeader(HEADER_MERGE_MAIL_ID, null);
+	}
+	
+	/**
+	 * @return Mail ID of campaign, if the stored message is the merge
+	 * variables of a campaign, otherwise null.
+	 */
+	static String getCampaignMailId(MimeMessage message) throws MessagingException {
+		return message.getHeader(HEADER_CAMPAIGN_MAIL_ID, null);
+	}
+	
+	/**
+	 * Create a campaign of the stored merge variables.
+	 */
+	static Campaign load(String mailid, String mergeMailid, MimeMessage mergeMessage) throws MessagingException, IOException {
+		return new Campaign(mailid, mergeMailid, parseVariables(mergeMessage.getContent().toString()));
+	}
+	
+	String getMailid() {
+		return mailid;
+	}
+	
+	String getMergeMailid() {
+		return mergeMailid;
+	}
+	
+	Collection<InternetAddress> getRecipients() throws MessagingException {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>(variables.size());
+		for( String recipient : variables.keySet() )
+			recipients.add(new InternetAddress(recipient));
+		return recipients;
+	}
+	
+	RawMimeMessage getTemplate() {
+		return template;
+	}
+	
+	/**
+	 * Set the stored template. If it is not a {@link RawMimeMessage}, then it
+	 * is written out once, so messages of recipients could stream its body.
+	 */
+	void setTemplate(Session session, MimeMessage storedTemplate) throws MessagingException, IOException {
+		if( storedTemplate instanceof RawMimeMessage )
+		{
+			template = (RawMimeMessage)storedTemplate;
+			return;
+		}
+		ByteArrayOutputStream templateOut = new ByteArrayOutputStream(8192);
+		storedTemplate.writeTo(templateOut);
+		template = new RawMimeMessage(session, ByteBuffer.wrap(templateOut.toByteArray()));
+	}
+	
+	/**
+	 * @return Message of the recipient, rendered from the template.
+	 */
+	MimeMessage render(Session session, String recipient) throws MessagingException {
+		MimeMessage message = new MergedMimeMessage(session, template, recipient, variables.get(recipient));
+		message.removeHeader(HEADER_MERGE_MAIL_ID);
+		return message;
+	}
+	
+	/**
+	 * @return Text message of merge variables, which is stored next to the
+	 * template.
+	 */
+	MimeMessage createMergeMessage(Session session) throws MessagingException {
+		MimeMessage mergeMessage = new MimeMessage(session);
+		mergeMessage.setHeader(Aspirin.HEADER_MAIL_ID, mergeMailid);
+		mergeMessage.setHeader(HEADER_CAMPAIGN_MAIL_ID, mailid);
+		try {
+			mergeMessage.setText(formatVariables(variables), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return mergeMessage;
+	}
+	
+	/**
+	 * Every recipient is a line, with the recipient and the
+	 * <code>name=value</code> pairs separated by tabs. All of them are URL
+	 * encoded. Variables with null value are not defined, so they are not
+	 * stored.
+	 */
+	static String formatVariables(Map<String, Map<String, String>> variables) throws UnsupportedEncodingException {
+		StringBuilder text = new StringBuilder(variables.size() * 64);
+		for( Map.Entry<String, Map<String, String>> recipientVariables : variables.entrySet() )
+		{
+			text.append(URLEncoder.encode(recipientVariables.getKey(), "UTF-8"));
+			if( recipientVariables.getValue() != null )
+			{
+				for( Map.Entry<String, String> variable : recipientVariables.getValue().entrySet() )
+				{
+					if( variable.getValue() == null )
+						continue;
+					text.append('\t').append(URLEncoder.encode(variable.getKey(), "UTF-8"));
+					text.append('=').append(URLEncoder.encode(variable.getValue(), "UTF-8"));
+				}
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+	
+	static Map<String, Map<String, String>> parseVariables(String text) throws UnsupportedEncodingException {
+		Map<String, Map<String, String>> variables = new LinkedHashMap<String, Map<String, String>>();
+		for( String line : text.split("\r?\n") )
+		{
+			if( line.length() == 0 )
+				continue;
+			String[] fields = line.split("\t");
+			Map<String, String> recipientVariables = ( fields.length == 1 ) ? Collections.<String, String>emptyMap() : new HashMap<String, String>(fields.length * 2);
+			for( int i = 1; i < fields.length; i++ )
+			{
+				int separatorIndex = fields[i].indexOf('=');
+				recipientVariables.put(URLDecoder.decode(fields[i].substring(0, separatorIndex), "UTF-8"), URLDecoder.decode(fields[i].substring(separatorIndex + 1), "UTF-8"));
+			}
+			variables.put(URLDecoder.decode(fields[0], "UTF-8"), recipientVariables);
+		}
+		return variables;
+	}
+
+}
@@ -1,6 +1,8 @@
 package org.masukomi.aspirin.delivery;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.mail.Session;
@@ -16,12 +18,27 @@ import org.masukomi.aspirin.store.queue.QueueInfo;
  *
  */
 public class DeliveryContext {
-	private QueueInfo queueInfo;
+	private List<QueueInfo> queueInfos = Collections.emptyList();
+	/**
+	 * @return The first (or the only) QueueInfo of this delivery.
+	 */
 	public QueueInfo getQueueInfo() {
-		return queueInfo;
+		return queueInfos.isEmpty() ? null : queueInfos.get(0);
 	}
 	public DeliveryContext setQueueInfo(QueueInfo queueInfo) {
-		this.queueInfo = queueInfo;
+		this.queueInfos = Collections.singletonList(queueInfo);
+		return this;
+	}
+	/**
+	 * @return All QueueInfo objects of this delivery. These items have the 
+	 * same mailid and recipient domain, so they are delivered in the same 
+	 * SMTP transaction.
+	 */
+	public List<QueueInfo> getQueueInfos() {
+		return queueInfos;
+	}
+	public DeliveryContext setQueueInfos(List<QueueInfo> queueInfos) {
+		this.queueInfos = queueInfos;
 		return this;
 	}
 	private MimeMessage message;
@@ -62,7 +79,7 @@ public class DeliveryContext {
 		{
 			StringBuilder sb = new StringBuilder();
 			sb.append(getClass().getSimpleName()).append(" [");
-			sb.append("qi=").append(queueInfo);
+			sb.append("qi=").append(queueInfos);
 			sb.append("]; ");
 			ctxToString = sb.toString();
 		}
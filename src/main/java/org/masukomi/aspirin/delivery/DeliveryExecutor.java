@@ -0,0 +1,298 @@
+package org.masukomi.aspirin.delivery;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This is the worker engine of delivery. Deliveries are run as
+ * {@link DeliveryTask} objects by a {@link ThreadPoolExecutor}.</p>
+ *
+ * <p>The count of deliveries in progress is bounded by the maximal count of
+ * active threads. The dispatcher has to get a free slot before it submits a
+ * delivery, so if every thread is busy, then the dispatcher blocks - it does
+ * not claim further items from the queue and it does not have to give back
+ * claimed items.</p>
+ *
+ * <p>The pool keeps at most the maximal count of idle threads alive, other
+ * threads are stopped after they were idle for a minute. Both limits could be
+ * changed while the executor is running.</p>
+ *
+ * <p>In virtual thread mode every delivery runs on a new virtual thread. A
+ * delivery blocked by SMTP I/O does not hold a platform thread, so the count
+ * of parallel deliveries is not limited by pool size, but by the maximal
+ * count of parallel deliveries to the same recipient domain (see
+ * {@link DomainScheduler}). Virtual threads are created by reflection,
+ * because this code is compiled for older JVMs too.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class DeliveryExecutor {
+	
+	private static final long KEEP_ALIVE_TIME = 60000;
+	/**
+	 * Maximal count of deliveries in progress in virtual thread mode. Every 
+	 * delivery in progress keeps its message in memory, so the dispatcher is 
+	 * stopped at this count, even if domain limits allow more deliveries.
+	 */
+	private static final int VIRTUAL_ACTIVE_MAX = 10000;
+	
+	private ExecutorService executor;
+	/** The thread pool in platform thread mode, null in virtual thread mode. */
+	private ThreadPoolExecutor threadPool = null;
+	private ResizableSemaphore slots;
+	private int activeMax;
+	private Object resizeLock = new Object();
+	
+	/**
+	 * Create an executor running deliveries on a pool of platform threads.
+	 *
+	 * @param activeMax Maximal count of deliveries in progress.
+	 * @param idleMax Maximal count of idle threads kept alive.
+	 */
+	public DeliveryExecutor(int activeMax, int idleMax) {
+		this.activeMax = Math.max(1, activeMax);
+		this.slots = new ResizableSemaphore(this.activeMax);
+		this.threadPool = new ThreadPoolExecutor(
+				Math.min(Math.max(0, idleMax), this.activeMax),
+				this.activeMax,
+				KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(),
+				new DeliveryThreadFactory(new ThreadGroup("DeliveryThreadGroup")),
+				new HandOverPolicy()
+		);
+		this.executor = threadPool;
+	}
+	
+	private DeliveryExecutor(ExecutorService virtualThreadExecutor) {
+		this.activeMax = VIRTUAL_ACTIVE_MAX;
+		this.slots = new ResizableSemaphore(this.activeMax);
+		this.executor = virtualThreadExecutor;
+	}
+	
+	/**
+	 * Create an executor running every delivery on a new virtual thread.
+	 *
+	 * @return The new executor or null, if the JVM does not support virtual
+	 * threads.
+	 */
+	public static DeliveryExecutor newVirtualThreadExecutor() {
+		ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+		if( virtualThreadExecutor == null )
+			return null;
+		return new DeliveryExecutor(virtualThreadExecutor);
+	}
+	
+	/**
+	 * It calls <code>Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+	 * .name("DeliveryThread-", 1).factory())</code> by reflection.
+	 *
+	 * @return The executor or null, if virtual threads are not supported.
+	 */
+	static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "DeliveryThread-", 1L);
+			ThreadFactory threadFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			Method executorFactoryMethod = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)executorFactoryMethod.invoke(null, threadFactory);
+		} catch (ClassNotFoundException cnfe) {
+			AspirinInternal.getLogger().debug("DeliveryExecutor: Virtual threads are not supported by this JVM.");
+		} catch (NoSuchMethodException nsme) {
+			AspirinInternal.getLogger().debug("DeliveryExecutor: Virtual threads are not supported by this JVM.");
+		} catch (InvocationTargetException ite) {
+			// For example virtual threads are preview features and not enabled
+			AspirinInternal.getLogger().warn("DeliveryExecutor: Virtual threads could not be created: {}",ite.getCause().getMessage());
+		} catch (Exception e) {
+			AspirinInternal.getLogger().warn("DeliveryExecutor: Virtual threads could not be created.",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * It waits until at least one delivery could be started.
+	 *
+	 * @return The count of deliveries could be started without waiting.
+	 * @throws InterruptedException If the waiting thread was interrupted.
+	 */
+	public int awaitCapacity() throws InterruptedException {
+		slots.acquire();
+		slots.release();
+		return Math.max(1, slots.availablePermits());
+	}
+	
+	/**
+	 * Start delivery of a context. If every delivery slot is in use, then it
+	 * waits until a running delivery is finished.
+	 *
+	 * @param dCtx The context to deliver.
+	 * @throws InterruptedException If the waiting thread was interrupted.
+	 * @throws RejectedExecutionException If the executor is already shut
+	 * down.
+	 */
+	public void execute(DeliveryContext dCtx) throws InterruptedException {
+		execute(new DeliveryTask(dCtx));
+	}
+	
+	/**
+	 * Run a task in a delivery slot. The slot is released after the task is 
+	 * finished.
+	 */
+	void execute(final Runnable task) throws InterruptedException {
+		slots.acquire();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						slots.release();
+					}
+				}
+			});
+		} catch (RuntimeException re) {
+			slots.release();
+			throw re;
+		}
+	}
+	
+	/**
+	 * Change the limits of threads. It is ignored in virtual thread mode.
+	 *
+	 * @param activeMax Maximal count of deliveries in progress.
+	 * @param idleMax Maximal count of idle threads kept alive.
+	 */
+	public void configure(int activeMax, int idleMax) {
+		if( threadPool == null )
+			return;
+		synchronized (resizeLock) {
+			int newActiveMax = Math.max(1, activeMax);
+			int newCoreSize = Math.min(Math.max(0, idleMax), newActiveMax);
+			/*
+			 * The core size could not be greater than the maximal size, so
+			 * the order of changes depends on the direction of resizing.
+			 */
+			if( threadPool.getMaximumPoolSize() <= newActiveMax )
+			{
+				threadPool.setMaximumPoolSize(newActiveMax);
+				threadPool.setCorePoolSize(newCoreSize);
+			}
+			else
+			{
+				threadPool.setCorePoolSize(newCoreSize);
+				threadPool.setMaximumPoolSize(newActiveMax);
+			}
+			if( this.activeMax < newActiveMax )
+				slots.release(newActiveMax - this.activeMax);
+			else
+			if( newActiveMax < this.activeMax )
+				slots.reducePermits(this.activeMax - newActiveMax);
+			this.activeMax = newActiveMax;
+		}
+	}
+	
+	public boolean isVirtual() {
+		return threadPool == null;
+	}
+	
+	public int getActiveCount() {
+		if( threadPool == null )
+			return activeMax - slots.availablePermits();
+		return threadPool.getActiveCount();
+	}
+	
+	public int getPoolSize() {
+		if( threadPool == null )
+			return activeMax - slots.availablePermits();
+		return threadPool.getPoolSize();
+	}
+	
+	/**
+	 * Stop the executor. Running deliveries are finished, new deliveries are
+	 * rejected.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Semaphore which count of permits could be decreased.
+	 */
+	private static class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 5434187453167391066L;
+		
+		ResizableSemaphore(int permits) {
+			super(permits, true);
+		}
+		
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+	
+	/**
+	 * Threads of the executor have the same names as the threads of the
+	 * previous pooled implementation, so logs could be read in the same way.
+	 */
+	private static class DeliveryThreadFactory implements ThreadFactory {
+		private final ThreadGroup threadGroup;
+		private final AtomicInteger threadCounter = new AtomicInteger();
+		
+		DeliveryThreadFactory(ThreadGroup threadGroup) {
+			this.threadGroup = threadGroup;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread dThread = new Thread(threadGroup, r, "DeliveryThread-"+threadCounter.incrementAndGet());
+			AspirinInternal.getLogger().trace("DeliveryExecutor: New thread created: {}",dThread.getName());
+			return dThread;
+		}
+	}
+	
+	/**
+	 * A delivery is submitted only if there is a free slot, but the thread of
+	 * a finished delivery could still be on its way back to the pool. In this
+	 * case the delivery is handed over to the next thread which becomes idle.
+	 */
+	private static class HandOverPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			try {
+				while( !executor.isShutdown() )
+				{
+					if( executor.getQueue().offer(r, 10, TimeUnit.MILLISECONDS) )
+						return;
+					if( executor.getPoolSize() < executor.getMaximumPoolSize() )
+					{
+						executor.execute(r);
+						return;
+					}
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			throw new RejectedExecutionException("Delivery executor is shut down.");
+		}
+	}
+
+}
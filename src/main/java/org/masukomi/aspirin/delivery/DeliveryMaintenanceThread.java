@@ -1,9 +1,16 @@
 package org.masukomi.aspirin.delivery;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import javax.mail.MessagingException;
 
 import org.masukomi.aspirin.AspirinInternal;
 import org.masukomi.aspirin.store.mail.MailStore;
+import org.masukomi.aspirin.store.mail.MessageHeaders;
+import org.masukomi.aspirin.store.mail.RawMailStore;
 import org.masukomi.aspirin.store.queue.QueueStore;
 
 /**
@@ -44,8 +51,12 @@ public class DeliveryMaintenanceThread extends Thread {
 				AspirinInternal.getLogger().debug("Maintenance running: usedMailIds: {}, mailStoreMailIds: {}.",new Object[]{usedMailIds.size(), mailStoreMailIds.size()});
 				if( mailStoreMailIds.removeAll(usedMailIds) )
 				{
+					Set<String> usedMailIdSet = new HashSet<String>(usedMailIds);
 					for( String unusedMailId : mailStoreMailIds )
-						mailStore.remove(unusedMailId);
+					{
+						if( !isUsedMergeMessage(mailStore, unusedMailId, usedMailIdSet) )
+							mailStore.remove(unusedMailId);
+					}
 				}
 			} catch (Exception e) {
 				AspirinInternal.getLogger().error("Maintenance failed.",e);
@@ -53,6 +64,30 @@ public class DeliveryMaintenanceThread extends Thread {
 		}
 	}
 	
+	/**
+	 * Merge variables of campaigns are not queued, they are used while 
+	 * their campaign is used. The campaign is found by the mail ID, and only 
+	 * the headers of these messages are read to check their mark. If the 
+	 * store could not give back the stored headers, the message is kept 
+	 * until its campaign is finished.
+	 */
+	private boolean isUsedMergeMessage(MailStore mailStore, String mailid, Set<String> usedMailIds) {
+		String campaignMailId = Campaign.getCampaignMailId(mailid);
+		if( campaignMailId == null || !usedMailIds.contains(campaignMailId) )
+			return false;
+		if( !(mailStore instanceof RawMailStore) )
+			return true;
+		ByteBuffer rawMessage = ((RawMailStore)mailStore).getRawMessage(mailid);
+		if( rawMessage == null )
+			return false;
+		try {
+			return campaignMailId.equals(MessageHeaders.read(rawMessage).getHeader(Campaign.HEADER_CAMPAIGN_MAIL_ID));
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().error("Maintenance could not read campaign mark. mailid="+mailid,me);
+			return true;
+		}
+	}
+	
 	public void shutdown() {
 		running = false;
 		synchronized (this) {
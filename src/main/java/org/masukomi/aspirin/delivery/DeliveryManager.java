@@ -1,22 +1,34 @@
 package org.masukomi.aspirin.delivery;
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool;
+import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.AspirinInternal;
 import org.masukomi.aspirin.config.Configuration;
 import org.masukomi.aspirin.config.ConfigurationChangeListener;
 import org.masukomi.aspirin.config.ConfigurationMBean;
 import org.masukomi.aspirin.dns.ResolveHost;
+import org.masukomi.aspirin.store.mail.BatchMailStore;
 import org.masukomi.aspirin.store.mail.MailStore;
+import org.masukomi.aspirin.store.mail.MergedMimeMessage;
+import org.masukomi.aspirin.store.mail.MessageHeaders;
+import org.masukomi.aspirin.store.mail.RawMailStore;
+import org.masukomi.aspirin.store.mail.RawMimeMessage;
+import org.masukomi.aspirin.store.queue.BatchQueueStore;
 import org.masukomi.aspirin.store.queue.DeliveryState;
 import org.masukomi.aspirin.store.queue.QueueInfo;
 import org.masukomi.aspirin.store.queue.QueueStore;
@@ -28,36 +40,66 @@ import org.masukomi.aspirin.store.queue.QueueStore;
  *
  */
 public final class DeliveryManager extends Thread implements ConfigurationChangeListener {
+	private static final long MAX_IDLE_WAIT = 60000;
+	/**
+	 * Maximal count of claimed items waiting in the domain scheduler. If 
+	 * every waiting item is limited by its domain, then no more items are 
+	 * claimed until a delivery is finished. A domain holds at most 
+	 * {@link DomainScheduler#DEFAULT_DOMAIN_PENDING_MAX} items of them, so 
+	 * a limited domain could not occupy every place.
+	 */
+	private static final int SCHEDULED_MAX = 1000;
+	/**
+	 * Claimed items over the limit of their domain are given back to the 
+	 * queue, they are sendable again after this delay. Meanwhile items of 
+	 * other domains are claimed.
+	 */
+	private static final long POSTPONE_DELAY = 5000;
+	/**
+	 * Maximal count of asynchronously added mails waiting to be stored. If 
+	 * the ingest pipeline is full, then adding blocks.
+	 */
+	private static final int INGEST_QUEUE_MAX = 10000;
+	/** Maximal count of asynchronously added mails stored together. */
+	private static final int INGEST_BATCH_MAX = 500;
+	
 	private MailStore mailStore;
 	private QueueStore queueStore;
 	private DeliveryMaintenanceThread maintenanceThread;
+	private IngestPipeline ingestPipeline;
+	/** Futures of asynchronously added mails, until their delivery is finished. */
+	private Map<String, List<MailFuture>> deliveryFutures = new HashMap<String, List<MailFuture>>();
+	/** Loaded campaigns, until their delivery is finished. */
+	private Map<String, Campaign> campaigns = new HashMap<String, Campaign>();
+	/**
+	 * Mail IDs of merge variables by mail IDs, null if the mail is not a 
+	 * campaign. They are read from the stored messages on first use, and 
+	 * kept until the delivery is finished. Guarded by campaigns.
+	 */
+	private Map<String, String> mergeMailIds = new HashMap<String, String>();
 	private Object mailingLock = new Object();
-	private ObjectPool deliveryThreadObjectPool = null;
+	/**
+	 * The dispatcher waits on this lock if there is no sendable item. If new 
+	 * item is queued or an item is requeued, the dispatcher is waked up.
+	 */
+	private Object dispatchLock = new Object();
+	private boolean wakeUpRequested = false;
+	private volatile DeliveryExecutor deliveryExecutor = null;
+	private DomainScheduler domainScheduler = null;
 	private boolean running = false;
-	private GenericPoolableDeliveryThreadFactory deliveryThreadObjectFactory = null;
 	private Map<String, DeliveryHandler> deliveryHandlers = new HashMap<String, DeliveryHandler>();
+	private TransportPool transportPool = new TransportPool();
 	
 	public DeliveryManager() {
 		// Set up default objects.
 		this.setName("Aspirin-"+getClass().getSimpleName()+"-"+getId());
 		
-		// Configure pool of DeliveryThread threads
-		GenericObjectPool.Config gopConf = new GenericObjectPool.Config();
-		gopConf.lifo = false;
-		gopConf.maxActive = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
-		gopConf.maxIdle = AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax();
-		gopConf.maxWait = 5000;
-		gopConf.testOnReturn = true;
-		gopConf.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
-		
-		// Create DeliveryThread object factory used in pool
-		deliveryThreadObjectFactory = new GenericPoolableDeliveryThreadFactory();
-		
-		// Create pool
-		deliveryThreadObjectPool = new GenericObjectPool(deliveryThreadObjectFactory,gopConf);
-		
-		// Initialize object factory of pool
-		deliveryThreadObjectFactory.init(new ThreadGroup("DeliveryThreadGroup"),deliveryThreadObjectPool);
+		// Create executor of delivery tasks
+		deliveryExecutor = createDeliveryExecutor();
+		domainScheduler = new DomainScheduler(
+				AspirinInternal.getConfiguration().getDeliveryDomainActiveMax(),
+				AspirinInternal.getConfiguration().getDeliveryDomainRateMax()
+		);
 		
 		// Set up stores and configuration listener 
 		queueStore = AspirinInternal.getConfiguration().getQueueStore();
@@ -69,34 +111,497 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		maintenanceThread = new DeliveryMaintenanceThread();
 		maintenanceThread.start();
 		
+		ingestPipeline = new IngestPipeline(this, INGEST_QUEUE_MAX, INGEST_BATCH_MAX);
+		ingestPipeline.start();
+		
 		// Set up deliveryhandlers
 		// TODO create by configuration
-		deliveryHandlers.put(SendMessage.class.getCanonicalName(), new SendMessage());
+		deliveryHandlers.put(SendMessage.class.getCanonicalName(), new SendMessage(transportPool));
 		deliveryHandlers.put(ResolveHost.class.getCanonicalName(), new ResolveHost());
 		
 		AspirinInternal.getConfiguration().addListener(this);
 	}
 	
+	/**
+	 * Store the message and queue its recipients. Delivery informations are 
+	 * read from headers of message, its content is used only by the store. 
+	 * The message is written without mailingLock, so concurrent callers 
+	 * write and sync their messages together.
+	 */
 	public String add(MimeMessage mimeMessage) throws MessagingException {
-		String mailid = AspirinInternal.getMailID(mimeMessage);
-		long expiry = AspirinInternal.getExpiry(mimeMessage);
-		Collection<InternetAddress> recipients = AspirinInternal.extractRecipients(mimeMessage);
+		MessageHeaders headers = MessageHeaders.of(mimeMessage);
+		String mailid = headers.getMailID();
+		if( mailid == null )
+			mailid = mimeMessage.toString();
+		long expiry = headers.getExpiry();
+		Collection<InternetAddress> recipients = headers.getRecipients();
+		MailStore writtenMailStore;
 		synchronized (mailingLock) {
-			mailStore.set(mailid, mimeMessage);
+			writtenMailStore = mailStore;
+		}
+		writtenMailStore.set(mailid, mimeMessage);
+		synchronized (mailingLock) {
+			// The mail store could be changed by configuration meanwhile
+			if( writtenMailStore != mailStore )
+				mailStore.set(mailid, mimeMessage);
 			queueStore.add(mailid, expiry, recipients);
 		}
+		wakeUp();
 		return mailid;
 	}
 	
+	/**
+	 * Add the message asynchronously. Delivery informations are read from 
+	 * headers in the caller thread, then the message is stored by the ingest 
+	 * pipeline together with other added messages. The message should not be 
+	 * changed after it is added. If the pipeline is full, then this method 
+	 * blocks until there is free space in it.
+	 * 
+	 * @param mimeMessage The message to deliver.
+	 * @return Future of storing and of final delivery.
+	 * @throws MessagingException If headers of message could not be read.
+	 */
+	public MailFuture addAsync(MimeMessage mimeMessage) throws MessagingException {
+		IngestPipeline.IngestItem item = createIngestItem(mimeMessage);
+		try {
+			if( !ingestPipeline.submit(item) )
+				item.future.failed(new RejectedExecutionException("Delivery is shut down."));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			item.future.failed(ie);
+		}
+		return item.future;
+	}
+	
+	/**
+	 * Add more messages together. If the stores support it, then messages 
+	 * are written to the mail store in one batch, and their recipients are 
+	 * queued in one transaction.
+	 * 
+	 * @param mimeMessages The messages to deliver.
+	 * @param allOrNothing If true, then every message is added or none of 
+	 * them, and the failure is thrown. Otherwise every message has its own 
+	 * result. Failures of writing messages are reported only by mail 
+	 * stores, which implement {@link BatchMailStore}. Other stores log 
+	 * their failures, and their messages are queued in both modes.
+	 * @return Futures of messages in the order of messages, they are done 
+	 * already.
+	 * @throws MessagingException If messages could not be added in 
+	 * all-or-nothing mode.
+	 */
+	public List<MailFuture> addAll(Collection<MimeMessage> mimeMessages, boolean allOrNothing) throws MessagingException {
+		List<IngestPipeline.IngestItem> items = new ArrayList<IngestPipeline.IngestItem>(mimeMessages.size());
+		List<MailFuture> futures = new ArrayList<MailFuture>(mimeMessages.size());
+		for( MimeMessage mimeMessage : mimeMessages )
+		{
+			try {
+				IngestPipeline.IngestItem item = createIngestItem(mimeMessage);
+				items.add(item);
+				futures.add(item.future);
+			} catch (MessagingException me) {
+				if( allOrNothing )
+					throw me;
+				MailFuture future = new MailFuture(AspirinInternal.getMailID(mimeMessage));
+				future.failed(me);
+				futures.add(future);
+			}
+		}
+		store(items, allOrNothing);
+		return futures;
+	}
+	
+	/**
+	 * Add a campaign: one template message to many recipients, with merge 
+	 * variables of every recipient. The template and the variables are 
+	 * stored once, and the recipients are queued as recipients of one mail. 
+	 * Messages of recipients are rendered when they are sent, every 
+	 * recipient gets its own message.
+	 *
+	 * @param template The template message. Its To, Cc and Bcc headers are 
+	 * not used, <code>${name}</code> tokens in other headers and in the body 
+	 * are replaced by the variables of recipient. Its parts are re-encoded 
+	 * before it is stored, see {@link MergedMimeMessage#prepareTemplate(MimeMessage)}.
+	 * @param recipientVariables Merge variables by recipient addresses.
+	 * @return Future of final delivery, storing is done already.
+	 * @throws MessagingException If the campaign could not be added.
+	 */
+	public MailFuture addCampaign(MimeMessage template, Map<String, Map<String, String>> recipientVariables) throws MessagingException {
+		Map<String, Map<String, String>> variables = new LinkedHashMap<String, Map<String, String>>();
+		for( Map.Entry<String, Map<String, String>> entry : recipientVariables.entrySet() )
+			variables.put(new InternetAddress(entry.getKey()).getAddress(), entry.getValue());
+		MergedMimeMessage.prepareTemplate(template);
+		MessageHeaders headers = MessageHeaders.of(template);
+		String mailid = headers.getMailID();
+		if( mailid == null )
+			mailid = template.toString();
+		long expiry = headers.getExpiry();
+		String mergeMailid = Campaign.createMergeMailId(mailid);
+		/*
+		 * The stored template has to be found by its mail ID, and it is 
+		 * marked as a campaign by the mail ID of its merge variables.
+		 */
+		template.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+		template.setHeader(Campaign.HEADER_MERGE_MAIL_ID, mergeMailid);
+		Campaign campaign = new Campaign(mailid, mergeMailid, variables);
+		Map<String, MimeMessage> messages = new LinkedHashMap<String, MimeMessage>();
+		messages.put(mailid, template);
+		messages.put(mergeMailid, campaign.createMergeMessage(AspirinInternal.getConfiguration().getMailSession()));
+		MailFuture future = new MailFuture(mailid);
+		synchronized (mailingLock) {
+			synchronized (campaigns) {
+				mergeMailIds.put(mailid, mergeMailid);
+			}
+			try {
+				if( mailStore instanceof BatchMailStore )
+					((BatchMailStore)mailStore).setAll(messages);
+				else
+				{
+					for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+						mailStore.set(message.getKey(), message.getValue());
+				}
+				queueStore.add(mailid, expiry, campaign.getRecipients());
+			} catch (MessagingException me) {
+				queueStore.remove(mailid);
+				for( String storedMailid : messages.keySet() )
+					mailStore.remove(storedMailid);
+				removeCampaign(mailid);
+				throw me;
+			}
+			addDeliveryFuture(future);
+		}
+		wakeUp();
+		future.enqueued();
+		return future;
+	}
+	
+	private IngestPipeline.IngestItem createIngestItem(MimeMessage mimeMessage) throws MessagingException {
+		MessageHeaders headers = MessageHeaders.of(mimeMessage);
+		String mailid = headers.getMailID();
+		if( mailid == null )
+			mailid = mimeMessage.toString();
+		return new IngestPipeline.IngestItem(mimeMessage, mailid, headers.getExpiry(), headers.getRecipients());
+	}
+	
+	/**
+	 * Store a batch of added messages. The batch is written under one lock, 
+	 * and the dispatcher is waked up once. Futures of stored items are 
+	 * completed, in per-item mode futures of failed items fail. If the 
+	 * batch could not be stored, then no item of it is left in the stores.
+	 * 
+	 * @param allOrNothing If true, then every item is stored or none of 
+	 * them.
+	 * @throws MessagingException If items could not be stored in 
+	 * all-or-nothing mode.
+	 */
+	void store(List<IngestPipeline.IngestItem> batch, boolean allOrNothing) throws MessagingException {
+		List<IngestPipeline.IngestItem> storedItems = new ArrayList<IngestPipeline.IngestItem>(batch.size());
+		for( IngestPipeline.IngestItem item : batch )
+		{
+			if( !item.future.isCancelled() )
+				storedItems.add(item);
+		}
+		if( storedItems.isEmpty() )
+			return;
+		synchronized (mailingLock) {
+			/*
+			 * The dispatcher claims queued items without mailingLock, so 
+			 * futures are registered before recipients are queued. 
+			 */
+			for( IngestPipeline.IngestItem item : storedItems )
+				addDeliveryFuture(item.future);
+			boolean stored = false;
+			try {
+				storeMessages(storedItems, allOrNothing);
+				queueRecipients(storedItems, allOrNothing);
+				stored = true;
+			} finally {
+				if( !stored )
+				{
+					removeAll(storedItems);
+					for( IngestPipeline.IngestItem item : storedItems )
+						removeDeliveryFuture(item.future);
+				}
+			}
+		}
+		wakeUp();
+		for( IngestPipeline.IngestItem item : storedItems )
+			item.future.enqueued();
+	}
+	
+	/**
+	 * Write messages of items to the mail store, in one batch if the store 
+	 * supports it. If the batch could not be written in per-item mode, then 
+	 * messages are written one by one, and failed items are removed from 
+	 * the list and from the delivery futures. Other stores do not report 
+	 * failures, their messages are always handled as stored. The caller 
+	 * have to hold mailingLock.
+	 */
+	private void storeMessages(List<IngestPipeline.IngestItem> items, boolean allOrNothing) throws MessagingException {
+		if( !(mailStore instanceof BatchMailStore) )
+		{
+			for( IngestPipeline.IngestItem item : items )
+				mailStore.set(item.mailid, item.message);
+			return;
+		}
+		BatchMailStore batchMailStore = (BatchMailStore)mailStore;
+		Map<String, MimeMessage> messages = new LinkedHashMap<String, MimeMessage>();
+		for( IngestPipeline.IngestItem item : items )
+			messages.put(item.mailid, item.message);
+		try {
+			batchMailStore.setAll(messages);
+			return;
+		} catch (MessagingException me) {
+			if( allOrNothing )
+				throw me;
+			AspirinInternal.getLogger().warn("DeliveryManager.store(): Failed to store messages in one batch, they are stored one by one.",me);
+		}
+		Iterator<IngestPipeline.IngestItem> itemIt = items.iterator();
+		while( itemIt.hasNext() )
+		{
+			IngestPipeline.IngestItem item = itemIt.next();
+			try {
+				batchMailStore.setAll(Collections.singletonMap(item.mailid, item.message));
+			} catch (MessagingException me) {
+				AspirinInternal.getLogger().error("DeliveryManager.store(): Failed to store message. mailid="+item.mailid,me);
+				removeDeliveryFuture(item.future);
+				item.future.failed(me);
+				itemIt.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Queue recipients of items, in one transaction if the store supports 
+	 * it. In per-item mode failed items are removed from the list, from 
+	 * the stores and from the delivery futures. In all-or-nothing mode the 
+	 * failure is thrown, and the caller removes the items. The caller have 
+	 * to hold mailingLock.
+	 */
+	private void queueRecipients(List<IngestPipeline.IngestItem> items, boolean allOrNothing) throws MessagingException {
+		if( queueStore instanceof BatchQueueStore )
+		{
+			List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+			for( IngestPipeline.IngestItem item : items )
+			{
+				for( InternetAddress recipient : item.recipients )
+				{
+					QueueInfo qi = queueStore.createQueueInfo();
+					qi.setMailid(item.mailid);
+					qi.setRecipient(recipient.getAddress());
+					qi.setExpiry(item.expiry);
+					qiList.add(qi);
+				}
+			}
+			try {
+				((BatchQueueStore)queueStore).addAll(qiList);
+				return;
+			} catch (MessagingException me) {
+				if( allOrNothing )
+					throw me;
+				AspirinInternal.getLogger().warn("DeliveryManager.store(): Failed to queue recipients in one transaction, they are queued one by one.",me);
+			}
+		}
+		Iterator<IngestPipeline.IngestItem> itemIt = items.iterator();
+		while( itemIt.hasNext() )
+		{
+			IngestPipeline.IngestItem item = itemIt.next();
+			try {
+				queueStore.add(item.mailid, item.expiry, item.recipients);
+			} catch (MessagingException me) {
+				if( allOrNothing )
+					throw me;
+				AspirinInternal.getLogger().error("DeliveryManager.store(): Failed to queue recipients. mailid="+item.mailid,me);
+				queueStore.remove(item.mailid);
+				mailStore.remove(item.mailid);
+				removeDeliveryFuture(item.future);
+				item.future.failed(me);
+				itemIt.remove();
+			}
+		}
+	}
+	
+	private void removeAll(List<IngestPipeline.IngestItem> items) {
+		for( IngestPipeline.IngestItem item : items )
+		{
+			queueStore.remove(item.mailid);
+			mailStore.remove(item.mailid);
+		}
+	}
+	
+	private void addDeliveryFuture(MailFuture future) {
+		synchronized (deliveryFutures) {
+			List<MailFuture> futures = deliveryFutures.get(future.getMailid());
+			if( futures == null )
+			{
+				futures = new ArrayList<MailFuture>(1);
+				deliveryFutures.put(future.getMailid(), futures);
+			}
+			futures.add(future);
+		}
+	}
+	
+	private void removeDeliveryFuture(MailFuture future) {
+		synchronized (deliveryFutures) {
+			List<MailFuture> futures = deliveryFutures.get(future.getMailid());
+			if( futures != null && futures.remove(future) && futures.isEmpty() )
+				deliveryFutures.remove(future.getMailid());
+		}
+	}
+	
+	/**
+	 * Complete futures of final delivery of the mail.
+	 * 
+	 * @param delivered True, if delivery is finished, false if the mail was 
+	 * removed.
+	 */
+	private void completeDeliveryFutures(String mailid, boolean delivered) {
+		List<MailFuture> futures;
+		synchronized (deliveryFutures) {
+			if( deliveryFutures.isEmpty() )
+				return;
+			futures = deliveryFutures.remove(mailid);
+		}
+		if( futures == null )
+			return;
+		for( MailFuture future : futures )
+		{
+			if( delivered )
+				future.delivered();
+			else
+				future.removed();
+		}
+	}
+	
+	/**
+	 * Get the message of item. If the mail store gives back the stored 
+	 * content, then only headers are parsed and the body is sent as it is 
+	 * stored. Items of campaigns get the message of their recipient.
+	 */
 	public MimeMessage get(QueueInfo qi) {
-		return mailStore.get(qi.getMailid());
+		String mailid = qi.getMailid();
+		Campaign campaign;
+		synchronized (campaigns) {
+			campaign = campaigns.get(mailid);
+		}
+		try {
+			if( campaign == null )
+			{
+				MimeMessage message = getMessage(mailid);
+				if( message == null )
+					return null;
+				String mergeMailid = getMergeMailId(mailid, message);
+				if( mergeMailid == null )
+					return message;
+				campaign = loadCampaign(mailid, mergeMailid, message);
+				if( campaign == null )
+					return null;
+			}
+			return campaign.render(AspirinInternal.getConfiguration().getMailSession(), qi.getRecipient());
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().error("DeliveryManager.get(): Message of campaign could not be rendered. qi="+qi,me);
+			return null;
+		}
+	}
+	
+	private MimeMessage getMessage(String mailid) {
+		if( mailStore instanceof RawMailStore )
+		{
+			ByteBuffer rawMessage = ((RawMailStore)mailStore).getRawMessage(mailid);
+			if( rawMessage == null )
+				return null;
+			try {
+				return new RawMimeMessage(AspirinInternal.getConfiguration().getMailSession(), rawMessage);
+			} catch (MessagingException me) {
+				AspirinInternal.getLogger().error("DeliveryManager.get(): Stored message could not be parsed. mailid="+mailid,me);
+			}
+		}
+		return mailStore.get(mailid);
+	}
+	
+	/**
+	 * Get the mail ID of merge variables from the mark of stored template. 
+	 * It is read once, then it is kept until the delivery is finished.
+	 *
+	 * @param message The stored message, or null if it is not loaded yet.
+	 * @return Null, if the mail is not a campaign or it is not stored.
+	 * @throws MessagingException If the mark could not be read.
+	 */
+	private String getMergeMailId(String mailid, MimeMessage message) throws MessagingException {
+		synchronized (campaigns) {
+			if( mergeMailIds.containsKey(mailid) )
+				return mergeMailIds.get(mailid);
+		}
+		if( message == null )
+			message = getMessage(mailid);
+		if( message == null )
+			return null;
+		String mergeMailid = Campaign.getMergeMailId(message);
+		synchronized (campaigns) {
+			mergeMailIds.put(mailid, mergeMailid);
+		}
+		return mergeMailid;
+	}
+	
+	/**
+	 * If the mark of campaign could not be read, then the mail is handled 
+	 * as a campaign, so its recipients get their own message.
+	 */
+	private boolean isCampaign(String mailid) {
+		try {
+			return getMergeMailId(mailid, null) != null;
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().error("DeliveryManager.isCampaign(): Campaign mark could not be read. mailid="+mailid,me);
+			return true;
+		}
+	}
+	
+	/**
+	 * Load the campaign of the stored template and merge variables.
+	 *
+	 * @return Null, if the variables could not be loaded.
+	 */
+	private Campaign loadCampaign(String mailid, String mergeMailid, MimeMessage template) {
+		synchronized (campaigns) {
+			Campaign campaign = campaigns.get(mailid);
+			if( campaign != null )
+				return campaign;
+			MimeMessage mergeMessage = mailStore.get(mergeMailid);
+			if( mergeMessage == null )
+				return null;
+			try {
+				campaign = Campaign.load(mailid, mergeMailid, mergeMessage);
+				campaign.setTemplate(AspirinInternal.getConfiguration().getMailSession(), template);
+			} catch (Exception e) {
+				AspirinInternal.getLogger().error("DeliveryManager.get(): Campaign could not be loaded. mailid="+mailid,e);
+				return null;
+			}
+			campaigns.put(mailid, campaign);
+			return campaign;
+		}
+	}
+	
+	private void removeCampaign(String mailid) {
+		synchronized (campaigns) {
+			campaigns.remove(mailid);
+			mergeMailIds.remove(mailid);
+		}
 	}
 	
 	public void remove(String messageName) {
 		synchronized (mailingLock) {
+			String mergeMailid = null;
+			try {
+				mergeMailid = getMergeMailId(messageName, null);
+			} catch (MessagingException me) {
+				AspirinInternal.getLogger().error("DeliveryManager.remove(): Campaign mark could not be read. mailid="+messageName,me);
+			}
 			mailStore.remove(messageName);
 			queueStore.remove(messageName);
+			if( mergeMailid != null )
+				mailStore.remove(mergeMailid);
+			removeCampaign(messageName);
 		}
+		completeDeliveryFutures(messageName, false);
 	}
 	
 	@Override
@@ -105,93 +610,197 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		AspirinInternal.getLogger().info("DeliveryManager started.");
 		while( running )
 		{
-			QueueInfo qi = null;
+			int recipientsMax = Math.max(1, AspirinInternal.getConfiguration().getDeliveryRecipientsMax());
+			int claimedCount = 0;
+			int dispatchedCount = 0;
 			try {
-				qi = queueStore.next();
-				if( qi != null )
+				/*
+				 * We wait for a free delivery slot, then we claim as many 
+				 * items as many deliveries could be started without waiting 
+				 * (multiplied by recipients delivered together). If every 
+				 * delivery thread is busy, items stay in the queue.
+				 */
+				int capacity = deliveryExecutor.awaitCapacity();
+				int claimableCount = Math.min(capacity * recipientsMax, SCHEDULED_MAX - domainScheduler.getPendingCount());
+				if( 0 < claimableCount )
 				{
-					MimeMessage message = get(qi);
-					if( message == null )
-					{
-						AspirinInternal.getLogger().warn("No MimeMessage found for qi={}",qi);
-						qi.setResultInfo("No MimeMessage found.");
-						qi.setState(DeliveryState.FAILED);
-						release(qi);
-						continue;
-					}
-					DeliveryContext dCtx = new DeliveryContext()
-						.setQueueInfo(qi)
-						.setMessage(message);
-					AspirinInternal.getLogger().trace("DeliveryManager.run(): Pool state. A{}/I{}",new Object[]{deliveryThreadObjectPool.getNumActive(),deliveryThreadObjectPool.getNumIdle()});
-					try 
-					{
-						AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}",qi);
-						DeliveryThread dThread = (DeliveryThread)deliveryThreadObjectPool.borrowObject();
-						AspirinInternal.getLogger().trace("DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'",new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
-						dThread.setContext(dCtx);
-						/*
-						 * On first borrow the DeliveryThread is created and 
-						 * initialized, but not started, because the first 
-						 * time we have to set up the QueItem to deliver.
-						 */
-						if( !dThread.isAlive() )
-							dThread.start();
-					} catch ( IllegalStateException ise )
-					{
-						/*
-						 * This could be happen, if thread is running, but 
-						 * ObjectPool is already closed. It is a normal process 
-						 * of Aspirin sending thread shutdown.
-						 */
-						release(qi);
-					} catch ( NoSuchElementException nsee )
-					{
-						/*
-						 * This happens if there is a lot of mail to send, and 
-						 * no idle DeliveryThread is available.
-						 */
-						AspirinInternal.getLogger().debug("DeliveryManager.run(): No idle DeliveryThread is available: {}",nsee.getMessage());
-						release(qi);
-					} catch ( Exception e )
-					{
-						AspirinInternal.getLogger().error("DeliveryManager.run(): Failed borrow delivery thread object.",e);
-						release(qi);
-					}
+					List<QueueInfo> qiList = queueStore.nextBatch(claimableCount);
+					claimedCount = qiList.size();
+					postpone(domainScheduler.addAll(groupByMailAndDomain(qiList, recipientsMax)));
 				}
-				else
+				/*
+				 * Claimed items are dispatched in round-robin order of 
+				 * recipient domains, within the limits of domains.
+				 */
+				List<QueueInfo> qiGroup;
+				while( running && dispatchedCount < capacity && (qiGroup = domainScheduler.next(System.currentTimeMillis())) != null )
 				{
-					if( AspirinInternal.getLogger().isTraceEnabled() && 0 < queueStore.size() )
-						AspirinInternal.getLogger().trace("DeliveryManager.run(): There is no sendable item in the queue. Fallback to waiting state for a minute.");
-					synchronized (this) {
-						try
-						{
-							/*
-							 * We should wait for a specified time, because 
-							 * some emails unsent could be sendable again.
-							 */
-							wait(60000);
-						}catch (InterruptedException e)
-						{
-							running = false;
-						}
-					}
+					dispatch(qiGroup);
+					dispatchedCount++;
 				}
-				
+			} catch (InterruptedException ie) {
+				running = false;
+				continue;
 			} catch (Throwable t) {
-				if( qi != null )
-					release(qi);
+				AspirinInternal.getLogger().error("DeliveryManager.run(): Failed to get sendable items.",t);
+				claimedCount = 0;
 			}
-			
+			/*
+			 * If claimed items are limited by their domains, we try to claim 
+			 * items of other domains before waiting.
+			 */
+			if( dispatchedCount == 0 && (claimedCount == 0 || SCHEDULED_MAX <= domainScheduler.getPendingCount()) )
+				waitForSendableItems();
 		}
+		release(domainScheduler.drain());
 		AspirinInternal.getLogger().info("DeliveryManager terminated.");
 	}
 	
+	/**
+	 * We wait until the earliest queued item is sendable again, until a 
+	 * domain could send again, or until a new item is added or a delivery is 
+	 * finished. If there is no queued item, we wait at most a minute, to 
+	 * check the store periodically.
+	 */
+	private void waitForSendableItems() {
+		long now = System.currentTimeMillis();
+		long waitTime = MAX_IDLE_WAIT;
+		if( domainScheduler.getPendingCount() < SCHEDULED_MAX )
+		{
+			long earliestAttempt = queueStore.getEarliestAttempt();
+			if( 0 <= earliestAttempt )
+				waitTime = Math.min(waitTime, Math.max(1L, earliestAttempt - now + 1));
+		}
+		long readyDelay = domainScheduler.getNextReadyDelay(now);
+		if( 0 <= readyDelay )
+			waitTime = Math.min(waitTime, Math.max(1L, readyDelay));
+		if( AspirinInternal.getLogger().isTraceEnabled() && 0 < queueStore.size() )
+			AspirinInternal.getLogger().trace("DeliveryManager.run(): There is no sendable item in the queue. Fallback to waiting state for {} ms.",waitTime);
+		synchronized (dispatchLock) {
+			try
+			{
+				if( !wakeUpRequested && running )
+					dispatchLock.wait(waitTime);
+				wakeUpRequested = false;
+			}catch (InterruptedException e)
+			{
+				running = false;
+			}
+		}
+	}
+	
+	/**
+	 * Group items by mailid and recipient domain. Items in the same group 
+	 * are delivered in one SMTP transaction. Items of campaigns are not 
+	 * grouped, because every recipient has its own message.
+	 */
+	private Collection<List<QueueInfo>> groupByMailAndDomain(List<QueueInfo> qiList, int recipientsMax) {
+		List<List<QueueInfo>> qiGroups = new ArrayList<List<QueueInfo>>();
+		Map<String, List<QueueInfo>> openGroups = new HashMap<String, List<QueueInfo>>();
+		for( QueueInfo qi : qiList )
+		{
+			String groupKey = qi.getMailid()+"@"+DomainScheduler.getDomain(qi);
+			List<QueueInfo> qiGroup = ( 1 < recipientsMax ) ? openGroups.get(groupKey) : null;
+			// The campaign mark is read only if the item could be grouped
+			if( qiGroup == null || recipientsMax <= qiGroup.size() || isCampaign(qi.getMailid()) )
+			{
+				qiGroup = new ArrayList<QueueInfo>();
+				qiGroups.add(qiGroup);
+				openGroups.put(groupKey, qiGroup);
+			}
+			qiGroup.add(qi);
+		}
+		return qiGroups;
+	}
+	
+	/**
+	 * Give back claimed items, which are not accepted by the domain 
+	 * scheduler. Their attempt count is not changed.
+	 */
+	private void postpone(List<QueueInfo> qiList) {
+		long attempt = System.currentTimeMillis() + POSTPONE_DELAY;
+		for( QueueInfo qi : qiList )
+			queueStore.postpone(qi, attempt);
+	}
+	
+	/**
+	 * Start delivery of a group returned by the domain scheduler. If the 
+	 * delivery could not be started, the group is released.
+	 */
+	private void dispatch(List<QueueInfo> qiGroup) {
+		DeliveryContext dCtx = new DeliveryContext()
+			.setQueueInfos(qiGroup);
+		MimeMessage message;
+		try
+		{
+			message = get(qiGroup.get(0));
+		} catch ( RuntimeException re )
+		{
+			AspirinInternal.getLogger().error("DeliveryManager.run(): Failed to get message. qi="+qiGroup,re);
+			release(dCtx);
+			return;
+		}
+		if( message == null )
+		{
+			AspirinInternal.getLogger().warn("No MimeMessage found for qi={}",qiGroup);
+			for( QueueInfo groupQi : qiGroup )
+			{
+				groupQi.setResultInfo("No MimeMessage found.");
+				groupQi.setState(DeliveryState.FAILED);
+			}
+			release(dCtx);
+			return;
+		}
+		dCtx.setMessage(message);
+		AspirinInternal.getLogger().trace("DeliveryManager.run(): Executor state. A{}/P{}",new Object[]{deliveryExecutor.getActiveCount(),deliveryExecutor.getPoolSize()});
+		try 
+		{
+			AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}",qiGroup);
+			/*
+			 * If every delivery thread is busy, this call blocks until a 
+			 * running delivery is finished.
+			 */
+			deliveryExecutor.execute(dCtx);
+		} catch ( InterruptedException ie )
+		{
+			/*
+			 * Dispatcher is stopped, remaining groups are released after 
+			 * the dispatching loop.
+			 */
+			running = false;
+			release(dCtx);
+		} catch ( RejectedExecutionException ree )
+		{
+			/*
+			 * This could be happen, if dispatcher is running, but 
+			 * executor is already shut down. It is a normal process 
+			 * of Aspirin sending thread shutdown.
+			 */
+			release(dCtx);
+		} catch ( RuntimeException re )
+		{
+			AspirinInternal.getLogger().error("DeliveryManager.run(): Failed to start delivery.",re);
+			release(dCtx);
+		}
+	}
+	
+	/**
+	 * Wake up the dispatcher if it waits for sendable items.
+	 */
+	public void wakeUp() {
+		synchronized (dispatchLock) {
+			wakeUpRequested = true;
+			dispatchLock.notify();
+		}
+	}
+	
 	public boolean isRunning() {
 		return running;
 	}
 	
 	public void terminate() {
 		running = false;
+		wakeUp();
 	}
 	
 	public void release(QueueInfo qi) {
@@ -210,10 +819,35 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		}
 		queueStore.setSendingResult(qi);
 		if( queueStore.isCompleted(qi.getMailid()) )
+		{
 			queueStore.remove(qi.getMailid());
+			removeCampaign(qi.getMailid());
+			completeDeliveryFutures(qi.getMailid(), true);
+		}
+		else
+		if( qi.hasState(DeliveryState.QUEUED) )
+			wakeUp();
 		AspirinInternal.getLogger().trace("DeliveryManager.release(): Release item '{}' with state: '{}' after {} attempts.",new Object[]{qi.getMailid(),qi.getState().name(), qi.getAttemptCount()});
 	}
 	
+	public void release(List<QueueInfo> qiList) {
+		for( QueueInfo qi : qiList )
+			release(qi);
+	}
+	
+	/**
+	 * Release items of a delivery, which was started by the dispatcher, and 
+	 * give back the slot of its recipient domain.
+	 */
+	public void release(DeliveryContext dCtx) {
+		try {
+			release(dCtx.getQueueInfos());
+		} finally {
+			domainScheduler.complete(dCtx.getQueueInfos());
+			wakeUp();
+		}
+	}
+	
 	public boolean isCompleted(QueueInfo qi) {
 		return queueStore.isCompleted(qi.getMailid());
 	}
@@ -226,12 +860,58 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 			else
 			if( parameterName.equals(Configuration.PARAM_QUEUESTORE_CLASS) )
 				queueStore = AspirinInternal.getConfiguration().getQueueStore();
-			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) )
-				((GenericObjectPool)deliveryThreadObjectPool).setMaxActive(AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) || parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_IDLE_MAX) )
+				deliveryExecutor.configure(
+						AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax(),
+						AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax()
+				);
 			else
-			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_IDLE_MAX) )
-				((GenericObjectPool)deliveryThreadObjectPool).setMaxIdle(AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax());
+			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_DOMAIN_ACTIVE_MAX) || parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_DOMAIN_RATE_MAX) )
+			{
+				domainScheduler.configure(
+						AspirinInternal.getConfiguration().getDeliveryDomainActiveMax(),
+						AspirinInternal.getConfiguration().getDeliveryDomainRateMax()
+				);
+				wakeUp();
+			}
+			else
+			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_VIRTUAL) )
+			{
+				/*
+				 * Running deliveries are finished by the previous executor. 
+				 * If the dispatcher waits for the previous executor, then its 
+				 * items are released and dispatched again.
+				 */
+				DeliveryExecutor previousExecutor = deliveryExecutor;
+				deliveryExecutor = createDeliveryExecutor();
+				previousExecutor.shutdown();
+			}
+			else
+			if( parameterName.equals(ConfigurationMBean.PARAM_HOSTNAME) || parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_TIMEOUT) || parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_DEBUG) )
+				/* Pooled connections use the previous mail session settings. */
+				transportPool.clear();
+		}
+	}
+	
+	private DeliveryExecutor createDeliveryExecutor() {
+		if( AspirinInternal.getConfiguration().isDeliveryThreadsVirtual() )
+		{
+			DeliveryExecutor virtualThreadExecutor = DeliveryExecutor.newVirtualThreadExecutor();
+			if( virtualThreadExecutor != null )
+			{
+				AspirinInternal.getLogger().info("DeliveryManager: Deliveries run on virtual threads.");
+				return virtualThreadExecutor;
+			}
+			AspirinInternal.getLogger().warn("DeliveryManager: Virtual threads are not available, deliveries run on thread pool.");
 		}
+		return new DeliveryExecutor(
+				AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax(),
+				AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax()
+		);
+	}
+	
+	DeliveryExecutor getDeliveryExecutor() {
+		return deliveryExecutor;
 	}
 	
 	public DeliveryHandler getDeliveryHandler(String handlerName) {
@@ -240,13 +920,38 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 	
 	public void shutdown() {
 		this.running = false;
+		wakeUp();
+		/*
+		 * The dispatcher could wait for a free delivery slot. 
+		 */
+		this.interrupt();
 		try {
-			deliveryThreadObjectPool.close();
-			deliveryThreadObjectPool.clear();
+			deliveryExecutor.shutdown();
 		} catch (Exception e) {
 			AspirinInternal.getLogger().error("DeliveryManager.shutdown() failed.",e);
 		}
+		transportPool.close();
 		maintenanceThread.shutdown();
+		/*
+		 * Mails waiting in the pipeline are stored before stores are closed.
+		 */
+		ingestPipeline.shutdown();
+		if( queueStore instanceof Closeable )
+		{
+			try {
+				((Closeable)queueStore).close();
+			} catch (Exception e) {
+				AspirinInternal.getLogger().error("DeliveryManager.shutdown() failed on closing queue store.",e);
+			}
+		}
+		if( mailStore instanceof Closeable )
+		{
+			try {
+				((Closeable)mailStore).close();
+			} catch (Exception e) {
+				AspirinInternal.getLogger().error("DeliveryManager.shutdown() failed on closing mail store.",e);
+			}
+		}
 	}
 
 }
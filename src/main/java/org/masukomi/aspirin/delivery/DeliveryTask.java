@@ -0,0 +1,84 @@
+package org.masukomi.aspirin.delivery;
+
+import org.masukomi.aspirin.AspirinInternal;
+import org.masukomi.aspirin.dns.ResolveHost;
+import org.masukomi.aspirin.store.queue.DeliveryState;
+import org.masukomi.aspirin.store.queue.QueueInfo;
+
+/**
+ * Delivery of one context, run by the {@link DeliveryExecutor}. Based on
+ * original RemoteDelivery class.
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class DeliveryTask implements Runnable {
+	
+	private final DeliveryContext dCtx;
+	
+	DeliveryTask(DeliveryContext dCtx) {
+		this.dCtx = dCtx;
+	}
+	
+	@Override
+	public void run() {
+		try
+		{
+			AspirinInternal.getLogger().trace("DeliveryTask ({}).run(): Call delivering... dCtx={}",new Object[]{Thread.currentThread().getName(),dCtx});
+			deliver(dCtx);
+		}catch (Exception e)
+		{
+			AspirinInternal.getLogger().error("DeliveryTask ("+Thread.currentThread().getName()+").run(): Could not deliver message. dCtx={"+dCtx+"}", e);
+		}finally
+		/*
+		 * Items are released in every case. Items still IN_PROGRESS are
+		 * requeued or failed by the DeliveryManager.
+		 */
+		{
+			AspirinInternal.getDeliveryManager().release(dCtx);
+		}
+	}
+	
+	private void deliver(DeliveryContext dCtx) {
+		String threadName = Thread.currentThread().getName();
+		AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Starting mail delivery. qi={}", new Object[]{threadName,dCtx});
+		String[] handlerList = new String[]{
+				ResolveHost.class.getCanonicalName(),
+				SendMessage.class.getCanonicalName()
+		};
+		for( String handlerName : handlerList )
+		{
+			try {
+				AspirinInternal.getDeliveryManager().getDeliveryHandler(handlerName).handle(dCtx);
+			} catch (DeliveryException de) {
+				for( QueueInfo qInfo : dCtx.getQueueInfos() )
+				{
+					/*
+					 * Recipients with an own delivery result (set by a
+					 * grouped delivery) keep their result.
+					 */
+					if( !qInfo.hasState(DeliveryState.IN_PROGRESS) )
+						continue;
+					qInfo.setResultInfo(de.getMessage());
+					AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Mail delivery failed: {}. qi={}", new Object[]{threadName,qInfo.getResultInfo(),qInfo});
+					if( de.isPermanent() )
+						qInfo.setState(DeliveryState.FAILED);
+					else
+						qInfo.setState(DeliveryState.QUEUED);
+				}
+				return;
+			}
+		}
+		for( QueueInfo qInfo : dCtx.getQueueInfos() )
+		{
+			if( qInfo.hasState(DeliveryState.IN_PROGRESS) )
+			{
+				if( qInfo.getResultInfo() == null )
+					qInfo.setResultInfo("250 OK");
+				AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Mail delivery success: {}. qi={}", new Object[]{threadName,qInfo.getResultInfo(),qInfo});
+				qInfo.setState(DeliveryState.SENT);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.masukomi.aspirin.store.queue.QueueInfo;
+
+/**
+ * <p>This is the scheduler of claimed items by recipient domain. Groups of
+ * items wait in a FIFO list of their domain, and domains are served in
+ * round-robin order, so a domain with a lot of emails could not occupy every
+ * delivery thread while other domains starve.</p>
+ *
+ * <p>A domain is skipped while</p>
+ * <ul>
+ *   <li>it has the maximal count of deliveries in progress, or</li>
+ *   <li>it reached its maximal count of messages per second. Rate is limited
+ *   by a token bucket, which holds at most one second of messages.</li>
+ * </ul>
+ *
+ * <p>A domain holds a limited count of waiting items. Groups over this
+ * limit are not accepted, the caller have to give them back to the queue, so
+ * a limited domain could not fill the scheduler with items it could not send
+ * while items of other domains are waiting in the queue.</p>
+ *
+ * <p>Every group returned by {@link #next(long)} have to be given back by
+ * {@link #complete(List)}, when its delivery is finished.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class DomainScheduler {
+	
+	/** Default maximal count of waiting items of a domain. */
+	public static final int DEFAULT_DOMAIN_PENDING_MAX = 100;
+	
+	private Map<String, DomainQueue> domainQueues = new HashMap<String, DomainQueue>();
+	/** Domains in round-robin order. Next domain to check is the first. */
+	private LinkedList<DomainQueue> domainRing = new LinkedList<DomainQueue>();
+	private int pendingCount = 0;
+	private int domainActiveMax;
+	private int domainRateMax;
+	private final int domainPendingMax;
+	
+	/**
+	 * @param domainActiveMax Maximal count of deliveries in progress to the
+	 * same domain.
+	 * @param domainRateMax Maximal count of messages per second sent to the
+	 * same domain. If it is zero or less, then rate is not limited.
+	 */
+	public DomainScheduler(int domainActiveMax, int domainRateMax) {
+		this(domainActiveMax, domainRateMax, DEFAULT_DOMAIN_PENDING_MAX);
+	}
+	
+	/**
+	 * @param domainActiveMax Maximal count of deliveries in progress to the
+	 * same domain.
+	 * @param domainRateMax Maximal count of messages per second sent to the
+	 * same domain. If it is zero or less, then rate is not limited.
+	 * @param domainPendingMax Maximal count of waiting items of a domain.
+	 */
+	public DomainScheduler(int domainActiveMax, int domainRateMax, int domainPendingMax) {
+		this.domainPendingMax = Math.max(1, domainPendingMax);
+		configure(domainActiveMax, domainRateMax);
+	}
+	
+	/**
+	 * Change the limits of domains. Deliveries in progress are not affected.
+	 *
+	 * @param domainActiveMax Maximal count of deliveries in progress to the
+	 * same domain.
+	 * @param domainRateMax Maximal count of messages per second sent to the
+	 * same domain. If it is zero or less, then rate is not limited.
+	 */
+	public synchronized void configure(int domainActiveMax, int domainRateMax) {
+		this.domainActiveMax = Math.max(1, domainActiveMax);
+		this.domainRateMax = Math.max(0, domainRateMax);
+	}
+	
+	/**
+	 * Add groups of items to schedule. Items of a group have to have the same
+	 * recipient domain. Groups of domains, which have the maximal count of
+	 * waiting items, are not added.
+	 *
+	 * @param qiGroups Groups of items.
+	 * @return Items of groups, which are not added.
+	 */
+	public synchronized List<QueueInfo> addAll(Collection<List<QueueInfo>> qiGroups) {
+		List<QueueInfo> rejectedList = new ArrayList<QueueInfo>();
+		long now = System.currentTimeMillis();
+		for( List<QueueInfo> qiGroup : qiGroups )
+		{
+			if( qiGroup.isEmpty() )
+				continue;
+			String domain = getDomain(qiGroup.get(0));
+			DomainQueue domainQueue = domainQueues.get(domain);
+			if( domainQueue == null )
+			{
+				domainQueue = new DomainQueue(domain, domainRateMax, now);
+				domainQueues.put(domain, domainQueue);
+				domainRing.addLast(domainQueue);
+			}
+			// The first group is accepted, even if it is larger than the limit
+			if( 0 < domainQueue.pendingCount && domainPendingMax < domainQueue.pendingCount + qiGroup.size() )
+			{
+				rejectedList.addAll(qiGroup);
+				continue;
+			}
+			domainQueue.groups.addLast(qiGroup);
+			domainQueue.pendingCount += qiGroup.size();
+			pendingCount += qiGroup.size();
+		}
+		return rejectedList;
+	}
+	
+	/**
+	 * Get the next group which could be delivered now. The domain of the
+	 * returned group is moved to the end of round-robin order.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return The next group or null, if every domain is empty or limited.
+	 */
+	public synchronized List<QueueInfo> next(long now) {
+		int domainCount = domainRing.size();
+		for( int i = 0; i < domainCount; i++ )
+		{
+			DomainQueue domainQueue = domainRing.removeFirst();
+			domainQueue.refill(now, domainRateMax);
+			if( domainQueue.isIdle(domainRateMax) )
+			{
+				// Bucket is full again, the domain has no state to keep
+				domainQueues.remove(domainQueue.domain);
+				continue;
+			}
+			domainRing.addLast(domainQueue);
+			if( domainQueue.isReady(domainActiveMax, domainRateMax) )
+			{
+				List<QueueInfo> qiGroup = domainQueue.groups.removeFirst();
+				domainQueue.activeCount++;
+				if( 0 < domainRateMax )
+					domainQueue.tokens -= 1;
+				domainQueue.pendingCount -= qiGroup.size();
+				pendingCount -= qiGroup.size();
+				return qiGroup;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Give back the slot of a group returned by {@link #next(long)}.
+	 *
+	 * @param qiGroup The group of a finished delivery.
+	 */
+	public synchronized void complete(List<QueueInfo> qiGroup) {
+		if( qiGroup.isEmpty() )
+			return;
+		DomainQueue domainQueue = domainQueues.get(getDomain(qiGroup.get(0)));
+		if( domainQueue != null && 0 < domainQueue.activeCount )
+			domainQueue.activeCount--;
+	}
+	
+	/**
+	 * @param now The current time in milliseconds.
+	 * @return Milliseconds until a domain, which is limited only by its rate,
+	 * could send again, or -1 if there is no such domain.
+	 */
+	public synchronized long getNextReadyDelay(long now) {
+		if( domainRateMax <= 0 )
+			return -1;
+		long delay = -1;
+		for( DomainQueue domainQueue : domainRing )
+		{
+			if( domainQueue.groups.isEmpty() || domainActiveMax <= domainQueue.activeCount )
+				continue;
+			domainQueue.refill(now, domainRateMax);
+			long domainDelay = (long)Math.ceil((1 - domainQueue.tokens) * 1000 / domainRateMax);
+			domainDelay = Math.max(0, domainDelay);
+			if( delay < 0 || domainDelay < delay )
+				delay = domainDelay;
+		}
+		return delay;
+	}
+	
+	/**
+	 * @return Count of items waiting for delivery.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+	
+	/**
+	 * Remove all waiting groups.
+	 *
+	 * @return The removed items.
+	 */
+	public synchronized List<QueueInfo> drain() {
+		List<QueueInfo> qiList = new ArrayList<QueueInfo>(pendingCount);
+		Iterator<DomainQueue> domainQueueIt = domainRing.iterator();
+		while( domainQueueIt.hasNext() )
+		{
+			DomainQueue domainQueue = domainQueueIt.next();
+			for( List<QueueInfo> qiGroup : domainQueue.groups )
+				qiList.addAll(qiGroup);
+			domainQueue.groups.clear();
+			domainQueue.pendingCount = 0;
+		}
+		pendingCount = 0;
+		return qiList;
+	}
+	
+	/**
+	 * @param qi The item.
+	 * @return The lower case domain of recipient.
+	 */
+	public static String getDomain(QueueInfo qi) {
+		return qi.getRecipientDomain();
+	}
+	
+	/**
+	 * Waiting groups, deliveries in progress and rate limit state of a
+	 * domain.
+	 */
+	private static class DomainQueue {
+		private final String domain;
+		private final LinkedList<List<QueueInfo>> groups = new LinkedList<List<QueueInfo>>();
+		/** Count of items in the waiting groups. */
+		private int pendingCount = 0;
+		private int activeCount = 0;
+		private double tokens;
+		private long lastRefill;
+		
+		DomainQueue(String domain, int rateMax, long now) {
+			this.domain = domain;
+			this.tokens = Math.max(1, rateMax);
+			this.lastRefill = now;
+		}
+		
+		void refill(long now, int rateMax) {
+			if( 0 < rateMax && lastRefill < now )
+				tokens = Math.min(Math.max(1, rateMax), tokens + (now - lastRefill) * rateMax / 1000.0);
+			lastRefill = now;
+		}
+		
+		boolean isReady(int activeMax, int rateMax) {
+			return !groups.isEmpty() && activeCount < activeMax && ( rateMax <= 0 || 1 <= tokens );
+		}
+		
+		boolean isIdle(int rateMax) {
+			return groups.isEmpty() && activeCount == 0 && ( rateMax <= 0 || Math.max(1, rateMax) <= tokens );
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This thread writes asynchronously added mails to the stores. Mails are
+ * waiting in a bounded queue, if the queue is full, then adding blocks until
+ * the pipeline catches up. The pipeline takes all waiting mails up to the
+ * maximal batch size, and stores them together by the
+ * {@link DeliveryManager}.</p>
+ *
+ * <p>On shutdown the waiting mails are stored before the thread stops, so
+ * every mail accepted by the pipeline is stored or its future fails.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+class IngestPipeline extends Thread {
+	
+	/** The thread checks its state at least in every second. */
+	private static final long POLL_TIMEOUT = 1000;
+	
+	private final DeliveryManager deliveryManager;
+	private final BlockingQueue<IngestItem> items;
+	private final int batchMax;
+	private volatile boolean running = true;
+	
+	/**
+	 * @param deliveryManager Manager, which stores the batches.
+	 * @param capacity Maximal count of waiting mails.
+	 * @param batchMax Maximal count of mails stored together.
+	 */
+	IngestPipeline(DeliveryManager deliveryManager, int capacity, int batchMax) {
+		this.deliveryManager = deliveryManager;
+		this.items = new ArrayBlockingQueue<IngestItem>(capacity);
+		this.batchMax = batchMax;
+		this.setName("Aspirin-"+getClass().getSimpleName()+"-"+getId());
+		this.setDaemon(true);
+	}
+	
+	/**
+	 * Add a mail to the pipeline. It blocks while the pipeline is full.
+	 *
+	 * @return False, if the pipeline is stopped.
+	 * @throws InterruptedException If the thread is interrupted while it
+	 * waits for the pipeline.
+	 */
+	boolean submit(IngestItem item) throws InterruptedException {
+		if( !running )
+			return false;
+		items.put(item);
+		/*
+		 * If the pipeline was stopped meanwhile, then the item is taken
+		 * back, unless the pipeline took it already.
+		 */
+		if( !running && items.remove(item) )
+			return false;
+		return true;
+	}
+	
+	@Override
+	public void run() {
+		AspirinInternal.getLogger().info("IngestPipeline started.");
+		List<IngestItem> batch = new ArrayList<IngestItem>(batchMax);
+		while( running )
+		{
+			try {
+				/*
+				 * The thread is not interrupted on shutdown, because an 
+				 * interrupt could break the file operations of stores.
+				 */
+				IngestItem item = items.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if( item != null )
+				{
+					batch.add(item);
+					items.drainTo(batch, batchMax - 1);
+				}
+			} catch (InterruptedException ie) {
+				running = false;
+			}
+			store(batch);
+		}
+		// Store items accepted before shutdown
+		while( !items.isEmpty() )
+		{
+			items.drainTo(batch, batchMax);
+			store(batch);
+		}
+		AspirinInternal.getLogger().info("IngestPipeline terminated.");
+	}
+	
+	/**
+	 * Store the batch. If it fails, then futures of items which are not 
+	 * done yet fail. Stored items and items failed one by one have their 
+	 * own result already.
+	 */
+	private void store(List<IngestItem> batch) {
+		if( batch.isEmpty() )
+			return;
+		try {
+			storeBatch(batch);
+		} catch (Throwable t) {
+			AspirinInternal.getLogger().error("IngestPipeline.run(): Failed to store mails.",t);
+			for( IngestItem item : batch )
+			{
+				if( !item.future.isDone() )
+					item.future.failed(t);
+			}
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Store the batch by the delivery manager, every item has its own 
+	 * result.
+	 */
+	void storeBatch(List<IngestItem> batch) throws MessagingException {
+		deliveryManager.store(batch, false);
+	}
+	
+	/**
+	 * Stop the pipeline after the waiting mails are stored. Items added
+	 * after the thread stopped are rejected.
+	 */
+	void shutdown() {
+		running = false;
+		try {
+			this.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		IngestItem item;
+		while( (item = items.poll()) != null )
+			item.future.failed(new RejectedExecutionException("Delivery is shut down."));
+	}
+	
+	/**
+	 * A mail waiting to be stored, with the informations read from its
+	 * headers.
+	 */
+	static class IngestItem {
+		final MimeMessage message;
+		final String mailid;
+		final long expiry;
+		final Collection<InternetAddress> recipients;
+		final MailFuture future;
+		
+		IngestItem(MimeMessage message, String mailid, long expiry, Collection<InternetAddress> recipients) {
+			this.message = message;
+			this.mailid = mailid;
+			this.expiry = expiry;
+			this.recipients = recipients;
+			this.future = new MailFuture(mailid);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>Future of an asynchronously added mail. It is done with the mail ID,
+ * when the mail is written to the mail store and its recipients are queued.
+ * If the mail could not be stored, then it is done with the exception.
+ * Cancelling it stops the enqueue only if the mail is still waiting to be
+ * stored.</p>
+ *
+ * <p>The future of final delivery is done with the mail ID, when every
+ * recipient of the mail got a final delivery result (sent or failed). Results
+ * of recipients are given to the listeners as before. It is cancelled, if the
+ * mail is removed from delivery.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class MailFuture extends FutureTask<String> {
+	
+	private static final Callable<String> NO_TASK = new Callable<String>() {
+		@Override
+		public String call() {
+			throw new IllegalStateException("MailFuture is completed by the delivery manager.");
+		}
+	};
+	
+	private final String mailid;
+	private final Completion delivery = new Completion();
+	
+	MailFuture(String mailid) {
+		super(NO_TASK);
+		this.mailid = mailid;
+	}
+	
+	@Override
+	public void run() {
+		// It is completed by the delivery manager
+	}
+	
+	/**
+	 * @return Mail ID of the added mail.
+	 */
+	public String getMailid() {
+		return mailid;
+	}
+	
+	/**
+	 * @return Future of final delivery to all recipients.
+	 */
+	public Future<String> getDelivery() {
+		return delivery;
+	}
+	
+	void enqueued() {
+		set(mailid);
+	}
+	
+	void failed(Throwable t) {
+		setException(t);
+		delivery.failed(t);
+	}
+	
+	void delivered() {
+		delivery.completed(mailid);
+	}
+	
+	void removed() {
+		delivery.cancel(false);
+	}
+	
+	private static class Completion extends FutureTask<String> {
+		Completion() {
+			super(NO_TASK);
+		}
+		
+		@Override
+		public void run() {
+			// It is completed by the delivery manager
+		}
+		
+		void completed(String result) {
+			set(result);
+		}
+		
+		void failed(Throwable t) {
+			setException(t);
+		}
+	}
+
+}
@@ -2,10 +2,15 @@ package org.masukomi.aspirin.delivery;
 
 import java.net.ConnectException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.URLName;
@@ -14,16 +19,30 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.AspirinInternal;
+import org.masukomi.aspirin.delivery.TransportPool.PooledTransport;
 import org.masukomi.aspirin.store.queue.DeliveryState;
+import org.masukomi.aspirin.store.queue.QueueInfo;
 
+import com.sun.mail.smtp.SMTPAddressFailedException;
 import com.sun.mail.smtp.SMTPTransport;
 
 /**
+ * This delivery handler sends the message to the resolved target servers. 
+ * The SMTP connections are borrowed from a {@link TransportPool}, so more 
+ * emails to the same server could be sent through the same connection.
+ * INPUT (REQUIRED) variables:
+ * - targetservers Collection&lt;URLName&gt;
  * 
  * @author Laszlo Solova
  *
  */
 public class SendMessage implements DeliveryHandler {
+	
+	private TransportPool transportPool;
+	
+	public SendMessage(TransportPool transportPool) {
+		this.transportPool = transportPool;
+	}
 
 	@Override
 	public void handle(DeliveryContext dCtx) throws DeliveryException {
@@ -34,18 +53,22 @@ public class SendMessage implements DeliveryHandler {
 		
 		// Prepare and send
 		Iterator<URLName> urlnIt = targetServers.iterator();
-		InternetAddress[] addr;
-		try {
-			addr = new InternetAddress[]{new InternetAddress(dCtx.getQueueInfo().getRecipient())};
-		} catch (AddressException e) {
-			throw new DeliveryException("Recipient could not be parsed:"+dCtx.getQueueInfo().getRecipient(), true, e);
+		List<QueueInfo> qiList = dCtx.getQueueInfos();
+		InternetAddress[] addr = new InternetAddress[qiList.size()];
+		for( int i = 0; i < addr.length; i++ )
+		{
+			try {
+				addr[i] = new InternetAddress(qiList.get(i).getRecipient());
+			} catch (AddressException e) {
+				throw new DeliveryException("Recipient could not be parsed:"+qiList.get(i).getRecipient(), true, e);
+			}
 		}
 		boolean sentSuccessfully = false;
 		while ( !sentSuccessfully && urlnIt.hasNext() )
 		{
 			try {
 				URLName outgoingMailServer = urlnIt.next();
-				AspirinInternal.getLogger().debug("SendMessage.handle(): Attempting delivery of '{}' to recipient '{}' on host '{}' ",new Object[]{dCtx.getQueueInfo().getMailid(),dCtx.getQueueInfo().getRecipient(),outgoingMailServer});
+				AspirinInternal.getLogger().debug("SendMessage.handle(): Attempting delivery of '{}' to {} recipient(s) on host '{}' ",new Object[]{dCtx.getQueueInfo().getMailid(),addr.length,outgoingMailServer});
 				Properties props = session.getProperties();
 				if (message.getSender() == null) {
 					props.put("mail.smtp.from", "<>");
@@ -53,11 +76,12 @@ public class SendMessage implements DeliveryHandler {
 					String sender = message.getSender().toString();
 					props.put("mail.smtp.from", sender);
 				}
-				Transport transport = null;
+				PooledTransport pTransport = null;
+				boolean reusable = false;
  				try {
-					transport = session.getTransport(outgoingMailServer);
 					try {
-						transport.connect();
+						pTransport = transportPool.borrow(session, outgoingMailServer);
+						Transport transport = pTransport.getTransport();
 						transport.sendMessage(message, addr);
 						if( transport instanceof SMTPTransport )
 						{
@@ -65,9 +89,19 @@ public class SendMessage implements DeliveryHandler {
 							if( response != null )
 							{
 								AspirinInternal.getLogger().error("SendMessage.handle(): Last server response: {}.",response);
-								dCtx.getQueueInfo().setResultInfo(response);
+								for( QueueInfo qi : qiList )
+									qi.setResultInfo(response);
 							}
 						}
+						reusable = true;
+					} catch (SendFailedException sfe) {
+						/*
+						 * Some recipients of a grouped delivery were 
+						 * rejected. The message was sent to the accepted 
+						 * ones, so we map the results back per recipient.
+						 */
+						if( qiList.size() < 2 || !applyRecipientResults(qiList, sfe, pTransport.getTransport()) )
+							throw sfe;
 					} catch (MessagingException me) {
 						/* Catch on connection error only. */
 						if( resolveException(me) instanceof ConnectException )
@@ -87,9 +121,9 @@ public class SendMessage implements DeliveryHandler {
 					sentSuccessfully = true;
 					dCtx.addContextVariable("newstate", DeliveryState.SENT);
 				} finally {
-					if (transport != null) {
-						transport.close();
-						transport = null;
+					if (pTransport != null) {
+						transportPool.release(pTransport, reusable);
+						pTransport = null;
 					}
 				}
 			} catch (MessagingException me) {
@@ -104,6 +138,78 @@ public class SendMessage implements DeliveryHandler {
 			throw new DeliveryException("SendMessage.handle(): Mail '{}' sending failed, try later.", false);
 	}
 
+	/**
+	 * Set the delivery result of every recipient of a grouped delivery based 
+	 * on the addresses reported by the SendFailedException. Accepted 
+	 * recipients are kept IN_PROGRESS (so they will be SENT), rejected ones 
+	 * are FAILED on permanent (5xx) or QUEUED on temporary errors.
+	 * 
+	 * @return false if there is no per recipient information in the 
+	 * exception, so the whole transaction failed.
+	 */
+	private boolean applyRecipientResults(List<QueueInfo> qiList, SendFailedException sfe, Transport transport) {
+		Address[] validSent = sfe.getValidSentAddresses();
+		Address[] invalid = sfe.getInvalidAddresses();
+		if( (validSent == null || validSent.length == 0) && (invalid == null || invalid.length == 0) )
+			return false;
+		
+		Map<String, MessagingException> addressFailures = new HashMap<String, MessagingException>();
+		Exception nextException = sfe.getNextException();
+		while( nextException instanceof MessagingException )
+		{
+			if( nextException instanceof SMTPAddressFailedException )
+			{
+				SMTPAddressFailedException safe = (SMTPAddressFailedException)nextException;
+				addressFailures.put(safe.getAddress().getAddress().toLowerCase(), safe);
+			}
+			nextException = ((MessagingException)nextException).getNextException();
+		}
+		
+		String response = null;
+		if( transport instanceof SMTPTransport )
+			response = ((SMTPTransport)transport).getLastServerResponse();
+		for( QueueInfo qi : qiList )
+		{
+			String recipient = qi.getRecipient().toLowerCase();
+			if( containsAddress(validSent, recipient) )
+			{
+				if( response != null )
+					qi.setResultInfo(response);
+			}
+			else
+			if( addressFailures.containsKey(recipient) )
+			{
+				MessagingException addressFailure = addressFailures.get(recipient);
+				qi.setResultInfo(addressFailure.getMessage());
+				if( '5' == addressFailure.getMessage().charAt(0) )
+					qi.setState(DeliveryState.FAILED);
+				else
+					qi.setState(DeliveryState.QUEUED);
+			}
+			else
+			{
+				qi.setResultInfo(sfe.getMessage());
+				if( containsAddress(invalid, recipient) )
+					qi.setState(DeliveryState.FAILED);
+				else
+					qi.setState(DeliveryState.QUEUED);
+			}
+		}
+		return true;
+	}
+	
+	private boolean containsAddress(Address[] addresses, String recipient) {
+		if( addresses != null )
+		{
+			for( Address address : addresses )
+			{
+				if( address instanceof InternetAddress && recipient.equalsIgnoreCase(((InternetAddress)address).getAddress()) )
+					return true;
+			}
+		}
+		return false;
+	}
+	
 	private Exception resolveException(MessagingException msgExc) {
 		MessagingException me = msgExc;
 		Exception nextException = null;
@@ -0,0 +1,231 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This is a pool of connected {@link Transport} objects, keyed by target
+ * server. Sending a lot of emails to the same mail exchanger does not need
+ * a new TCP connection and a new SMTP handshake for every email.</p>
+ *
+ * <p>A pooled connection is</p>
+ * <ul>
+ *   <li>closed after it was idle for a longer time than the configured idle
+ *   timeout,</li>
+ *   <li>closed after it sent the configured maximal count of messages,</li>
+ *   <li>checked before reuse - {@link Transport#isConnected()} of SMTP
+ *   transport sends a NOOP command to the server.</li>
+ * </ul>
+ *
+ * <p>Only connections of successful sendings are given back to the pool,
+ * every failed connection is closed.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class TransportPool {
+	
+	private static final long EVICTION_PERIOD = 1000;
+	
+	private Map<String, LinkedList<PooledTransport>> idleTransports = new HashMap<String, LinkedList<PooledTransport>>();
+	private Object lock = new Object();
+	private Timer evictionTimer = null;
+	private boolean closed = false;
+	
+	/**
+	 * It gives back a connected transport to the target server. If there is
+	 * a healthy idle connection in the pool it is reused, else a new one is
+	 * created and connected.
+	 *
+	 * @param session The mail session of the new transport.
+	 * @param targetServer The target server.
+	 * @return A connected transport.
+	 * @throws MessagingException If the connection failed.
+	 */
+	public PooledTransport borrow(Session session, URLName targetServer) throws MessagingException {
+		String key = targetServer.toString();
+		PooledTransport pTransport;
+		while( (pTransport = pollIdle(key)) != null )
+		{
+			if( !pTransport.isExpired(System.currentTimeMillis()) && pTransport.getTransport().isConnected() )
+			{
+				AspirinInternal.getLogger().trace("TransportPool.borrow(): Reuse connection to '{}' after {} messages.",new Object[]{key, pTransport.getMessageCount()});
+				return pTransport;
+			}
+			pTransport.close();
+		}
+		Transport transport = session.getTransport(targetServer);
+		transport.connect();
+		return new PooledTransport(key, transport);
+	}
+	
+	/**
+	 * Give back a borrowed transport. The transport is closed, if it is not
+	 * reusable or it reached the maximal message count.
+	 *
+	 * @param pTransport The borrowed transport.
+	 * @param reusable If false, then the transport is closed.
+	 */
+	public void release(PooledTransport pTransport, boolean reusable) {
+		if( reusable )
+			pTransport.messageCount++;
+		if( !reusable || AspirinInternal.getConfiguration().getDeliveryConnectionMessagesMax() <= pTransport.messageCount )
+		{
+			pTransport.close();
+			return;
+		}
+		pTransport.lastUsed = System.currentTimeMillis();
+		synchronized (lock) {
+			if( !closed )
+			{
+				LinkedList<PooledTransport> idleList = idleTransports.get(pTransport.key);
+				if( idleList == null )
+				{
+					idleList = new LinkedList<PooledTransport>();
+					idleTransports.put(pTransport.key, idleList);
+				}
+				idleList.addFirst(pTransport);
+				startEviction();
+				return;
+			}
+		}
+		pTransport.close();
+	}
+	
+	/**
+	 * Close all idle connections. Borrowed connections are closed on
+	 * release, if pool is closed.
+	 */
+	public void clear() {
+		List<PooledTransport> closeables = new ArrayList<PooledTransport>();
+		synchronized (lock) {
+			for( LinkedList<PooledTransport> idleList : idleTransports.values() )
+				closeables.addAll(idleList);
+			idleTransports.clear();
+		}
+		for( PooledTransport pTransport : closeables )
+			pTransport.close();
+	}
+	
+	/**
+	 * Close the pool and all idle connections.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			if( evictionTimer != null )
+			{
+				evictionTimer.cancel();
+				evictionTimer = null;
+			}
+		}
+		clear();
+	}
+	
+	/**
+	 * Close all idle connections which are expired.
+	 */
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		List<PooledTransport> closeables = new ArrayList<PooledTransport>();
+		synchronized (lock) {
+			Iterator<LinkedList<PooledTransport>> idleListIt = idleTransports.values().iterator();
+			while( idleListIt.hasNext() )
+			{
+				LinkedList<PooledTransport> idleList = idleListIt.next();
+				Iterator<PooledTransport> pTransportIt = idleList.iterator();
+				while( pTransportIt.hasNext() )
+				{
+					PooledTransport pTransport = pTransportIt.next();
+					if( pTransport.isExpired(now) )
+					{
+						closeables.add(pTransport);
+						pTransportIt.remove();
+					}
+				}
+				if( idleList.isEmpty() )
+					idleListIt.remove();
+			}
+		}
+		for( PooledTransport pTransport : closeables )
+			pTransport.close();
+	}
+	
+	private PooledTransport pollIdle(String key) {
+		synchronized (lock) {
+			LinkedList<PooledTransport> idleList = idleTransports.get(key);
+			if( idleList == null )
+				return null;
+			PooledTransport pTransport = idleList.pollFirst();
+			if( idleList.isEmpty() )
+				idleTransports.remove(key);
+			return pTransport;
+		}
+	}
+	
+	private void startEviction() {
+		if( evictionTimer == null )
+		{
+			evictionTimer = new Timer("Aspirin-TransportPoolEviction", true);
+			evictionTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						evictIdle();
+					} catch (Exception e) {
+						AspirinInternal.getLogger().error("TransportPool eviction failed.",e);
+					}
+				}
+			}, EVICTION_PERIOD, EVICTION_PERIOD);
+		}
+	}
+	
+	/**
+	 * A transport object with its pooling informations.
+	 */
+	public static class PooledTransport {
+		private final String key;
+		private final Transport transport;
+		private int messageCount = 0;
+		private long lastUsed = System.currentTimeMillis();
+		
+		PooledTransport(String key, Transport transport) {
+			this.key = key;
+			this.transport = transport;
+		}
+		
+		public Transport getTransport() {
+			return transport;
+		}
+		
+		public int getMessageCount() {
+			return messageCount;
+		}
+		
+		boolean isExpired(long now) {
+			return lastUsed + AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout() <= now;
+		}
+		
+		void close() {
+			try {
+				transport.close();
+			} catch (MessagingException e) {
+				AspirinInternal.getLogger().debug("TransportPool: Closing connection to '{}' failed: {}",new Object[]{key, e.getMessage()});
+			}
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.masukomi.aspirin.dns;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.URLName;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This is a bounded cache of resolved mail servers by domain name. The 
+ * entries expire after the TTL of the DNS records they were resolved from. 
+ * Domains without any mail server are cached too (negative caching), with 
+ * the configured negative TTL.</p>
+ * 
+ * <p>If the cache is full, the expired entries are removed first. If there 
+ * is no expired entry, the entries closest to their expiration are 
+ * evicted.</p>
+ * 
+ * <p>The usage statistics of the cache of {@link DnsResolver} are available 
+ * through {@link DnsCacheMBean}, which is registered in the platform MBean 
+ * server as {@value #MBEAN_NAME}.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class DnsCache implements DnsCacheMBean {
+	
+	public static final String MBEAN_NAME = "org.masukomi.aspirin:type=DnsCache";
+	
+	private Map<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+	private Object evictionLock = new Object();
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	private AtomicLong evictionCount = new AtomicLong();
+	private ObjectName mbeanName = null;
+	
+	/**
+	 * @param hostName The domain name.
+	 * @return The cached mail servers of the domain, or null if the domain is 
+	 * not cached or its entry is expired.
+	 */
+	public Collection<URLName> get(String hostName) {
+		CacheEntry entry = entries.get(hostName);
+		if( entry != null )
+		{
+			if( System.currentTimeMillis() < entry.expiry )
+			{
+				hitCount.incrementAndGet();
+				return entry.targetServers;
+			}
+			// An entry put meanwhile is not removed
+			entries.remove(hostName, entry);
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Store the mail servers of a domain.
+	 * @param hostName The domain name.
+	 * @param targetServers The resolved mail servers. If it is empty, then 
+	 * the negative TTL is used.
+	 * @param ttl The TTL of the resolved DNS records in milliseconds.
+	 */
+	public void put(String hostName, Collection<URLName> targetServers, long ttl) {
+		int maxSize = AspirinInternal.getConfiguration().getDnsCacheSize();
+		if( maxSize <= 0 )
+			return;
+		if( targetServers.isEmpty() )
+			ttl = AspirinInternal.getConfiguration().getDnsCacheNegativeTtl();
+		if( ttl <= 0 )
+			return;
+		if( maxSize <= entries.size() )
+			evict(maxSize);
+		entries.put(hostName, new CacheEntry(Collections.unmodifiableCollection(targetServers), System.currentTimeMillis()+ttl));
+	}
+	
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	@Override
+	public int getSize() {
+		return entries.size();
+	}
+	
+	@Override
+	public void clear() {
+		entries.clear();
+	}
+	
+	/**
+	 * Register the statistics in the platform MBean server as 
+	 * {@value #MBEAN_NAME}.
+	 */
+	synchronized void registerMBean() {
+		if( mbeanName != null )
+			return;
+		try {
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			mbeanName = name;
+		} catch (JMException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Cache statistics could not be registered. Name "+MBEAN_NAME,e);
+		}
+	}
+	
+	/**
+	 * Remove expired entries, and if it is not enough, remove entries with 
+	 * the earliest expiry until a tenth of the cache becomes free.
+	 */
+	private void evict(int maxSize) {
+		synchronized (evictionLock) {
+			if( entries.size() < maxSize )
+				return;
+			long now = System.currentTimeMillis();
+			Iterator<CacheEntry> entryIt = entries.values().iterator();
+			while( entryIt.hasNext() )
+			{
+				if( entryIt.next().expiry <= now )
+					entryIt.remove();
+			}
+			int evictableCount = entries.size() - (maxSize - Math.max(1, maxSize / 10));
+			if( 0 < evictableCount )
+			{
+				List<Map.Entry<String, CacheEntry>> entryList = new ArrayList<Map.Entry<String, CacheEntry>>(entries.entrySet());
+				Collections.sort(entryList, new Comparator<Map.Entry<String, CacheEntry>>() {
+					@Override
+					public int compare(Map.Entry<String, CacheEntry> o1, Map.Entry<String, CacheEntry> o2) {
+						return Long.compare(o1.getValue().expiry, o2.getValue().expiry);
+					}
+				});
+				for( int i = 0; i < evictableCount && i < entryList.size(); i++ )
+				{
+					entries.remove(entryList.get(i).getKey());
+					evictionCount.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	private static class CacheEntry {
+		private final Collection<URLName> targetServers;
+		private final long expiry;
+		
+		CacheEntry(Collection<URLName> targetServers, long expiry) {
+			this.targetServers = targetServers;
+			this.expiry = expiry;
+		}
+	}
+
+}
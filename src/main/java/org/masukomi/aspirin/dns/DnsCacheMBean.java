@@ -0,0 +1,32 @@
+package org.masukomi.aspirin.dns;
+
+/**
+ * <p>This is the JMX bean of the MX record cache. It gives back the usage 
+ * statistics of the cache.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public interface DnsCacheMBean {
+	/**
+	 * @return The count of lookups served from the cache.
+	 */
+	public long getHitCount();
+	/**
+	 * @return The count of lookups which needed DNS resolving.
+	 */
+	public long getMissCount();
+	/**
+	 * @return The count of entries removed before their expiration, because 
+	 * the cache was full.
+	 */
+	public long getEvictionCount();
+	/**
+	 * @return The current count of cached domains.
+	 */
+	public int getSize();
+	/**
+	 * Remove all cached entries.
+	 */
+	public void clear();
+}
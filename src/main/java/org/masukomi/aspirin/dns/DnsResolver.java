@@ -15,8 +15,9 @@ import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 /**
- * This object checks all DNS contents and get MX records for emails.
- * TODO Create DNS cache
+ * This object checks all DNS contents and get MX records for emails. The 
+ * results are stored in a {@link DnsCache}, so a domain is resolved again 
+ * only if the TTL of its records is expired.
  * 
  * @author Laszlo Solova
  *
@@ -25,6 +26,51 @@ public class DnsResolver {
 	
 	public static final String SMTP_PROTOCOL_PREFIX = "smtp://";
 	
+	/** The TTL of cached results is never longer than an hour. */
+	private static final long MAX_TTL = 3600000L;
+	
+	private static DnsCache cache = new DnsCache();
+	
+	static {
+		cache.registerMBean();
+	}
+	
+	/**
+	 * @return The cache of resolved mail servers. Its statistics are 
+	 * registered as JMX bean {@value DnsCache#MBEAN_NAME}.
+	 */
+	public static DnsCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * <p>This method gives back the host name(s) where we can send the email. 
+	 * The result is served from the cache if it is not expired, else it is 
+	 * resolved by {@link #lookupMXRecordsForHost(String, long[])} and 
+	 * stored in the cache.</p>
+	 * 
+	 * <p>Temporary DNS failures are not cached.</p>
+	 * 
+	 * @param hostName We search the associated MX server of this hostname.
+	 * @return Collection of URLName objects. If no MX server found, then it 
+	 * gives back an empty collection.
+	 */
+	public static Collection<URLName> getMXRecordsForHost(String hostName) {
+		String cacheKey = hostName.toLowerCase();
+		Collection<URLName> recordsColl = cache.get(cacheKey);
+		if( recordsColl != null )
+			return recordsColl;
+		/*
+		 * First element is the minimal TTL of used records, second element 
+		 * is non-zero if there were a temporary failure in resolving.
+		 */
+		long[] lookupInfo = new long[]{MAX_TTL, 0};
+		recordsColl = lookupMXRecordsForHost(hostName, lookupInfo);
+		if( recordsColl != null && lookupInfo[1] == 0 )
+			cache.put(cacheKey, recordsColl, lookupInfo[0]);
+		return recordsColl;
+	}
+	
 	/**
 	 * <p>This method gives back the host name(s) where we can send the email. 
 	 * It is copied from it's original place in RemoteDelivery object.</p>
@@ -41,17 +87,19 @@ public class DnsResolver {
 	 * his reworking of this method.
 	 * 
 	 * @param hostName We search the associated MX server of this hostname.
+	 * @param lookupInfo Minimal TTL of used records in milliseconds and 
+	 * temporary failure flag, they are filled by this method.
 	 * @return Collection of URLName objects. If no MX server found, then it 
 	 * gives back an empty collection.
 	 * 
 	 */
 	
-	public static Collection<URLName> getMXRecordsForHost(String hostName) {
+	static Collection<URLName> lookupMXRecordsForHost(String hostName, long[] lookupInfo) {
 
 		Vector<URLName> recordsColl = null;
 		try {
 			boolean foundOriginalMX = true;
-			Record[] records = new Lookup(hostName, Type.MX).run();
+			Record[] records = runLookup(hostName, Type.MX, lookupInfo);
 			
 			/*
 			 * Sometimes we should send an email to a subdomain which does not 
@@ -72,7 +120,7 @@ public class DnsResolver {
 					)
 				{
 					upperLevelHostName = upperLevelHostName.substring(upperLevelHostName.indexOf(".")+1);
-					records = new Lookup(upperLevelHostName, Type.MX).run();
+					records = runLookup(upperLevelHostName, Type.MX, lookupInfo);
 				}
 			}
 
@@ -116,7 +164,7 @@ public class DnsResolver {
              */
 			if( !foundOriginalMX )
 			{
-				Record[] recordsTypeA = new Lookup(hostName, Type.A).run();
+				Record[] recordsTypeA = runLookup(hostName, Type.A, lookupInfo);
 				if (recordsTypeA != null && recordsTypeA.length > 0)
 				{
 					recordsColl.add(0, new URLName(SMTP_PROTOCOL_PREFIX + hostName));
@@ -129,4 +177,17 @@ public class DnsResolver {
 
 		return recordsColl;
 	}
+	
+	private static Record[] runLookup(String hostName, int type, long[] lookupInfo) throws TextParseException {
+		Lookup lookup = new Lookup(hostName, type);
+		Record[] records = lookup.run();
+		if( lookup.getResult() == Lookup.TRY_AGAIN )
+			lookupInfo[1] = 1;
+		if( records != null )
+		{
+			for( Record record : records )
+				lookupInfo[0] = Math.min(lookupInfo[0], record.getTTL()*1000L);
+		}
+		return records;
+	}
 }
@@ -0,0 +1,25 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A MailStore, which could store more messages together cheaper than one by 
+ * one, for example with one sync of the written files. Bulk adding uses 
+ * this interface, other stores get the messages one by one.
+ * 
+ * @author Laszlo Solova
+ *
+ */
+public interface BatchMailStore {
+	/**
+	 * Store all messages. If a message could not be stored, then none of 
+	 * the messages is stored.
+	 * 
+	 * @param messages Messages by their mail IDs.
+	 * @throws MessagingException If the messages could not be stored.
+	 */
+	public void setAll(Map<String, MimeMessage> messages) throws MessagingException;
+}
@@ -0,0 +1,88 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * <p>Stream of a buffer, which could be shared by the parts of a
+ * MimeMessage, so contents are read from the buffer only when they are
+ * used. Positions of the stream are relative to its buffer.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+class BufferInputStream extends InputStream implements SharedInputStream {
+	
+	private final ByteBuffer buffer;
+	private int mark = 0;
+	
+	BufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * @return The buffer of stream, its position is the position of stream.
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if( len == 0 )
+			return 0;
+		if( !buffer.hasRemaining() )
+			return -1;
+		int readLength = Math.min(len, buffer.remaining());
+		buffer.get(b, off, readLength);
+		return readLength;
+	}
+	
+	@Override
+	public long skip(long n) {
+		int skipLength = (int)Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position()+skipLength);
+		return skipLength;
+	}
+	
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = buffer.position();
+	}
+	
+	@Override
+	public synchronized void reset() {
+		buffer.position(mark);
+	}
+	
+	@Override
+	public long getPosition() {
+		return buffer.position();
+	}
+	
+	@Override
+	public InputStream newStream(long start, long end) {
+		ByteBuffer part = buffer.duplicate();
+		part.limit(( end < 0 ) ? buffer.limit() : (int)end);
+		part.position((int)start);
+		return new BufferInputStream(part.slice());
+	}
+
+}
@@ -0,0 +1,339 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This store keeps the recently used MimeMessage objects of an other
+ * MailStore in memory. The size of cache is bounded in bytes, every
+ * message is counted by its stored size. If the cache is full, the least
+ * recently used messages are removed. Messages larger than the whole cache
+ * are not cached.</p>
+ *
+ * <p>Messages sent to a lot of recipients are used by every delivery, so
+ * they are kept parsed in the cache, while the memory usage is limited.
+ * The usage statistics are available through {@link CachingMailStoreMBean},
+ * which is registered in the platform MBean server as
+ * {@value #MBEAN_NAME} on initialization.</p>
+ *
+ * <p>Configuration properties:</p>
+ * <ul>
+ *   <li>{@value #PARAM_STORE_CACHE_DELEGATE}: class name of the underlying
+ *   MailStore, required.</li>
+ *   <li>{@value #PARAM_STORE_CACHE_SIZE}: size of cache in bytes, default
+ *   is 32 MB.</li>
+ * </ul>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class CachingMailStore implements MailStore, BatchMailStore, CachingMailStoreMBean, Closeable {
+	
+	public static final String PARAM_STORE_CACHE_DELEGATE = "aspirin.store.cache.delegate";
+	public static final String PARAM_STORE_CACHE_SIZE = "aspirin.store.cache.size";
+	public static final String MBEAN_NAME = "org.masukomi.aspirin:type=CachingMailStore";
+	
+	private static final long DEFAULT_CACHE_SIZE = 32L*1024*1024;
+	
+	private final MailStore delegate;
+	/** Cached messages in order of their usage, least recently used first. */
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+	private long maxBytes;
+	private long usedBytes = 0;
+	/** Count of removed messages, loaded messages are not cached if it has changed while loading. */
+	private long removalCount = 0;
+	private ObjectName mbeanName = null;
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	private AtomicLong evictionCount = new AtomicLong();
+	
+	public CachingMailStore() throws Exception {
+		this(createDelegate(), getCacheSizeProperty());
+	}
+	
+	/**
+	 * @param delegate The underlying store.
+	 * @param maxBytes The maximal size of cached messages in bytes.
+	 */
+	public CachingMailStore(MailStore delegate, long maxBytes) {
+		this.delegate = delegate;
+		this.maxBytes = maxBytes;
+	}
+	
+	private static MailStore createDelegate() throws Exception {
+		Object delegateClassName = Aspirin.getConfiguration().getProperty(PARAM_STORE_CACHE_DELEGATE);
+		if( delegateClassName == null )
+			throw new Exception("Underlying mail store is undefined. Please, check configuration.");
+		return (MailStore)Class.forName(delegateClassName.toString()).newInstance();
+	}
+	
+	private static long getCacheSizeProperty() {
+		Object cacheSize = Aspirin.getConfiguration().getProperty(PARAM_STORE_CACHE_SIZE);
+		return ( cacheSize == null ) ? DEFAULT_CACHE_SIZE : Long.parseLong(cacheSize.toString());
+	}
+	
+	@Override
+	public MimeMessage get(String mailid) {
+		long loadRemovalCount;
+		synchronized (entries) {
+			CacheEntry entry = entries.get(mailid);
+			if( entry != null )
+			{
+				hitCount.incrementAndGet();
+				return entry.message;
+			}
+			loadRemovalCount = removalCount;
+		}
+		missCount.incrementAndGet();
+		MimeMessage msg = delegate.get(mailid);
+		if( msg != null )
+			put(mailid, msg, loadRemovalCount);
+		return msg;
+	}
+	
+	@Override
+	public List<String> getMailIds() {
+		return delegate.getMailIds();
+	}
+	
+	@Override
+	public void init() {
+		delegate.init();
+		registerMBean();
+	}
+	
+	@Override
+	public void remove(String mailid) {
+		delegate.remove(mailid);
+		synchronized (entries) {
+			removalCount++;
+			CacheEntry entry = entries.remove(mailid);
+			if( entry != null )
+				usedBytes -= entry.size;
+		}
+	}
+	
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		delegate.set(mailid, msg);
+		put(mailid, msg, -1);
+	}
+	
+	@Override
+	public void setAll(Map<String, MimeMessage> messages) throws MessagingException {
+		if( delegate instanceof BatchMailStore )
+		{
+			((BatchMailStore)delegate).setAll(messages);
+		}
+		else
+		{
+			for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+				delegate.set(message.getKey(), message.getValue());
+		}
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+			put(message.getKey(), message.getValue(), -1);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		unregisterMBean();
+		clear();
+		if( delegate instanceof Closeable )
+			((Closeable)delegate).close();
+	}
+	
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	@Override
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	
+	@Override
+	public long getUsedBytes() {
+		synchronized (entries) {
+			return usedBytes;
+		}
+	}
+	
+	@Override
+	public long getMaxBytes() {
+		synchronized (entries) {
+			return maxBytes;
+		}
+	}
+	
+	@Override
+	public void setMaxBytes(long maxBytes) {
+		synchronized (entries) {
+			this.maxBytes = maxBytes;
+			evict();
+		}
+	}
+	
+	@Override
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			usedBytes = 0;
+		}
+	}
+	
+	/**
+	 * @return The underlying store.
+	 */
+	public MailStore getDelegate() {
+		return delegate;
+	}
+	
+	/**
+	 * @param loadRemovalCount The count of removals before the message was
+	 * loaded from the underlying store, or -1 if the message is stored now.
+	 * If any message was removed meanwhile, it could be the loaded one, so
+	 * the loaded message is not cached.
+	 */
+	private void put(String mailid, MimeMessage msg, long loadRemovalCount) {
+		long size = estimateSize(mailid, msg);
+		synchronized (entries) {
+			if( 0 <= loadRemovalCount && loadRemovalCount != removalCount )
+				return;
+			CacheEntry replacedEntry = entries.remove(mailid);
+			if( replacedEntry != null )
+				usedBytes -= replacedEntry.size;
+			if( maxBytes < size )
+				return;
+			entries.put(mailid, new CacheEntry(msg, size));
+			usedBytes += size;
+			evict();
+		}
+	}
+	
+	private synchronized void registerMBean() {
+		if( mbeanName != null )
+			return;
+		try {
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			mbeanName = name;
+		} catch (JMException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Cache statistics could not be registered. Name "+MBEAN_NAME,e);
+		}
+	}
+	
+	private synchronized void unregisterMBean() {
+		if( mbeanName == null )
+			return;
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			if( mbeanServer.isRegistered(mbeanName) )
+				mbeanServer.unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Cache statistics could not be unregistered. Name "+mbeanName,e);
+		}
+		mbeanName = null;
+	}
+	
+	/**
+	 * Remove the least recently used entries until the cache is not larger
+	 * than its maximal size. Caller have to hold the lock of entries.
+	 */
+	private void evict() {
+		Iterator<CacheEntry> entryIt = entries.values().iterator();
+		while( maxBytes < usedBytes && entryIt.hasNext() )
+		{
+			usedBytes -= entryIt.next().size;
+			entryIt.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * The stored size is used if the underlying store gives it back,
+	 * otherwise the size of content and headers. Content size of new
+	 * messages is unknown, these are counted by writing them out.
+	 */
+	private long estimateSize(String mailid, MimeMessage msg) {
+		if( delegate instanceof RawMailStore )
+		{
+			ByteBuffer rawMessage = ((RawMailStore)delegate).getRawMessage(mailid);
+			if( rawMessage != null )
+				return rawMessage.remaining();
+		}
+		try {
+			long size = msg.getSize();
+			if( 0 <= size )
+			{
+				Enumeration<?> headerLines = msg.getAllHeaderLines();
+				while( headerLines != null && headerLines.hasMoreElements() )
+					size += headerLines.nextElement().toString().length() + 2;
+				return size;
+			}
+			CountingOutputStream out = new CountingOutputStream();
+			msg.writeTo(out);
+			return out.count;
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Size of message could not be estimated. Name "+mailid,e);
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Size of message could not be estimated. Name "+mailid,e);
+		}
+		return Long.MAX_VALUE;
+	}
+	
+	private static class CacheEntry {
+		private final MimeMessage message;
+		private final long size;
+		
+		CacheEntry(MimeMessage message, long size) {
+			this.message = message;
+			this.size = size;
+		}
+	}
+	
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+		
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.masukomi.aspirin.store.mail;
+
+/**
+ * <p>This is the JMX bean of the message cache. It gives back the usage 
+ * statistics of the cache, and the size of cache could be changed.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public interface CachingMailStoreMBean {
+	/**
+	 * @return The count of messages served from the cache.
+	 */
+	public long getHitCount();
+	/**
+	 * @return The count of messages loaded from the underlying store.
+	 */
+	public long getMissCount();
+	/**
+	 * @return The count of messages removed from the cache, because the 
+	 * cache was full.
+	 */
+	public long getEvictionCount();
+	/**
+	 * @return The current count of cached messages.
+	 */
+	public int getSize();
+	/**
+	 * @return The estimated size of cached messages in bytes.
+	 */
+	public long getUsedBytes();
+	/**
+	 * @return The maximal size of cached messages in bytes.
+	 */
+	public long getMaxBytes();
+	/**
+	 * Set the maximal size of cached messages. Least recently used messages 
+	 * are removed, if the cache is larger.
+	 * @param maxBytes The maximal size in bytes.
+	 */
+	public void setMaxBytes(long maxBytes);
+	/**
+	 * Remove all cached messages.
+	 */
+	public void clear();
+}
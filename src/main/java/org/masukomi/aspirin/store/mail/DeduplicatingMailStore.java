@@ -0,0 +1,347 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This store implementation splits every message into its header block
+ * and its body. Headers are stored per mail, but a body is stored only once
+ * by its content hash, and it is shared by every mail with the same body. A
+ * body is deleted, when its last mail is removed. The message is assembled
+ * from its headers and body on get.</p>
+ *
+ * <p>Mails of a campaign, which differ only in their headers (recipients,
+ * mail ID), need the space and the write of one body. The body of a
+ * multipart message contains its boundary, so these messages share their
+ * body only if they are copies of the same message, for example created by
+ * the <code>MimeMessage(MimeMessage)</code> constructor.</p>
+ *
+ * <p>Configuration properties:</p>
+ * <ul>
+ *   <li>{@value #PARAM_STORE_DEDUP_DIR}: directory of header and body
+ *   files, required.</li>
+ * </ul>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class DeduplicatingMailStore implements MailStore, RawMailStore {
+	
+	public static final String PARAM_STORE_DEDUP_DIR = "aspirin.store.dedup.dir";
+	
+	private static final String HEADER_DIR_NAME = "headers";
+	private static final String BODY_DIR_NAME = "bodies";
+	private static final String HEADER_FILE_SUFFIX = ".hdr";
+	private static final String BODY_FILE_SUFFIX = ".body";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	private final File headerDir;
+	private final File bodyDir;
+	/** Body keys by mail IDs. */
+	private final Map<String, String> bodyKeys = new HashMap<String, String>();
+	/** Count of mails by body keys. */
+	private final Map<String, Integer> bodyRefCounts = new HashMap<String, Integer>();
+	
+	public DeduplicatingMailStore() throws Exception {
+		this((String)Aspirin.getConfiguration().getProperty(PARAM_STORE_DEDUP_DIR));
+	}
+	
+	DeduplicatingMailStore(String rootDirPath) throws Exception {
+		if( rootDirPath == null )
+			throw new Exception("Store directory is undefined. Please, check configuration.");
+		this.headerDir = new File(rootDirPath, HEADER_DIR_NAME);
+		this.bodyDir = new File(rootDirPath, BODY_DIR_NAME);
+	}
+	
+	@Override
+	public MimeMessage get(String mailid) {
+		ByteBuffer rawMessage = getRawMessage(mailid);
+		if( rawMessage == null )
+			return null;
+		try {
+			return new RawMimeMessage(Session.getDefaultInstance(System.getProperties()), rawMessage);
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
+		}
+		return null;
+	}
+	
+	@Override
+	public synchronized List<String> getMailIds() {
+		return new ArrayList<String>(bodyKeys.keySet());
+	}
+	
+	/**
+	 * @return The message assembled from its headers and its body. The files
+	 * are read under the lock of store, so they are not replaced or deleted
+	 * meanwhile.
+	 */
+	@Override
+	public synchronized ByteBuffer getRawMessage(String mailid) {
+		String bodyKey = bodyKeys.get(mailid);
+		if( bodyKey == null )
+			return null;
+		try {
+			File headerFile = getHeaderFile(mailid);
+			File bodyFile = getBodyFile(bodyKey);
+			int keyLength = bodyKey.length() + 2;
+			byte[] rawMessage = new byte[(int)(headerFile.length() - keyLength + bodyFile.length())];
+			int headerLength = readFile(headerFile, keyLength, rawMessage, 0);
+			readFile(bodyFile, 0, rawMessage, headerLength);
+			return ByteBuffer.wrap(rawMessage).asReadOnlyBuffer();
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read files for name "+mailid,e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Read the body keys of stored headers and count the mails of bodies.
+	 * Bodies without mail are deleted.
+	 */
+	@Override
+	public synchronized void init() {
+		headerDir.mkdirs();
+		bodyDir.mkdirs();
+		File[] headerFiles = headerDir.listFiles();
+		if( headerFiles != null )
+		{
+			for( File headerFile : headerFiles )
+			{
+				String name = headerFile.getName();
+				if( !name.endsWith(HEADER_FILE_SUFFIX) )
+				{
+					headerFile.delete();
+					continue;
+				}
+				try {
+					String bodyKey = readBodyKey(headerFile);
+					if( getBodyFile(bodyKey).exists() )
+						addMail(decodeFileName(name.substring(0, name.length()-HEADER_FILE_SUFFIX.length())), bodyKey);
+					else
+						AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No body found for header file "+headerFile.getAbsolutePath());
+				} catch (IOException e) {
+					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read header file "+headerFile.getAbsolutePath(),e);
+				}
+			}
+		}
+		File[] bodyFiles = bodyDir.listFiles();
+		if( bodyFiles != null )
+		{
+			for( File bodyFile : bodyFiles )
+			{
+				String name = bodyFile.getName();
+				if( !name.endsWith(BODY_FILE_SUFFIX) || !bodyRefCounts.containsKey(name.substring(0, name.length()-BODY_FILE_SUFFIX.length())) )
+					bodyFile.delete();
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void remove(String mailid) {
+		String bodyKey = bodyKeys.remove(mailid);
+		if( bodyKey == null )
+			return;
+		getHeaderFile(mailid).delete();
+		releaseBody(bodyKey);
+	}
+	
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		try {
+			RawBuffer rawMessage = new RawBuffer();
+			msg.writeTo(rawMessage);
+			put(mailid, rawMessage.getBuffer(), rawMessage.size());
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write files for name "+mailid,e);
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
+		}
+	}
+	
+	/**
+	 * Store the headers of message, and its body if there is no such body
+	 * stored yet.
+	 */
+	synchronized void put(String mailid, byte[] rawMessage, int length) throws IOException {
+		int bodyOffset = findBodyOffset(rawMessage, length);
+		String bodyKey = createBodyKey(rawMessage, bodyOffset, length);
+		if( !bodyRefCounts.containsKey(bodyKey) )
+			writeFile(getBodyFile(bodyKey), null, rawMessage, bodyOffset, length - bodyOffset);
+		writeFile(getHeaderFile(mailid), bodyKey, rawMessage, 0, bodyOffset);
+		String previousBodyKey = bodyKeys.get(mailid);
+		addMail(mailid, bodyKey);
+		if( previousBodyKey != null )
+			releaseBody(previousBodyKey);
+	}
+	
+	private void addMail(String mailid, String bodyKey) {
+		bodyKeys.put(mailid, bodyKey);
+		Integer refCount = bodyRefCounts.get(bodyKey);
+		bodyRefCounts.put(bodyKey, ( refCount == null ) ? 1 : refCount + 1);
+	}
+	
+	private void releaseBody(String bodyKey) {
+		int refCount = bodyRefCounts.get(bodyKey) - 1;
+		if( 0 < refCount )
+		{
+			bodyRefCounts.put(bodyKey, refCount);
+		}
+		else
+		{
+			bodyRefCounts.remove(bodyKey);
+			getBodyFile(bodyKey).delete();
+		}
+	}
+	
+	/**
+	 * @return Offset of body, it is after the first empty line. If there is
+	 * no empty line, then the whole message is the header block.
+	 */
+	private static int findBodyOffset(byte[] rawMessage, int length) {
+		for( int i = 0; i < length - 1; i++ )
+		{
+			if( rawMessage[i] != '\n' )
+				continue;
+			if( rawMessage[i+1] == '\n' )
+				return i + 2;
+			if( rawMessage[i+1] == '\r' && i + 2 < length && rawMessage[i+2] == '\n' )
+				return i + 3;
+		}
+		return length;
+	}
+	
+	/**
+	 * @return SHA-1 hash and length of the body.
+	 */
+	private static String createBodyKey(byte[] rawMessage, int bodyOffset, int length) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(rawMessage, bodyOffset, length - bodyOffset);
+		StringBuilder bodyKey = new StringBuilder(50);
+		for( byte b : digest.digest() )
+		{
+			bodyKey.append(Character.forDigit((b >> 4) & 0xf, 16));
+			bodyKey.append(Character.forDigit(b & 0xf, 16));
+		}
+		return bodyKey.append('-').append(length - bodyOffset).toString();
+	}
+	
+	/**
+	 * Write the file through a temporary file, so a file is never partially
+	 * written. The body key is the first line of header files.
+	 */
+	private static void writeFile(File file, String bodyKey, byte[] content, int offset, int length) throws IOException {
+		File tempFile = new File(file.getPath()+TEMP_FILE_SUFFIX);
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			if( bodyKey != null )
+				out.write((bodyKey+"\r\n").getBytes("US-ASCII"));
+			out.write(content, offset, length);
+		} finally {
+			out.close();
+		}
+		if( !tempFile.renameTo(file) )
+		{
+			file.delete();
+			if( !tempFile.renameTo(file) )
+				throw new IOException("File could not be renamed: "+tempFile.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Read the file from the given position into the buffer.
+	 *
+	 * @return Count of read bytes.
+	 */
+	private static int readFile(File file, int position, byte[] buffer, int offset) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			long skipped = 0;
+			while( skipped < position )
+				skipped += in.skip(position - skipped);
+			int readLength = 0;
+			int count;
+			while( offset + readLength < buffer.length && (count = in.read(buffer, offset + readLength, buffer.length - offset - readLength)) != -1 )
+				readLength += count;
+			return readLength;
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static String readBodyKey(File headerFile) throws IOException {
+		FileInputStream in = new FileInputStream(headerFile);
+		try {
+			StringBuilder bodyKey = new StringBuilder(50);
+			int b;
+			while( (b = in.read()) != -1 && b != '\r' )
+				bodyKey.append((char)b);
+			return bodyKey.toString();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private File getHeaderFile(String mailid) {
+		return new File(headerDir, encodeFileName(mailid)+HEADER_FILE_SUFFIX);
+	}
+	
+	private File getBodyFile(String bodyKey) {
+		return new File(bodyDir, bodyKey+BODY_FILE_SUFFIX);
+	}
+	
+	private static String encodeFileName(String mailid) {
+		try {
+			return URLEncoder.encode(mailid, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String decodeFileName(String encodedMailid) {
+		try {
+			return URLDecoder.decode(encodedMailid, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Gives access to the written bytes without copying them.
+	 */
+	private static class RawBuffer extends ByteArrayOutputStream {
+		RawBuffer() {
+			super(8192);
+		}
+		
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+}
@@ -1,16 +1,30 @@
 package org.masukomi.aspirin.store.mail;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -19,26 +33,49 @@ import javax.mail.internet.MimeMessage;
 import org.masukomi.aspirin.AspirinInternal;
 
 /**
- * This store implementation is designed to reduce memory 
+ * <p>This store implementation is designed to reduce memory 
  * usage of MimeMessage instances. All MimeMessage instance 
  * are stored in files and in weak references too. So 
  * garbage collector can remove all large MimeMessage object 
- * from memory if necessary.
+ * from memory if necessary.</p>
+ * 
+ * <p>The name of a message file is the encoded mail ID. On closing the 
+ * list of files is written to a manifest, which is read instead of listing 
+ * the directories on the next startup. If the directories are listed, only 
+ * the headers of messages are read to get their mail IDs.</p>
+ * 
+ * <p>A message is written to a temporary file first, which is synced to 
+ * disk and renamed, so a message file is never partially written. Files 
+ * are synced in batches by a background thread in every sync interval, 
+ * and set() returns after the file is synced.</p>
  * 
  * @author Laszlo Solova
  *
  */
-public class FileMailStore implements MailStore {
+public class FileMailStore implements MailStore, RawMailStore, BatchMailStore, Closeable {
+	
+	private static final String MESSAGE_FILE_SUFFIX = ".msg";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String MANIFEST_FILE_NAME = "manifest";
+	private static final String MANIFEST_HEADER = "aspirin-filemailstore-manifest 1";
+	private static final String MANIFEST_END = "end ";
 	
 	private File rootDir;
 	private int subDirCount = 3;
-	private Random rand = new Random();
+	private long syncInterval = 10;
+	private long mappedMessageSize = 1024 * 1024;
 	private Map<String, WeakReference<MimeMessage>> messageMap = new HashMap<String, WeakReference<MimeMessage>>();
 	private Map<String, String> messagePathMap = new HashMap<String, String>();
+	private FileSyncer fileSyncer = null;
 	
 	@Override
 	public MimeMessage get(String mailid) {
-		WeakReference<MimeMessage> msgRef = messageMap.get(mailid);
+		WeakReference<MimeMessage> msgRef;
+		String msgPath;
+		synchronized (messageMap) {
+			msgRef = messageMap.get(mailid);
+			msgPath = messagePathMap.get(mailid);
+		}
 		MimeMessage msg = null;
 		if( msgRef != null )
 		{
@@ -46,10 +83,20 @@ public class FileMailStore implements MailStore {
 			if( msg == null )
 			{
 				try {
-					msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()),new FileInputStream(new File(messagePathMap.get(mailid))));
-					msgRef = new WeakReference<MimeMessage>(msg);
+					InputStream msgIn = new BufferedInputStream(new FileInputStream(new File(msgPath)));
+					try {
+						msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()),msgIn);
+					} finally {
+						msgIn.close();
+					}
+					synchronized (messageMap) {
+						if( messageMap.containsKey(mailid) )
+							messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
+					}
 				} catch (FileNotFoundException e) {
 					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found for name "+mailid,e);
+				} catch (IOException e) {
+					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read file for name "+mailid,e);
 				} catch (MessagingException e) {
 					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
 				}
@@ -60,78 +107,335 @@ public class FileMailStore implements MailStore {
 	
 	@Override
 	public List<String> getMailIds() {
-		return new ArrayList<String>(messageMap.keySet());
+		synchronized (messageMap) {
+			return new ArrayList<String>(messageMap.keySet());
+		}
 	}
 	
+	/**
+	 * @return Read-only buffer of the message file. Files smaller than the 
+	 * mapped message size are read into the heap, only larger files are 
+	 * mapped into memory, because a mapping is released by the garbage 
+	 * collector only.
+	 */
 	@Override
-	public void init() {
-		if( !rootDir.exists() ) { return; }
-		File[] subdirs = rootDir.listFiles();
-		if( subdirs == null ) { return; }
-		for( File subDir : subdirs )
-		{
-			if( subDir.isDirectory() )
-			{
-				File[] subdirFiles = subDir.listFiles();
-				if( subdirFiles == null ) { continue; }
-				for( File msgFile : subdirFiles )
+	public ByteBuffer getRawMessage(String mailid) {
+		String messagePath;
+		synchronized (messageMap) {
+			messagePath = messagePathMap.get(mailid);
+		}
+		if( messagePath == null )
+			return null;
+		try {
+			FileInputStream messageIn = new FileInputStream(messagePath);
+			try {
+				FileChannel messageChannel = messageIn.getChannel();
+				long messageSize = messageChannel.size();
+				if( mappedMessageSize <= messageSize )
+					return messageChannel.map(FileChannel.MapMode.READ_ONLY, 0, messageSize);
+				ByteBuffer messageBuffer = ByteBuffer.allocate((int)messageSize);
+				while( messageBuffer.hasRemaining() )
 				{
-					try {
-						MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()),new FileInputStream(msgFile));
-						String mailid = AspirinInternal.getMailID(msg);
-						synchronized (messageMap) {
-							messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-							messagePathMap.put(mailid, msgFile.getAbsolutePath());
-						}
-					} catch (FileNotFoundException e) {
-						AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found with name "+msgFile.getAbsolutePath(),e);
-					} catch (MessagingException e) {
-						AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception in file "+msgFile.getAbsolutePath(),e);
-					}
+					if( messageChannel.read(messageBuffer) < 0 )
+						throw new IOException("Message file is truncated: "+messagePath);
 				}
+				messageBuffer.flip();
+				return messageBuffer.asReadOnlyBuffer();
+			} finally {
+				messageIn.close();
 			}
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read file for name "+mailid,e);
 		}
+		return null;
 	}
-
+	
+	/**
+	 * Load the message files from the manifest, or if there is no complete 
+	 * manifest, from the sub directories. Message bodies are not read, mail 
+	 * IDs are read from the manifest or from the headers of messages.
+	 */
+	@Override
+	public void init() {
+		if( 0 < syncInterval )
+		{
+			fileSyncer = new FileSyncer();
+			fileSyncer.start();
+		}
+		if( !rootDir.exists() ) { return; }
+		File manifestFile = new File(rootDir, MANIFEST_FILE_NAME);
+		if( !manifestFile.exists() || !readManifest(manifestFile) )
+			readSubDirs();
+		// The manifest is valid until the next change
+		manifestFile.delete();
+		AspirinInternal.getConfiguration().getLogger().info(getClass().getSimpleName()+" initialized. Messages: "+messagePathMap.size());
+	}
+	
 	@Override
 	public void remove(String mailid) {
 		synchronized (messageMap) {
 			messageMap.remove(mailid);
-			synchronized (messagePathMap) {
-				File f = new File(messagePathMap.get(mailid));
-				f.delete();
-				messagePathMap.remove(mailid);
-			}
+			String msgPath = messagePathMap.remove(mailid);
+			if( msgPath != null && !new File(msgPath).delete() )
+				AspirinInternal.getConfiguration().getLogger().warn(getClass().getSimpleName()+" Could not delete file for name "+mailid+": "+msgPath);
 		}
 	}
 	
 	@Override
 	public void set(String mailid, MimeMessage msg) {
-		String filepath;
-		// Create file path
+		try {
+			setAll(Collections.singletonMap(mailid, msg));
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write file for name "+mailid,e);
+		}
+	}
+	
+	/**
+	 * Write all messages into temporary files, sync them together and 
+	 * rename them. If a message could not be written, then none of them is 
+	 * stored.
+	 */
+	@Override
+	public void setAll(Map<String, MimeMessage> messages) throws MessagingException {
 		if( rootDir == null )
 			throw new RuntimeException(getClass().getSimpleName()+" Please set up root directory.");
-		String subDirName = String.valueOf(rand.nextInt(subDirCount));
-		File dir = new File(rootDir, subDirName);
-		if( !dir.exists() )
-			dir.mkdirs();
-		filepath = new File(dir, mailid+".msg").getAbsolutePath();
-		// Save informations
+		List<File> msgFiles = new ArrayList<File>(messages.size());
+		List<File> tempFiles = new ArrayList<File>(messages.size());
+		List<FileOutputStream> fileOuts = new ArrayList<FileOutputStream>(messages.size());
+		String mailid = null;
 		try {
-			File msgFile = new File(filepath);
-			if( msgFile.exists() ) { msgFile.delete(); }
-			if( !msgFile.exists() ) { msgFile.createNewFile(); }
-			msg.writeTo(new FileOutputStream(msgFile));
+			try {
+				List<FileChannel> fileChannels = new ArrayList<FileChannel>(messages.size());
+				for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+				{
+					// Create file path
+					mailid = message.getKey();
+					String subDirName = String.valueOf((mailid.hashCode() & 0x7fffffff) % subDirCount);
+					File dir = new File(rootDir, subDirName);
+					if( !dir.exists() )
+						dir.mkdirs();
+					File msgFile = new File(dir, encodeFileName(mailid)+MESSAGE_FILE_SUFFIX);
+					File tempFile = new File(dir, msgFile.getName()+TEMP_FILE_SUFFIX);
+					msgFiles.add(msgFile);
+					tempFiles.add(tempFile);
+					// Save informations
+					FileOutputStream fileOut = new FileOutputStream(tempFile);
+					fileOuts.add(fileOut);
+					OutputStream msgOut = new BufferedOutputStream(fileOut, 65536);
+					message.getValue().writeTo(msgOut);
+					msgOut.flush();
+					fileChannels.add(fileOut.getChannel());
+				}
+				sync(fileChannels);
+			} finally {
+				for( FileOutputStream fileOut : fileOuts )
+					fileOut.close();
+			}
+			for( int i = 0; i < tempFiles.size(); i++ )
+			{
+				if( !tempFiles.get(i).renameTo(msgFiles.get(i)) )
+				{
+					msgFiles.get(i).delete();
+					if( !tempFiles.get(i).renameTo(msgFiles.get(i)) )
+						throw new IOException("Temporary file could not be renamed: "+tempFiles.get(i).getAbsolutePath());
+				}
+			}
+		} catch (IOException e) {
+			for( File tempFile : tempFiles )
+				tempFile.delete();
+			throw new MessagingException(getClass().getSimpleName()+" Could not write files, last name "+mailid, e);
+		} catch (MessagingException e) {
+			for( File tempFile : tempFiles )
+				tempFile.delete();
+			throw e;
+		}
+		int i = 0;
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+		{
+			String msgPath = msgFiles.get(i++).getAbsolutePath();
+			String previousPath;
 			synchronized (messageMap) {
-				messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-				messagePathMap.put(mailid, filepath);
+				messageMap.put(message.getKey(), new WeakReference<MimeMessage>(message.getValue()));
+				previousPath = messagePathMap.put(message.getKey(), msgPath);
 			}
-		} catch (FileNotFoundException e) {
-			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found for name "+mailid,e);
+			// File of a previous version could be in an other directory
+			if( previousPath != null && !previousPath.equals(msgPath) )
+				new File(previousPath).delete();
+		}
+	}
+	
+	/**
+	 * Stop syncing files and write the manifest of message files.
+	 */
+	@Override
+	public void close() {
+		FileSyncer stoppedFileSyncer = fileSyncer;
+		if( stoppedFileSyncer != null )
+		{
+			stoppedFileSyncer.shutdown();
+			try {
+				stoppedFileSyncer.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if( rootDir == null || !rootDir.exists() )
+			return;
+		File manifestFile = new File(rootDir, MANIFEST_FILE_NAME);
+		File tempFile = new File(rootDir, MANIFEST_FILE_NAME+TEMP_FILE_SUFFIX);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(tempFile);
+			try {
+				Writer manifestOut = new OutputStreamWriter(new BufferedOutputStream(fileOut, 65536), "UTF-8");
+				manifestOut.write(MANIFEST_HEADER+"\n");
+				String rootPath = rootDir.getAbsolutePath();
+				int count = 0;
+				synchronized (messageMap) {
+					for( String msgPath : messagePathMap.values() )
+					{
+						manifestOut.write(msgPath.substring(rootPath.length()+1)+"\n");
+						count++;
+					}
+				}
+				manifestOut.write(MANIFEST_END+count+"\n");
+				manifestOut.flush();
+				fileOut.getChannel().force(true);
+			} finally {
+				fileOut.close();
+			}
+			manifestFile.delete();
+			if( !tempFile.renameTo(manifestFile) )
+				throw new IOException("Temporary file could not be renamed: "+tempFile.getAbsolutePath());
 		} catch (IOException e) {
-			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write file for name "+mailid,e);
+			tempFile.delete();
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write manifest.",e);
+		}
+	}
+	
+	/**
+	 * Read message files from the manifest.
+	 * 
+	 * @return False, if the manifest is incomplete.
+	 */
+	private boolean readManifest(File manifestFile) {
+		Map<String, String> manifestPathMap = new HashMap<String, String>();
+		try {
+			BufferedReader manifestIn = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+			try {
+				if( !MANIFEST_HEADER.equals(manifestIn.readLine()) )
+					return false;
+				String line;
+				while( (line = manifestIn.readLine()) != null )
+				{
+					if( line.startsWith(MANIFEST_END) )
+					{
+						if( Integer.parseInt(line.substring(MANIFEST_END.length())) != manifestPathMap.size() )
+							return false;
+						for( Map.Entry<String, String> manifestEntry : manifestPathMap.entrySet() )
+							addMessageFile(manifestEntry.getKey(), manifestEntry.getValue());
+						return true;
+					}
+					File msgFile = new File(rootDir, line);
+					manifestPathMap.put(decodeFileName(msgFile.getName()), msgFile.getAbsolutePath());
+				}
+			} finally {
+				manifestIn.close();
+			}
+		} catch (Exception e) {
+			AspirinInternal.getConfiguration().getLogger().warn(getClass().getSimpleName()+" Manifest could not be read, directories are listed.",e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Read message files from the sub directories. Mail IDs are read from 
+	 * the headers of messages. Temporary files of unfinished writes are 
+	 * deleted.
+	 */
+	private void readSubDirs() {
+		File[] subdirs = rootDir.listFiles();
+		if( subdirs == null ) { return; }
+		for( File subDir : subdirs )
+		{
+			if( subDir.isDirectory() )
+			{
+				File[] subdirFiles = subDir.listFiles();
+				if( subdirFiles == null ) { continue; }
+				for( File msgFile : subdirFiles )
+				{
+					if( msgFile.getName().endsWith(TEMP_FILE_SUFFIX) )
+						msgFile.delete();
+					else
+					if( msgFile.getName().endsWith(MESSAGE_FILE_SUFFIX) )
+						addMessageFile(readMailID(msgFile), msgFile.getAbsolutePath());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read the mail ID from the headers of message file, the body of message 
+	 * is not read. If there is no mail ID header, then the mail ID is 
+	 * decoded from the file name.
+	 */
+	private String readMailID(File msgFile) {
+		try {
+			InputStream msgIn = new BufferedInputStream(new FileInputStream(msgFile), 8192);
+			try {
+				String mailid = MessageHeaders.read(msgIn).getMailID();
+				if( mailid != null )
+					return mailid;
+			} finally {
+				msgIn.close();
+			}
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read file "+msgFile.getAbsolutePath(),e);
 		} catch (MessagingException e) {
-			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read headers of file "+msgFile.getAbsolutePath(),e);
+		}
+		return decodeFileName(msgFile.getName());
+	}
+	
+	private void addMessageFile(String mailid, String msgPath) {
+		synchronized (messageMap) {
+			messageMap.put(mailid, new WeakReference<MimeMessage>(null));
+			messagePathMap.put(mailid, msgPath);
+		}
+	}
+	
+	/**
+	 * Sync the written files to disk. If there is a file syncer, then the 
+	 * files are synced with other files in the next batch.
+	 */
+	private void sync(List<FileChannel> fileChannels) throws IOException {
+		FileSyncer currentFileSyncer = fileSyncer;
+		if( currentFileSyncer == null || !currentFileSyncer.sync(fileChannels) )
+		{
+			for( FileChannel fileChannel : fileChannels )
+				fileChannel.force(true);
+		}
+	}
+	
+	private static String encodeFileName(String mailid) {
+		try {
+			return URLEncoder.encode(mailid, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Decode the mail ID from the name of message file. Files of previous 
+	 * versions are named by the mail ID itself.
+	 */
+	private static String decodeFileName(String fileName) {
+		String encodedMailid = fileName.substring(0, fileName.length()-MESSAGE_FILE_SUFFIX.length());
+		try {
+			return URLDecoder.decode(encodedMailid, "UTF-8");
+		} catch (IllegalArgumentException e) {
+			return encodedMailid;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
 		}
 	}
 	
@@ -147,5 +451,125 @@ public class FileMailStore implements MailStore {
 	public int getSubDirCount() {
 		return subDirCount;
 	}
+	/**
+	 * @param syncInterval If it is 0, then every file is synced by its 
+	 * writer. Otherwise files are synced by a syncer thread, files written 
+	 * while a sync is running are synced together in the next batch, and the 
+	 * syncer checks its state at least in every interval milliseconds. It 
+	 * is applied on init().
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+	/**
+	 * @param mappedMessageSize Message files of this size or larger are 
+	 * mapped into memory by getRawMessage(), smaller files are read into 
+	 * the heap.
+	 */
+	public void setMappedMessageSize(long mappedMessageSize) {
+		this.mappedMessageSize = mappedMessageSize;
+	}
+	public long getMappedMessageSize() {
+		return mappedMessageSize;
+	}
+	
+	/**
+	 * This thread syncs the written files in batches. Writers wake it up and 
+	 * wait until their files are synced, so a writer waits at most for the 
+	 * running sync and its own.
+	 */
+	private class FileSyncer extends Thread {
+		
+		/** Batch of pending channels, it is synced next. */
+		private SyncBatch pendingBatch = new SyncBatch();
+		private boolean syncRequested = false;
+		private boolean running = true;
+		
+		FileSyncer() {
+			super("FileMailStore-FileSyncer");
+			setDaemon(true);
+		}
+		
+		/**
+		 * Wait until the files are synced in the next batch. The syncer is 
+		 * waked up, so the batch is synced immediately, or after the running 
+		 * sync is finished.
+		 * 
+		 * @return False, if the syncer is stopped.
+		 */
+		synchronized boolean sync(List<FileChannel> fileChannels) throws IOException {
+			if( !running )
+				return false;
+			SyncBatch batch = pendingBatch;
+			batch.channels.addAll(fileChannels);
+			syncRequested = true;
+			notifyAll();
+			try {
+				while( !batch.synced )
+					wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("File sync interrupted.");
+			}
+			if( batch.failure != null )
+				throw batch.failure;
+			return true;
+		}
+		
+		synchronized void shutdown() {
+			running = false;
+			notifyAll();
+		}
+		
+		@Override
+		public void run() {
+			boolean stopped = false;
+			while( !stopped )
+			{
+				SyncBatch batch;
+				synchronized (this) {
+					try {
+						if( running && !syncRequested )
+							wait(syncInterval);
+					} catch (InterruptedException ie) {
+						running = false;
+					}
+					syncRequested = false;
+					stopped = !running;
+					batch = pendingBatch;
+					pendingBatch = new SyncBatch();
+				}
+				IOException batchFailure = null;
+				for( FileChannel fileChannel : batch.channels )
+				{
+					try {
+						fileChannel.force(true);
+					} catch (IOException ioe) {
+						batchFailure = ioe;
+					}
+				}
+				synchronized (this) {
+					batch.failure = batchFailure;
+					batch.synced = true;
+					notifyAll();
+				}
+			}
+		}
+	
+	}
+	
+	/**
+	 * Files synced together, and the result of their sync. Writers of a 
+	 * batch get the failure of their own batch, even if the next batch is 
+	 * synced before they wake up.
+	 */
+	private static class SyncBatch {
+		private final List<FileChannel> channels = new ArrayList<FileChannel>();
+		private boolean synced = false;
+		private IOException failure = null;
+	}
 
 }
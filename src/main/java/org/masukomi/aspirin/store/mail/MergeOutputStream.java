@@ -0,0 +1,120 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * <p>This stream replaces <code>${name}</code> tokens with the values of
+ * merge variables while the content is written. Tokens of unknown variables
+ * are written as they are. A name could contain letters, digits and the
+ * <code>_ . -</code> characters, and it is at most 64 bytes long.</p>
+ *
+ * <p>A token could be split between writes, so the last incomplete token is
+ * written only by {@link #finish()}.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+class MergeOutputStream extends FilterOutputStream {
+	
+	private static final int NAME_LENGTH_MAX = 64;
+	
+	private final Map<String, byte[]> values;
+	/** The token under construction, from its <code>$</code> character. */
+	private final byte[] token = new byte[NAME_LENGTH_MAX + 2];
+	private int tokenLength = 0;
+	
+	/**
+	 * @param out The underlying stream.
+	 * @param values Values of variables by their names.
+	 */
+	MergeOutputStream(OutputStream out, Map<String, byte[]> values) {
+		super(out);
+		this.values = values;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if( tokenLength == 0 )
+		{
+			if( b == '$' )
+				token[tokenLength++] = (byte)b;
+			else
+				out.write(b);
+			return;
+		}
+		if( tokenLength == 1 )
+		{
+			if( b == '{' )
+			{
+				token[tokenLength++] = (byte)b;
+				return;
+			}
+		}
+		else
+		if( b == '}' )
+		{
+			byte[] value = values.get(new String(token, 2, tokenLength - 2, "US-ASCII"));
+			if( value != null )
+			{
+				tokenLength = 0;
+				out.write(value);
+				return;
+			}
+			writeToken();
+			out.write(b);
+			return;
+		}
+		else
+		if( tokenLength < token.length && isNameChar(b) )
+		{
+			token[tokenLength++] = (byte)b;
+			return;
+		}
+		writeToken();
+		write(b);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int end = off + len;
+		int runStart = off;
+		for( int i = off; i < end; i++ )
+		{
+			// Bytes outside of tokens are written in runs
+			if( tokenLength == 0 && b[i] != '$' )
+				continue;
+			if( runStart < i )
+				out.write(b, runStart, i - runStart);
+			write(b[i]);
+			runStart = i + 1;
+		}
+		if( runStart < end )
+			out.write(b, runStart, end - runStart);
+	}
+	
+	/**
+	 * Write the incomplete token at the end of content.
+	 */
+	public void finish() throws IOException {
+		writeToken();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		finish();
+		super.close();
+	}
+	
+	private void writeToken() throws IOException {
+		out.write(token, 0, tokenLength);
+		tokenLength = 0;
+	}
+	
+	private static boolean isNameChar(int b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b == '.' || b == '-';
+	}
+
+}
@@ -0,0 +1,172 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * <p>Message of one recipient of a campaign, rendered from the template
+ * message and the merge variables of recipient. The To header is the
+ * recipient, Cc and Bcc headers of template are dropped. In other headers
+ * and in the body the <code>${name}</code> tokens are replaced with the
+ * values of variables, and the <code>${recipient}</code> token with the
+ * address of recipient, if there is no such variable. Variables with null
+ * value are not defined.</p>
+ *
+ * <p>Line breaks of values are replaced with spaces in headers, so a value
+ * could not add headers. Values with non-ASCII characters are written in
+ * headers as RFC 2047 encoded words, which are valid in unstructured headers
+ * like Subject and in display names, but not in addresses.</p>
+ *
+ * <p>Only headers are copied. The body is streamed from the stored template
+ * while the message is written to the server, so the rendered body is never
+ * held in memory. The body is not decoded: tokens are replaced in the stored
+ * bytes, and values are written as UTF-8 bytes without transfer encoding.
+ * So templates have to be prepared by {@link #prepareTemplate(MimeMessage)}
+ * before they are stored: their text parts are re-encoded to UTF-8 with 8bit
+ * transfer encoding, where UTF-8 values are valid, and other parts are
+ * encoded with base64, where tokens could not be found. Tokens of attached
+ * messages are not replaced.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class MergedMimeMessage extends MimeMessage {
+	
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
+	private static final String[] RECIPIENT_HEADERS = new String[] {"To", "Cc", "Bcc"};
+	
+	private final ByteBuffer body;
+	/** Values written in the body, in UTF-8. */
+	private final Map<String, byte[]> bodyValues;
+	
+	/**
+	 * @param session The mail session.
+	 * @param template The stored template message.
+	 * @param recipient Address of recipient.
+	 * @param variables Merge variables of recipient, it could be null.
+	 * @throws MessagingException If headers could not be copied.
+	 */
+	public MergedMimeMessage(Session session, RawMimeMessage template, String recipient, Map<String, String> variables) throws MessagingException {
+		super(session);
+		this.body = template.getRawBody();
+		this.bodyValues = new HashMap<String, byte[]>();
+		Map<String, byte[]> headerValues = new HashMap<String, byte[]>();
+		try {
+			putValue("recipient", recipient, headerValues);
+			if( variables != null )
+			{
+				for( Map.Entry<String, String> variable : variables.entrySet() )
+				{
+					if( variable.getValue() != null )
+						putValue(variable.getKey(), variable.getValue(), headerValues);
+				}
+			}
+			Enumeration<?> headerLines = template.getNonMatchingHeaderLines(RECIPIENT_HEADERS);
+			while( headerLines.hasMoreElements() )
+				addHeaderLine(merge((String)headerLines.nextElement(), headerValues));
+		} catch (IOException e) {
+			throw new MessagingException("Headers of template could not be merged.", e);
+		}
+		setHeader("To", recipient);
+	}
+	
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		Enumeration<?> headerLines = getNonMatchingHeaderLines(ignoreList);
+		while( headerLines.hasMoreElements() )
+		{
+			os.write(((String)headerLines.nextElement()).getBytes("ISO-8859-1"));
+			os.write(CRLF);
+		}
+		os.write(CRLF);
+		MergeOutputStream mergeOut = new MergeOutputStream(os, bodyValues);
+		RawMimeMessage.write(body.duplicate(), mergeOut);
+		mergeOut.finish();
+		os.flush();
+	}
+	
+	/**
+	 * Prepare a template message to be stored. Text parts are re-encoded to 
+	 * UTF-8 charset with 8bit transfer encoding, other parts are re-encoded 
+	 * with base64 transfer encoding. The template is changed.
+	 *
+	 * @param template The template message.
+	 * @throws MessagingException If a part could not be decoded.
+	 */
+	public static void prepareTemplate(MimeMessage template) throws MessagingException {
+		if( prepareContent(template) )
+			template.saveChanges();
+	}
+	
+	/**
+	 * @return True if the part is changed.
+	 */
+	private static boolean prepareContent(MimePart part) throws MessagingException {
+		try {
+			if( part.isMimeType("multipart/*") )
+			{
+				Multipart multipart = (Multipart)part.getContent();
+				boolean changed = false;
+				for( int i = 0; i < multipart.getCount(); i++ )
+				{
+					if( prepareContent((MimePart)multipart.getBodyPart(i)) )
+						changed = true;
+				}
+				if( changed )
+					part.setContent(multipart);
+				return changed;
+			}
+			if( part.isMimeType("message/*") )
+				return false;
+			ContentType contentType = new ContentType(part.getContentType());
+			if( part.isMimeType("text/*") )
+			{
+				if( "8bit".equalsIgnoreCase(part.getEncoding()) && "UTF-8".equalsIgnoreCase(contentType.getParameter("charset")) )
+					return false;
+				Object text = part.getContent();
+				if( !(text instanceof String) )
+					throw new MessagingException("Text part of template could not be decoded. type="+contentType.getBaseType());
+				part.setText((String)text, "UTF-8", contentType.getSubType());
+				part.setHeader("Content-Transfer-Encoding", "8bit");
+				return true;
+			}
+			if( "base64".equalsIgnoreCase(part.getEncoding()) )
+				return false;
+			part.setDataHandler(new DataHandler(new ByteArrayDataSource(part.getInputStream(), part.getContentType())));
+			part.setHeader("Content-Transfer-Encoding", "base64");
+			return true;
+		} catch (IOException e) {
+			throw new MessagingException("Part of template could not be decoded.", e);
+		}
+	}
+	
+	private void putValue(String name, String value, Map<String, byte[]> headerValues) throws IOException {
+		bodyValues.put(name, value.getBytes("UTF-8"));
+		String headerValue = MimeUtility.encodeText(value.replaceAll("[\r\n]+", " "), "UTF-8", null);
+		headerValues.put(name, headerValue.getBytes("US-ASCII"));
+	}
+	
+	private static String merge(String headerLine, Map<String, byte[]> headerValues) throws IOException {
+		ByteArrayOutputStream mergedLine = new ByteArrayOutputStream(headerLine.length() + 64);
+		MergeOutputStream mergeOut = new MergeOutputStream(mergedLine, headerValues);
+		mergeOut.write(headerLine.getBytes("ISO-8859-1"));
+		mergeOut.finish();
+		return mergedLine.toString("ISO-8859-1");
+	}
+
+}
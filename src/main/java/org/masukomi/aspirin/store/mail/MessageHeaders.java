@@ -0,0 +1,162 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+import org.masukomi.aspirin.config.Configuration;
+
+/**
+ * <p>Delivery informations of a message, which are read only from its
+ * headers: mail ID, expiry and recipients. A stored message is read
+ * only until the end of its header block, so its body is never read or
+ * parsed. Enqueue and store recovery use this class instead of a
+ * MimeMessage.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class MessageHeaders {
+
+	private static final String[] RECIPIENT_HEADERS = new String[] {"To", "Cc", "Bcc"};
+
+	private final InternetHeaders headers;
+	private final MimeMessage message;
+
+	private MessageHeaders(InternetHeaders headers, MimeMessage message) {
+		this.headers = headers;
+		this.message = message;
+	}
+
+	/**
+	 * Read headers from the stream until the empty line after the header
+	 * block. The stream is not closed.
+	 *
+	 * @param in Stream of RFC 822 message.
+	 * @return Headers of message.
+	 * @throws MessagingException If headers could not be read.
+	 */
+	public static MessageHeaders read(InputStream in) throws MessagingException {
+		return new MessageHeaders(new InternetHeaders(in), null);
+	}
+
+	/**
+	 * Read headers of a stored message. The position of buffer is not
+	 * changed.
+	 *
+	 * @param rawMessage Buffer of RFC 822 message from its position.
+	 * @return Headers of message.
+	 * @throws MessagingException If headers could not be read.
+	 */
+	public static MessageHeaders read(ByteBuffer rawMessage) throws MessagingException {
+		return read(new BufferInputStream(rawMessage.slice()));
+	}
+
+	/**
+	 * @param message The message, which headers are used.
+	 * @return Headers of the message, content of message is not used.
+	 */
+	public static MessageHeaders of(MimeMessage message) {
+		return new MessageHeaders(null, message);
+	}
+
+	/**
+	 * @return The mail ID header, or null if it is not defined.
+	 */
+	public String getMailID() {
+		try {
+			return getHeader(Aspirin.HEADER_MAIL_ID, null);
+		} catch (MessagingException e) {
+			AspirinInternal.getLogger().error("MailID header could not be get from MimeMessage.", e);
+		}
+		return null;
+	}
+
+	/**
+	 * It gives back expiry value of a message in epoch milliseconds. If
+	 * there is no expiry header, then it is calculated from configured
+	 * expiry.
+	 *
+	 * @return Expiry in milliseconds.
+	 */
+	public long getExpiry() {
+		try {
+			String expiryHeader = getHeader(Aspirin.HEADER_EXPIRY, null);
+			if( expiryHeader != null )
+				return AspirinInternal.expiryFormat.parse(expiryHeader).getTime();
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("Expiration header could not be get from MimeMessage.", e);
+		}
+		Configuration configuration = AspirinInternal.getConfiguration();
+		if( configuration.getExpiry() == Configuration.NEVER_EXPIRES )
+			return Long.MAX_VALUE;
+		if( message != null )
+		{
+			try {
+				Date sentDate = message.getReceivedDate();
+				if( sentDate != null )
+					return sentDate.getTime()+configuration.getExpiry();
+			} catch (MessagingException e) {
+				AspirinInternal.getLogger().error("Expiration calculation could not be based on message date.",e);
+			}
+		}
+		return System.currentTimeMillis()+configuration.getExpiry();
+	}
+
+	/**
+	 * @return The first value of the header, or null if it is not defined.
+	 * @throws MessagingException If the header could not be read.
+	 */
+	public String getHeader(String headerName) throws MessagingException {
+		return getHeader(headerName, null);
+	}
+
+	/**
+	 * @return Addresses of To, Cc and Bcc headers.
+	 * @throws MessagingException If an address header could not be parsed.
+	 */
+	public Collection<InternetAddress> getRecipients() throws MessagingException {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String headerName : RECIPIENT_HEADERS )
+		{
+			InternetAddress[] addresses = parseAddresses(headerName);
+			if( addresses != null )
+			{
+				for( InternetAddress addr : addresses )
+					recipients.add(addr);
+			}
+		}
+		return recipients;
+	}
+
+	/**
+	 * Addresses are parsed strictly, as MimeMessage.getRecipients() parses
+	 * them by default.
+	 */
+	private InternetAddress[] parseAddresses(String headerName) throws MessagingException {
+		String addressHeader = getHeader(headerName, ",");
+		if( addressHeader == null )
+			return null;
+		return InternetAddress.parseHeader(addressHeader, true);
+	}
+
+	/**
+	 * @return Values of the header joined by the delimiter, or only the first
+	 * value if delimiter is null. It is null, if there is no such header.
+	 */
+	private String getHeader(String headerName, String delimiter) throws MessagingException {
+		if( message != null )
+			return message.getHeader(headerName, delimiter);
+		return headers.getHeader(headerName, delimiter);
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MailStore, which could give back the stored RFC 822 content of a 
+ * message without parsing it. The delivery sends this content through a 
+ * {@link RawMimeMessage}, so the body of message is streamed to the server 
+ * as it is stored.
+ * 
+ * @author Laszlo Solova
+ *
+ */
+public interface RawMailStore {
+	/**
+	 * @param mailid The mail ID.
+	 * @return Read-only buffer of the stored message, positioned to the 
+	 * start of message, or null if there is no such message.
+	 */
+	public ByteBuffer getRawMessage(String mailid);
+}
@@ -0,0 +1,110 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>MimeMessage of a stored RFC 822 content. Only the headers are parsed,
+ * the body is read from the buffer only if it is used. On sending, the
+ * headers are written from the parsed headers - so header changes are kept
+ * - and the body is copied from the buffer as it is stored, without
+ * building and serializing its MIME parts. The SMTP transport does the
+ * dot-stuffing and line end conversion on the stream of data.</p>
+ *
+ * <p>If the content of message is changed or saved, then the message is
+ * written as any other MimeMessage.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class RawMimeMessage extends MimeMessage {
+	
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
+	
+	private final ByteBuffer rawMessage;
+	private final int bodyOffset;
+	private boolean contentChanged = false;
+	
+	/**
+	 * @param session The mail session.
+	 * @param rawMessage Buffer of the stored message from its position to
+	 * its limit.
+	 * @throws MessagingException If headers could not be parsed.
+	 */
+	public RawMimeMessage(Session session, ByteBuffer rawMessage) throws MessagingException {
+		this(session, new BufferInputStream(rawMessage.slice()));
+	}
+	
+	private RawMimeMessage(Session session, BufferInputStream in) throws MessagingException {
+		super(session, in);
+		this.rawMessage = in.getBuffer();
+		this.bodyOffset = (int)in.getPosition();
+	}
+	
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		if( contentChanged )
+		{
+			super.writeTo(os, ignoreList);
+			return;
+		}
+		Enumeration<?> headerLines = getNonMatchingHeaderLines(ignoreList);
+		while( headerLines.hasMoreElements() )
+		{
+			os.write(((String)headerLines.nextElement()).getBytes("ISO-8859-1"));
+			os.write(CRLF);
+		}
+		os.write(CRLF);
+		write(getRawBody(), os);
+		os.flush();
+	}
+	
+	/**
+	 * @return The stored body of message, from its start to its end.
+	 */
+	ByteBuffer getRawBody() {
+		ByteBuffer body = rawMessage.duplicate();
+		body.position(bodyOffset);
+		return body;
+	}
+	
+	/**
+	 * Write the remaining content of buffer into the stream.
+	 */
+	static void write(ByteBuffer content, OutputStream os) throws IOException {
+		if( content.hasArray() )
+		{
+			os.write(content.array(), content.arrayOffset()+content.position(), content.remaining());
+		}
+		else
+		{
+			byte[] chunk = new byte[Math.min(content.remaining(), 8192)];
+			while( content.hasRemaining() )
+			{
+				int chunkLength = Math.min(chunk.length, content.remaining());
+				content.get(chunk, 0, chunkLength);
+				os.write(chunk, 0, chunkLength);
+			}
+		}
+	}
+	
+	@Override
+	public void setDataHandler(DataHandler dh) throws MessagingException {
+		contentChanged = true;
+		super.setDataHandler(dh);
+	}
+	
+	@Override
+	public void saveChanges() throws MessagingException {
+		contentChanged = true;
+		super.saveChanges();
+	}
+
+}
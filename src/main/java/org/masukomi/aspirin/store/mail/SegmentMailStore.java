@@ -0,0 +1,493 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>This store implementation appends the raw content of MimeMessages to
+ * large, pre-allocated segment files, which are mapped into memory. Only the
+ * segment, offset and length of every message is held in memory. A message
+ * is parsed directly from the mapped segment, and its content is not copied
+ * until it is read. On delivery the stored content is sent as it is, see
+ * {@link RawMailStore}.</p>
+ *
+ * <p>Every record is framed by its length and its CRC32 checksum. Removing a
+ * message appends a tombstone record. If more than half of a full segment is
+ * removed or overwritten, then a background thread copies its live records
+ * to the current segment and deletes the segment file. On startup the
+ * segments are read in order to rebuild the index, a partially written
+ * record at the end of a segment is skipped.</p>
+ *
+ * <p>Configuration properties:</p>
+ * <ul>
+ *   <li>{@value #PARAM_STORE_SEGMENT_DIR}: directory of segment files,
+ *   required.</li>
+ *   <li>{@value #PARAM_STORE_SEGMENT_SIZE}: size of segment files in bytes,
+ *   default is 64 MB. Larger messages get their own segment.</li>
+ * </ul>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class SegmentMailStore implements MailStore, RawMailStore, Closeable {
+	
+	public static final String PARAM_STORE_SEGMENT_DIR = "aspirin.store.segment.dir";
+	public static final String PARAM_STORE_SEGMENT_SIZE = "aspirin.store.segment.size";
+	
+	private static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+	private static final long COMPACTION_INTERVAL = 60000;
+	private static final String SEGMENT_FILE_PREFIX = "segment-";
+	private static final String SEGMENT_FILE_SUFFIX = ".dat";
+	
+	private static final byte RECORD_MESSAGE = 1;
+	private static final byte RECORD_TOMBSTONE = 2;
+	/** Length and checksum of record. */
+	private static final int RECORD_FRAME_SIZE = 8;
+	
+	private final File storeDir;
+	private final int segmentSize;
+	private final CRC32 checksum = new CRC32();
+	private final Map<String, Location> locations = new HashMap<String, Location>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment activeSegment = null;
+	private Compactor compactor = null;
+	private boolean closed = false;
+	
+	public SegmentMailStore() throws Exception {
+		this((String)Aspirin.getConfiguration().getProperty(PARAM_STORE_SEGMENT_DIR), getSegmentSizeProperty());
+	}
+	
+	SegmentMailStore(String storeDirPath, int segmentSize) throws Exception {
+		if( storeDirPath == null )
+			throw new Exception("Store directory is undefined. Please, check configuration.");
+		this.storeDir = new File(storeDirPath);
+		this.segmentSize = segmentSize;
+	}
+	
+	private static int getSegmentSizeProperty() {
+		Object segmentSize = Aspirin.getConfiguration().getProperty(PARAM_STORE_SEGMENT_SIZE);
+		return ( segmentSize == null ) ? DEFAULT_SEGMENT_SIZE : Integer.parseInt(segmentSize.toString());
+	}
+	
+	@Override
+	public MimeMessage get(String mailid) {
+		ByteBuffer content = getRawMessage(mailid);
+		if( content == null )
+			return null;
+		try {
+			return new MimeMessage(Session.getDefaultInstance(System.getProperties()), new BufferInputStream(content));
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
+		}
+		return null;
+	}
+	
+	@Override
+	public synchronized List<String> getMailIds() {
+		return new ArrayList<String>(locations.keySet());
+	}
+	
+	@Override
+	public void init() {
+		try {
+			if( !storeDir.isDirectory() && !storeDir.mkdirs() )
+				throw new IOException("Store directory could not be created: "+storeDir.getAbsolutePath());
+			synchronized (this) {
+				File[] segmentFiles = storeDir.listFiles();
+				for( File segmentFile : segmentFiles )
+				{
+					String name = segmentFile.getName();
+					if( name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX) )
+					{
+						int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length(), name.length()-SEGMENT_FILE_SUFFIX.length()));
+						segments.put(id, new Segment(id, segmentFile, 0));
+					}
+				}
+				for( Segment segment : segments.values() )
+					readSegment(segment);
+				// After a partially written record a new segment is started
+				if( !segments.isEmpty() && segments.lastEntry().getValue().hasCleanTail() )
+					activeSegment = segments.lastEntry().getValue();
+				compactor = new Compactor();
+				compactor.start();
+			}
+			AspirinInternal.getLogger().info("Segment MailStore initialized. Mails: "+locations.size()+", segments: "+segments.size());
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("Segment MailStore initialization failed.", e);
+		}
+	}
+	
+	@Override
+	public synchronized void remove(String mailid) {
+		Location location = locations.remove(mailid);
+		if( location == null )
+			return;
+		try {
+			appendRecord(RECORD_TOMBSTONE, mailid, null, location.segment.id);
+		} catch (IOException ioe) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write tombstone for name "+mailid,ioe);
+		}
+		release(location);
+	}
+	
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		try {
+			ContentBuffer content = new ContentBuffer();
+			msg.writeTo(content);
+			put(mailid, content.getBuffer(), content.size());
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write segment for name "+mailid,e);
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
+		}
+	}
+	
+	/**
+	 * Flush the segments to disk and stop compaction. The mapped segments
+	 * are released by the garbage collector.
+	 */
+	@Override
+	public void close() {
+		Compactor stoppedCompactor;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			stoppedCompactor = compactor;
+			for( Segment segment : segments.values() )
+				segment.buffer.force();
+		}
+		if( stoppedCompactor != null )
+		{
+			try {
+				stoppedCompactor.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * @return Read-only view of the message in the mapped segment.
+	 */
+	@Override
+	public synchronized ByteBuffer getRawMessage(String mailid) {
+		Location location = locations.get(mailid);
+		if( location == null )
+			return null;
+		ByteBuffer content = location.segment.buffer.asReadOnlyBuffer();
+		content.limit(location.offset+location.length);
+		content.position(location.offset);
+		return content.slice();
+	}
+	
+	/**
+	 * Append raw message content as the current version of the mail.
+	 */
+	synchronized void put(String mailid, byte[] content, int length) throws IOException {
+		if( closed )
+			throw new IOException("Store is closed.");
+		Location previous = locations.get(mailid);
+		locations.put(mailid, appendRecord(RECORD_MESSAGE, mailid, ByteBuffer.wrap(content, 0, length), -1));
+		if( previous != null )
+			release(previous);
+	}
+	
+	/**
+	 * Copy live records of segments, which are mostly removed, to the active
+	 * segment, and delete them.
+	 */
+	synchronized void compact() throws IOException {
+		List<Segment> sparseSegments = new ArrayList<Segment>();
+		for( Segment segment : segments.values() )
+		{
+			if( segment != activeSegment && segment.isSparse() )
+				sparseSegments.add(segment);
+		}
+		for( Segment segment : sparseSegments )
+		{
+			int position = 0;
+			Record record;
+			while( (record = segment.readRecord(position)) != null )
+			{
+				if( record.type == RECORD_MESSAGE )
+				{
+					Location location = locations.get(record.mailid);
+					if( location != null && location.segment == segment && location.offset == record.dataOffset )
+					{
+						ByteBuffer content = segment.buffer.duplicate();
+						content.limit(record.dataOffset+record.dataLength);
+						content.position(record.dataOffset);
+						locations.put(record.mailid, appendRecord(RECORD_MESSAGE, record.mailid, content, -1));
+					}
+				}
+				// Tombstone is kept while its removed record could be read
+				else if( record.target != segment.id && segments.containsKey(record.target) )
+				{
+					appendRecord(RECORD_TOMBSTONE, record.mailid, null, record.target);
+				}
+				position = record.end;
+			}
+			activeSegment.buffer.force();
+			// An undeletable segment is read as empty
+			segment.buffer.putInt(0, 0);
+			segment.buffer.force();
+			segments.remove(segment.id);
+			if( !segment.file.delete() )
+				AspirinInternal.getLogger().warn("SegmentMailStore: Compacted segment could not be deleted: "+segment.file.getAbsolutePath());
+		}
+		if( !sparseSegments.isEmpty() )
+			AspirinInternal.getLogger().debug("SegmentMailStore: Segments compacted: "+sparseSegments.size());
+	}
+	
+	/**
+	 * Append a record to the active segment. A new segment is started, if
+	 * the record does not fit into the active segment.
+	 *
+	 * @return Location of record data.
+	 */
+	private Location appendRecord(byte type, String mailid, ByteBuffer data, int target) throws IOException {
+		byte[] mailidBytes = mailid.getBytes("UTF-8");
+		int dataLength = ( data == null ) ? 4 : data.remaining();
+		int length = 3 + mailidBytes.length + dataLength;
+		int recordSize = RECORD_FRAME_SIZE + length;
+		if( activeSegment == null || activeSegment.buffer.capacity() - activeSegment.position < recordSize )
+		{
+			int id = segments.isEmpty() ? 0 : segments.lastKey()+1;
+			activeSegment = new Segment(id, new File(storeDir, SEGMENT_FILE_PREFIX+id+SEGMENT_FILE_SUFFIX), Math.max(segmentSize, recordSize));
+			segments.put(id, activeSegment);
+		}
+		ByteBuffer out = activeSegment.buffer.duplicate();
+		int start = activeSegment.position;
+		out.position(start+4);
+		out.put(type);
+		out.putShort((short)mailidBytes.length);
+		out.put(mailidBytes);
+		int dataOffset = out.position();
+		if( data == null )
+			out.putInt(target);
+		else
+			out.put(data);
+		out.putInt(checksum(activeSegment.buffer, start+4, length));
+		// Length is written last, so the record is not read before it is complete
+		out.putInt(start, length);
+		activeSegment.position = start+recordSize;
+		if( type == RECORD_MESSAGE )
+			activeSegment.liveBytes += recordSize;
+		return new Location(activeSegment, dataOffset, dataLength, recordSize);
+	}
+	
+	/**
+	 * Put the records of segment to the index. Records are read until the
+	 * first incomplete one.
+	 */
+	private void readSegment(Segment segment) {
+		Record record;
+		while( (record = segment.readRecord(segment.position)) != null )
+		{
+			if( record.type == RECORD_MESSAGE )
+			{
+				segment.liveBytes += record.end - segment.position;
+				Location previous = locations.put(record.mailid, new Location(segment, record.dataOffset, record.dataLength, record.end - segment.position));
+				if( previous != null )
+					release(previous);
+			}
+			else
+			{
+				Location location = locations.get(record.mailid);
+				if( location != null && location.segment.id == record.target )
+				{
+					locations.remove(record.mailid);
+					release(location);
+				}
+			}
+			segment.position = record.end;
+		}
+	}
+	
+	/**
+	 * Uncount a removed or overwritten record. Compactor is woken up, if its
+	 * segment could be compacted.
+	 */
+	private void release(Location location) {
+		location.segment.liveBytes -= location.recordSize;
+		if( location.segment != activeSegment && location.segment.isSparse() )
+			notifyAll();
+	}
+	
+	private int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer region = buffer.duplicate();
+		region.limit(offset+length);
+		region.position(offset);
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		checksum.reset();
+		while( region.hasRemaining() )
+		{
+			int chunkLength = Math.min(chunk.length, region.remaining());
+			region.get(chunk, 0, chunkLength);
+			checksum.update(chunk, 0, chunkLength);
+		}
+		return (int)checksum.getValue();
+	}
+	
+	/**
+	 * A segment file mapped into memory.
+	 */
+	private class Segment {
+		private final int id;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		/** End of the last record. */
+		private int position = 0;
+		/** Size of records, which are not removed or overwritten. */
+		private int liveBytes = 0;
+		
+		/**
+		 * Map the segment file, and extend it to the given size first.
+		 */
+		Segment(int id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+			try {
+				if( segmentFile.length() < size )
+					segmentFile.setLength(size);
+				this.buffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentFile.length());
+			} finally {
+				segmentFile.close();
+			}
+		}
+		
+		boolean isSparse() {
+			return position == 0 || liveBytes * 2L < position;
+		}
+		
+		/**
+		 * @return The record at the position, or null if there is no
+		 * complete record.
+		 */
+		Record readRecord(int position) {
+			if( buffer.capacity() - position < RECORD_FRAME_SIZE )
+				return null;
+			int length = buffer.getInt(position);
+			if( length < 3 || buffer.capacity() - position - RECORD_FRAME_SIZE < length )
+				return null;
+			if( buffer.getInt(position+4+length) != checksum(buffer, position+4, length) )
+				return null;
+			ByteBuffer in = buffer.duplicate();
+			in.position(position+4);
+			Record record = new Record();
+			record.type = in.get();
+			if( record.type != RECORD_MESSAGE && record.type != RECORD_TOMBSTONE )
+				return null;
+			byte[] mailidBytes = new byte[in.getShort() & 0xffff];
+			in.get(mailidBytes);
+			try {
+				record.mailid = new String(mailidBytes, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			record.dataOffset = in.position();
+			record.dataLength = position + 4 + length - record.dataOffset;
+			if( record.type == RECORD_TOMBSTONE )
+				record.target = in.getInt();
+			record.end = position + RECORD_FRAME_SIZE + length;
+			return record;
+		}
+		
+		/**
+		 * @return True, if there is nothing written after the last record.
+		 */
+		boolean hasCleanTail() {
+			return buffer.capacity() - position < RECORD_FRAME_SIZE || buffer.getLong(position) == 0;
+		}
+	}
+	
+	private static class Record {
+		private byte type;
+		private String mailid;
+		private int dataOffset;
+		private int dataLength;
+		private int target = -1;
+		private int end;
+	}
+	
+	private static class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		private final int recordSize;
+		
+		Location(Segment segment, int offset, int length, int recordSize) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordSize = recordSize;
+		}
+	}
+	
+	/**
+	 * Gives access to the written bytes without copying them.
+	 */
+	private static class ContentBuffer extends ByteArrayOutputStream {
+		ContentBuffer() {
+			super(8192);
+		}
+		
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+	
+	/**
+	 * This thread compacts the sparse segments, when a record is released
+	 * or in every compaction interval.
+	 */
+	private class Compactor extends Thread {
+		
+		Compactor() {
+			super("SegmentMailStore-Compactor");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			synchronized (SegmentMailStore.this) {
+				while( !closed )
+				{
+					try {
+						SegmentMailStore.this.wait(COMPACTION_INTERVAL);
+						if( !closed )
+							compact();
+					} catch (InterruptedException ie) {
+						return;
+					} catch (IOException ioe) {
+						AspirinInternal.getLogger().error("SegmentMailStore: Segments could not be compacted.", ioe);
+					}
+				}
+			}
+		}
+	
+	}
+
+}
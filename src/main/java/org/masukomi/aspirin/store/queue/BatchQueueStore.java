@@ -0,0 +1,25 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * A QueueStore, which could queue the recipients of more mails together, 
+ * for example in one transaction. Bulk adding uses this interface, other 
+ * stores get the mails one by one.
+ * 
+ * @author Laszlo Solova
+ *
+ */
+public interface BatchQueueStore {
+	/**
+	 * Queue all items. Items have their mail ID, recipient and expiry, 
+	 * other fields are not used. If an item could not be queued, then none 
+	 * of the items is queued.
+	 * 
+	 * @param qiList Items to queue.
+	 * @throws MessagingException If the items could not be queued.
+	 */
+	public void addAll(List<QueueInfo> qiList) throws MessagingException;
+}
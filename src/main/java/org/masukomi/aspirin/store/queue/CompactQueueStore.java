@@ -0,0 +1,513 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>In-memory QueueStore implementation for very large queues. Items are not
+ * stored as QueueInfo objects, but in slots of primitive arrays (attempt,
+ * attempt count, state, mail and recipient), and mail IDs and recipient
+ * addresses are stored once in tables. An item costs about 40 bytes of heap
+ * in a few large arrays instead of several objects, so ten millions of
+ * recipients fit in a small heap and they are cheap for the garbage
+ * collector.</p>
+ *
+ * <p>QueueInfo objects are created only for the claimed items given to
+ * delivery, and for notification of listeners. Their IDs are the slots of
+ * the items.</p>
+ *
+ * <p>Sendable slots are scheduled in a binary heap of primitive arrays
+ * ordered by attempt time. Like in {@link SimpleQueueStore}, stale entries
+ * of the heap are dropped when they reach the top.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class CompactQueueStore implements QueueStore {
+	
+	private static final DeliveryState[] STATES_BY_ID = new DeliveryState[DeliveryState.values().length];
+	static {
+		for( DeliveryState state : DeliveryState.values() )
+			STATES_BY_ID[state.getStateId()] = state;
+	}
+	private static final byte QUEUED = (byte)DeliveryState.QUEUED.getStateId();
+	private static final byte IN_PROGRESS = (byte)DeliveryState.IN_PROGRESS.getStateId();
+	private static final byte SENT = (byte)DeliveryState.SENT.getStateId();
+	private static final byte FAILED = (byte)DeliveryState.FAILED.getStateId();
+	private static final int NONE = -1;
+	
+	// Item slots
+	private long[] attempts = new long[1024];
+	private int[] attemptCounts = new int[1024];
+	private byte[] states = new byte[1024];
+	private int[] mailIndexes = new int[1024];
+	private int[] recipientIds = new int[1024];
+	/** Next slot of the same mail, or NONE. */
+	private int[] nextSlots = new int[1024];
+	/** Result infos are rare, only items with a result have them. */
+	private Map<Integer, String> resultInfoBySlot = new HashMap<Integer, String>();
+	private IntStack freeSlots = new IntStack();
+	private int slotCount = 0;
+	
+	// Mail table
+	private Map<String, Integer> mailIndexById = new HashMap<String, Integer>();
+	private String[] mailIds = new String[64];
+	private long[] mailExpiries = new long[64];
+	private int[] mailFirstSlots = new int[64];
+	/** Count of QUEUED and IN_PROGRESS items of mails. */
+	private int[] mailPendingCounts = new int[64];
+	private IntStack freeMailIndexes = new IntStack();
+	private int mailCount = 0;
+	
+	private RecipientDictionary recipients = new RecipientDictionary();
+	
+	// Schedule heap
+	private long[] heapAttempts = new long[1024];
+	private int[] heapSlots = new int[1024];
+	private int heapSize = 0;
+	private int queuedCount = 0;
+	
+	@Override
+	public synchronized void add(String mailid, long expiry, Collection<InternetAddress> recipientAddresses) throws MessagingException {
+		try {
+			int mailIndex = getMailIndex(mailid);
+			if( mailIndex == NONE )
+			{
+				mailIndex = freeMailIndexes.isEmpty() ? mailCount++ : freeMailIndexes.pop();
+				if( mailIds.length <= mailIndex )
+					growMails(mailIds.length * 2);
+				mailIds[mailIndex] = mailid;
+				mailFirstSlots[mailIndex] = NONE;
+				mailPendingCounts[mailIndex] = 0;
+				mailIndexById.put(mailid, mailIndex);
+			}
+			mailExpiries[mailIndex] = expiry;
+			for( InternetAddress recipient : recipientAddresses )
+			{
+				int recipientId = recipients.acquire(recipient.getAddress());
+				int previousSlot = findSlot(mailIndex, recipientId);
+				if( previousSlot != NONE )
+				{
+					// Same recipient again, the previous item is replaced
+					unlinkSlot(mailIndex, previousSlot);
+					freeSlot(previousSlot);
+				}
+				int slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pop();
+				if( attempts.length <= slot )
+					growSlots(attempts.length * 2);
+				attempts[slot] = 0;
+				attemptCounts[slot] = 0;
+				states[slot] = QUEUED;
+				mailIndexes[slot] = mailIndex;
+				recipientIds[slot] = recipientId;
+				nextSlots[slot] = mailFirstSlots[mailIndex];
+				mailFirstSlots[mailIndex] = slot;
+				mailPendingCounts[mailIndex]++;
+				schedule(slot);
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed: "+mailid, e);
+		}
+	}
+	
+	@Override
+	public List<String> clean() {
+		List<String> mailidList;
+		synchronized (this) {
+			mailidList = new ArrayList<String>(mailIndexById.keySet());
+		}
+		List<String> usedMailids = new ArrayList<String>(mailidList.size());
+		for( String mailid : mailidList )
+		{
+			if( isCompleted(mailid) )
+				remove(mailid);
+			else
+				usedMailids.add(mailid);
+		}
+		return usedMailids;
+	}
+	
+	@Override
+	public QueueInfo createQueueInfo() {
+		return new QueueInfo();
+	}
+	
+	@Override
+	public synchronized long getEarliestAttempt() {
+		while( 0 < heapSize )
+		{
+			if( isScheduled(0) )
+				return heapAttempts[0];
+			pollHeap();
+		}
+		return -1;
+	}
+	
+	@Override
+	public synchronized long getNextAttempt(String mailid, String recipient) {
+		int slot = findSlot(mailid, recipient);
+		if( slot != NONE && states[slot] == QUEUED )
+			return attempts[slot];
+		return -1;
+	}
+	
+	@Override
+	public synchronized boolean hasBeenRecipientHandled(String mailid, String recipient) {
+		int slot = findSlot(mailid, recipient);
+		return ( slot != NONE && (states[slot] == SENT || states[slot] == FAILED) );
+	}
+	
+	@Override
+	public void init() {
+		// Do nothing
+	}
+	
+	@Override
+	public synchronized boolean isCompleted(String mailid) {
+		int mailIndex = getMailIndex(mailid);
+		return ( mailIndex == NONE || mailPendingCounts[mailIndex] == 0 );
+	}
+	
+	@Override
+	public QueueInfo next() {
+		List<QueueInfo> qiList = nextBatch(1);
+		return qiList.isEmpty() ? null : qiList.get(0);
+	}
+	
+	@Override
+	public List<QueueInfo> nextBatch(int max) {
+		List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+		List<QueueInfo> failedList = new ArrayList<QueueInfo>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			int attemptCountMax = AspirinInternal.getConfiguration().getDeliveryAttemptCount();
+			while( qiList.size() < max && 0 < heapSize && heapAttempts[0] < now )
+			{
+				boolean scheduled = isScheduled(0);
+				int slot = pollHeap();
+				if( !scheduled )
+					continue;
+				queuedCount--;
+				long expiry = mailExpiries[mailIndexes[slot]];
+				if( attemptCountMax <= attemptCounts[slot] || (expiry != -1 && expiry <= now) )
+				{
+					// Created before the result, so listeners will be notified
+					QueueInfo qi = createQueueInfo(slot);
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+					{
+						qi.setResultInfo("Delivery is out of time or attempt.");
+						resultInfoBySlot.put(slot, qi.getResultInfo());
+					}
+					setResult(slot, FAILED, now);
+					qi.setAttempt(attempts[slot]);
+					qi.setAttemptCount(attemptCounts[slot]);
+					failedList.add(qi);
+				}
+				else
+				{
+					states[slot] = IN_PROGRESS;
+					qiList.add(createQueueInfo(slot));
+				}
+			}
+		}
+		// Listeners are notified outside of the store lock
+		for( QueueInfo qi : failedList )
+			qi.setState(DeliveryState.FAILED);
+		return qiList;
+	}
+	
+	@Override
+	public synchronized void postpone(QueueInfo qi, long attempt) {
+		int slot = getSlot(qi);
+		if( slot == NONE || states[slot] != IN_PROGRESS )
+			return;
+		attempts[slot] = attempt;
+		states[slot] = QUEUED;
+		schedule(slot);
+		qi.setAttempt(attempt);
+		qi.setState(DeliveryState.QUEUED);
+	}
+	
+	@Override
+	public synchronized void remove(String mailid) {
+		Integer mailIndex = mailIndexById.remove(mailid);
+		if( mailIndex == null )
+			return;
+		int slot = mailFirstSlots[mailIndex];
+		while( slot != NONE )
+		{
+			int nextSlot = nextSlots[slot];
+			freeSlot(slot);
+			slot = nextSlot;
+		}
+		mailIds[mailIndex] = null;
+		mailFirstSlots[mailIndex] = NONE;
+		mailPendingCounts[mailIndex] = 0;
+		freeMailIndexes.push(mailIndex);
+	}
+	
+	@Override
+	public synchronized void removeRecipient(String recipient) {
+		int recipientId = recipients.getId(recipient);
+		if( recipientId == NONE )
+			return;
+		for( int slot = 0; slot < slotCount; slot++ )
+		{
+			if( states[slot] != NONE && recipientIds[slot] == recipientId )
+			{
+				unlinkSlot(mailIndexes[slot], slot);
+				freeSlot(slot);
+			}
+		}
+	}
+	
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		synchronized (this) {
+			int slot = getSlot(qi);
+			if( slot == NONE )
+				return;
+			if( states[slot] == QUEUED )
+				queuedCount--;
+			if( qi.getResultInfo() != null )
+				resultInfoBySlot.put(slot, qi.getResultInfo());
+			setResult(slot, (byte)qi.getState().getStateId(), System.currentTimeMillis());
+			qi.setAttempt(attempts[slot]);
+			qi.setAttemptCount(attemptCounts[slot]);
+		}
+		qi.setState(qi.getState());
+	}
+	
+	/**
+	 * Find the slot of an item. Caller have to hold the store lock.
+	 */
+	private int getSlot(QueueInfo qi) {
+		// Items given by this store have their slot as ID
+		if( 0 <= qi.getId() && qi.getId() < slotCount )
+		{
+			int candidateSlot = (int)qi.getId();
+			if( states[candidateSlot] != NONE && qi.getMailid().equals(mailIds[mailIndexes[candidateSlot]]) && qi.getRecipient().equals(recipients.getRecipient(recipientIds[candidateSlot])) )
+				return candidateSlot;
+		}
+		return findSlot(qi.getMailid(), qi.getRecipient());
+	}
+	
+	@Override
+	public synchronized int size() {
+		return mailIndexById.size();
+	}
+	
+	private void setResult(int slot, byte state, long now) {
+		int mailIndex = mailIndexes[slot];
+		boolean wasPending = ( states[slot] == QUEUED || states[slot] == IN_PROGRESS );
+		boolean pending = ( state == QUEUED || state == IN_PROGRESS );
+		if( wasPending && !pending )
+			mailPendingCounts[mailIndex]--;
+		else
+		if( !wasPending && pending )
+			mailPendingCounts[mailIndex]++;
+		attempts[slot] = now + AspirinInternal.getConfiguration().getDeliveryAttemptDelay();
+		attemptCounts[slot]++;
+		states[slot] = state;
+		if( state == QUEUED )
+			schedule(slot);
+	}
+	
+	private QueueInfo createQueueInfo(int slot) {
+		int mailIndex = mailIndexes[slot];
+		QueueInfo qi = new QueueInfo();
+		qi.setId(slot);
+		qi.setMailid(mailIds[mailIndex]);
+		qi.setRecipient(recipients.getRecipient(recipientIds[slot]), recipients.getDomain(recipientIds[slot]));
+		qi.setExpiry(mailExpiries[mailIndex]);
+		qi.setAttempt(attempts[slot]);
+		qi.setAttemptCount(attemptCounts[slot]);
+		qi.setResultInfo(resultInfoBySlot.get(slot));
+		qi.restoreState(STATES_BY_ID[states[slot]]);
+		return qi;
+	}
+	
+	private int getMailIndex(String mailid) {
+		Integer mailIndex = mailIndexById.get(mailid);
+		return ( mailIndex == null ) ? NONE : mailIndex;
+	}
+	
+	private int findSlot(String mailid, String recipient) {
+		int mailIndex = getMailIndex(mailid);
+		int recipientId = recipients.getId(recipient);
+		if( mailIndex == NONE || recipientId == NONE )
+			return NONE;
+		return findSlot(mailIndex, recipientId);
+	}
+	
+	private int findSlot(int mailIndex, int recipientId) {
+		for( int slot = mailFirstSlots[mailIndex]; slot != NONE; slot = nextSlots[slot] )
+		{
+			if( recipientIds[slot] == recipientId )
+				return slot;
+		}
+		return NONE;
+	}
+	
+	private void unlinkSlot(int mailIndex, int slot) {
+		if( mailFirstSlots[mailIndex] == slot )
+		{
+			mailFirstSlots[mailIndex] = nextSlots[slot];
+			return;
+		}
+		for( int prevSlot = mailFirstSlots[mailIndex]; prevSlot != NONE; prevSlot = nextSlots[prevSlot] )
+		{
+			if( nextSlots[prevSlot] == slot )
+			{
+				nextSlots[prevSlot] = nextSlots[slot];
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Release a slot, which is already unlinked from its mail.
+	 */
+	private void freeSlot(int slot) {
+		if( states[slot] == QUEUED )
+			queuedCount--;
+		if( states[slot] == QUEUED || states[slot] == IN_PROGRESS )
+			mailPendingCounts[mailIndexes[slot]]--;
+		recipients.release(recipientIds[slot]);
+		resultInfoBySlot.remove(slot);
+		states[slot] = NONE;
+		nextSlots[slot] = NONE;
+		freeSlots.push(slot);
+	}
+	
+	private void growSlots(int capacity) {
+		attempts = Arrays.copyOf(attempts, capacity);
+		attemptCounts = Arrays.copyOf(attemptCounts, capacity);
+		states = Arrays.copyOf(states, capacity);
+		mailIndexes = Arrays.copyOf(mailIndexes, capacity);
+		recipientIds = Arrays.copyOf(recipientIds, capacity);
+		nextSlots = Arrays.copyOf(nextSlots, capacity);
+	}
+	
+	private void growMails(int capacity) {
+		mailIds = Arrays.copyOf(mailIds, capacity);
+		mailExpiries = Arrays.copyOf(mailExpiries, capacity);
+		mailFirstSlots = Arrays.copyOf(mailFirstSlots, capacity);
+		mailPendingCounts = Arrays.copyOf(mailPendingCounts, capacity);
+	}
+	
+	/**
+	 * @return True, if the heap entry is the current schedule of its slot.
+	 * Entries of claimed, rescheduled and removed items are stale. A reused
+	 * slot could have more valid entries, but after the first is polled its
+	 * item is not QUEUED anymore.
+	 */
+	private boolean isScheduled(int heapIndex) {
+		int slot = heapSlots[heapIndex];
+		return states[slot] == QUEUED && attempts[slot] == heapAttempts[heapIndex];
+	}
+	
+	private void schedule(int slot) {
+		queuedCount++;
+		// Drop stale entries, if they are the majority of the heap
+		if( heapSize == heapSlots.length && queuedCount * 2 < heapSize )
+			rebuildHeap();
+		if( heapSize == heapSlots.length )
+		{
+			heapAttempts = Arrays.copyOf(heapAttempts, heapSize * 2);
+			heapSlots = Arrays.copyOf(heapSlots, heapSize * 2);
+		}
+		int index = heapSize++;
+		long attempt = attempts[slot];
+		while( 0 < index )
+		{
+			int parent = (index - 1) >>> 1;
+			if( heapAttempts[parent] <= attempt )
+				break;
+			heapAttempts[index] = heapAttempts[parent];
+			heapSlots[index] = heapSlots[parent];
+			index = parent;
+		}
+		heapAttempts[index] = attempt;
+		heapSlots[index] = slot;
+	}
+	
+	/**
+	 * Remove the top entry of heap.
+	 *
+	 * @return Slot of the removed entry.
+	 */
+	private int pollHeap() {
+		int topSlot = heapSlots[0];
+		heapSize--;
+		if( 0 < heapSize )
+			siftDown(0, heapAttempts[heapSize], heapSlots[heapSize]);
+		return topSlot;
+	}
+	
+	private void siftDown(int index, long attempt, int slot) {
+		int half = heapSize >>> 1;
+		while( index < half )
+		{
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if( right < heapSize && heapAttempts[right] < heapAttempts[child] )
+				child = right;
+			if( attempt <= heapAttempts[child] )
+				break;
+			heapAttempts[index] = heapAttempts[child];
+			heapSlots[index] = heapSlots[child];
+			index = child;
+		}
+		heapAttempts[index] = attempt;
+		heapSlots[index] = slot;
+	}
+	
+	private void rebuildHeap() {
+		int validSize = 0;
+		for( int i = 0; i < heapSize; i++ )
+		{
+			if( isScheduled(i) )
+			{
+				heapAttempts[validSize] = heapAttempts[i];
+				heapSlots[validSize] = heapSlots[i];
+				validSize++;
+			}
+		}
+		heapSize = validSize;
+		for( int i = (heapSize >>> 1) - 1; 0 <= i; i-- )
+			siftDown(i, heapAttempts[i], heapSlots[i]);
+	}
+	
+	/**
+	 * Growing stack of free indexes.
+	 */
+	private static class IntStack {
+		private int[] values = new int[16];
+		private int size = 0;
+		
+		boolean isEmpty() {
+			return size == 0;
+		}
+		
+		void push(int value) {
+			if( size == values.length )
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+		
+		int pop() {
+			return values[--size];
+		}
+	}
+
+}
@@ -9,6 +9,7 @@ import org.masukomi.aspirin.AspirinInternal;
  *
  */
 public class QueueInfo {
+	private long id = -1L;
 	private String mailid;
 	private String recipient;
 	private String resultInfo;
@@ -19,6 +20,7 @@ public class QueueInfo {
 	
 	private transient boolean notifiedAlready = false;
 	private transient String complexId = null;
+	private transient String recipientDomain = null;
 	
 	public String getComplexId() {
 		if( complexId == null )
@@ -26,6 +28,17 @@ public class QueueInfo {
 		return complexId;
 	}
 	
+	/**
+	 * @return Numeric ID of this item given by its QueueStore, or -1 if the 
+	 * store does not use numeric IDs.
+	 */
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	
 	public String getMailid() {
 		return mailid;
 	}
@@ -37,6 +50,22 @@ public class QueueInfo {
 	}
 	public void setRecipient(String recipient) {
 		this.recipient = recipient;
+		this.recipientDomain = null;
+	}
+	/**
+	 * @return The lower case domain of recipient.
+	 */
+	public String getRecipientDomain() {
+		if( recipientDomain == null && recipient != null )
+			recipientDomain = recipient.substring(recipient.lastIndexOf("@")+1).toLowerCase();
+		return recipientDomain;
+	}
+	/**
+	 * Set recipient with its domain, which are interned by the QueueStore.
+	 */
+	void setRecipient(String recipient, String recipientDomain) {
+		this.recipient = recipient;
+		this.recipientDomain = recipientDomain;
 	}
 	public String getResultInfo() {
 		return resultInfo;
@@ -87,6 +116,17 @@ public class QueueInfo {
 		}
 	}
 	
+	/**
+	 * Set state of a loaded item without notifying listeners, because its 
+	 * listeners were notified before it was persisted.
+	 * 
+	 * @param state The persisted state.
+	 */
+	void restoreState(DeliveryState state) {
+		this.state = state;
+		this.notifiedAlready = !hasState(DeliveryState.QUEUED, DeliveryState.IN_PROGRESS);
+	}
+	
 	public boolean hasState(DeliveryState... states) {
 		for( DeliveryState st : states )
 		{
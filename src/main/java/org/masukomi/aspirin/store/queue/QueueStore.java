@@ -24,6 +24,13 @@ public interface QueueStore {
 	 */
 	public List<String> clean();
 	public QueueInfo createQueueInfo();
+	/**
+	 * It gives back the earliest attempt time of all QUEUED items. The 
+	 * delivery manager sleeps until this time if there is nothing to send.
+	 * @return Epoch timestamp in milliseconds or -1 if there is no QUEUED 
+	 * item.
+	 */
+	public long getEarliestAttempt();
 	public long getNextAttempt(String mailid, String recipient);
 	public boolean hasBeenRecipientHandled(String mailid, String recipient);
 	public void init();
@@ -38,6 +45,25 @@ public interface QueueStore {
 	 * @return next sendable QueueInfo or null
 	 */
 	public QueueInfo next();
+	/**
+	 * It gives back the next sendable QueueInfo objects, at most max items. 
+	 * All returned items are claimed together, so they are in IN_PROGRESS 
+	 * state. The sendable conditions are the same as in {@link #next()}.
+	 * 
+	 * @param max The maximal count of returned items.
+	 * @return List of sendable QueueInfo objects, it could be empty.
+	 */
+	public List<QueueInfo> nextBatch(int max);
+	/**
+	 * Give back a claimed item without a delivery attempt. The item is QUEUED 
+	 * again with the given attempt time, its attempt count is not changed and 
+	 * listeners are not notified.
+	 * 
+	 * @param qi The claimed item.
+	 * @param attempt Epoch timestamp in milliseconds, when the item is 
+	 * sendable again.
+	 */
+	public void postpone(QueueInfo qi, long attempt);
 	public void remove(String mailid);
 	public void removeRecipient(String recipient);
 	public void setSendingResult(QueueInfo qi);
@@ -0,0 +1,136 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Dictionary of recipient addresses used by stored items. Every address
+ * has a compact integer ID and one String instance, which is shared by every
+ * item of the address, and the domains of addresses are shared the same
+ * way. Entries are counted by their items, and the ID of an unused address
+ * is given to the next new address.</p>
+ *
+ * <p>This class is not thread-safe, its store have to synchronize it.</p>
+ *
+ * @author Laszlo Solova
+ *
+ */
+class RecipientDictionary {
+	
+	private final Map<String, Entry> entryByRecipient = new HashMap<String, Entry>();
+	private final Map<String, Domain> domainByName = new HashMap<String, Domain>();
+	private Entry[] entries = new Entry[64];
+	private int[] freeIds = new int[16];
+	private int freeIdCount = 0;
+	private int nextId = 0;
+	
+	/**
+	 * Get the entry of recipient, and count a new item for it.
+	 *
+	 * @param recipient The recipient address.
+	 * @return ID of the recipient.
+	 */
+	int acquire(String recipient) {
+		Entry entry = entryByRecipient.get(recipient);
+		if( entry == null )
+		{
+			String domainName = recipient.substring(recipient.lastIndexOf("@")+1).toLowerCase();
+			Domain domain = domainByName.get(domainName);
+			if( domain == null )
+			{
+				domain = new Domain(domainName);
+				domainByName.put(domainName, domain);
+			}
+			domain.refCount++;
+			entry = new Entry(createId(), recipient, domain);
+			entryByRecipient.put(recipient, entry);
+			entries[entry.id] = entry;
+		}
+		entry.refCount++;
+		return entry.id;
+	}
+	
+	/**
+	 * Uncount an item of the recipient. Entry is removed, if it has no more
+	 * items.
+	 *
+	 * @param id ID of the recipient.
+	 */
+	void release(int id) {
+		Entry entry = entries[id];
+		if( entry == null || 0 < --entry.refCount )
+			return;
+		entryByRecipient.remove(entry.recipient);
+		entries[id] = null;
+		if( --entry.domain.refCount == 0 )
+			domainByName.remove(entry.domain.name);
+		if( freeIdCount == freeIds.length )
+		{
+			int[] newFreeIds = new int[freeIds.length * 2];
+			System.arraycopy(freeIds, 0, newFreeIds, 0, freeIdCount);
+			freeIds = newFreeIds;
+		}
+		freeIds[freeIdCount++] = id;
+	}
+	
+	/**
+	 * @param recipient The recipient address.
+	 * @return ID of the recipient, or -1 if there is no item of the
+	 * recipient.
+	 */
+	int getId(String recipient) {
+		Entry entry = entryByRecipient.get(recipient);
+		return ( entry == null ) ? -1 : entry.id;
+	}
+	
+	/**
+	 * @param id ID of the recipient.
+	 * @return The shared instance of recipient address.
+	 */
+	String getRecipient(int id) {
+		return entries[id].recipient;
+	}
+	
+	/**
+	 * @param id ID of the recipient.
+	 * @return The shared instance of lower case recipient domain.
+	 */
+	String getDomain(int id) {
+		return entries[id].domain.name;
+	}
+	
+	private int createId() {
+		if( 0 < freeIdCount )
+			return freeIds[--freeIdCount];
+		if( nextId == entries.length )
+		{
+			Entry[] newEntries = new Entry[entries.length * 2];
+			System.arraycopy(entries, 0, newEntries, 0, entries.length);
+			entries = newEntries;
+		}
+		return nextId++;
+	}
+	
+	private static class Entry {
+		private final int id;
+		private final String recipient;
+		private final Domain domain;
+		private int refCount = 0;
+		
+		Entry(int id, String recipient, Domain domain) {
+			this.id = id;
+			this.recipient = recipient;
+			this.domain = domain;
+		}
+	}
+	
+	private static class Domain {
+		private final String name;
+		private int refCount = 0;
+		
+		Domain(String name) {
+			this.name = name;
+		}
+	}
+
+}
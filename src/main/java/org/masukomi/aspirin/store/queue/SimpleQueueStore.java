@@ -6,10 +6,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
@@ -18,47 +22,61 @@ import org.masukomi.aspirin.AspirinInternal;
 
 
 /**
+ * <p>In-memory QueueStore implementation.</p>
+ * 
+ * <p>Sendable items are scheduled in a concurrent skip list ordered by their 
+ * next attempt time, so next() only has to look at the head of the schedule 
+ * instead of sorting and walking all stored items. An entry is claimed by 
+ * removing it from the schedule, which succeeds only in one thread, so 
+ * delivery threads and the dispatcher do not wait for each other. Every 
+ * schedule entry stores the attempt time it was created with. If the item 
+ * was rescheduled or removed in the meantime, the entry is stale and it is 
+ * dropped when it reaches the head of the schedule.</p>
+ * 
+ * <p>Items of a mail are guarded by one of the striped mail locks, so 
+ * changes of different mails run in parallel. The recipient dictionary and 
+ * the recipient index are guarded by the dictionary. A mail lock could be 
+ * held while locking the dictionary, but never the reverse.</p>
  * 
  * @author Laszlo Solova
  *
  */
-public class SimpleQueueStore implements QueueStore {
-	
-	private List<QueueInfo> queueInfoList = new LinkedList<QueueInfo>();
-	private Map<String, QueueInfo> queueInfoByMailidAndRecipient = new HashMap<String, QueueInfo>();
-	private Map<String, List<QueueInfo>> queueInfoByMailid = new HashMap<String, List<QueueInfo>>();
-	private Map<String, List<QueueInfo>> queueInfoByRecipient = new HashMap<String, List<QueueInfo>>();
-	private Object lock = new Object();
-	private Comparator<QueueInfo> queueInfoComparator = new Comparator<QueueInfo>() {
+public class SimpleQueueStore implements QueueStore, BatchQueueStore {
+	
+	private static final int MAIL_LOCK_STRIPES = 64;
+	
+	private ConcurrentSkipListSet<ScheduleEntry> schedule = new ConcurrentSkipListSet<ScheduleEntry>(new Comparator<ScheduleEntry>() {
 		@Override
-		public int compare(QueueInfo o1, QueueInfo o2) {
-			return Long.compare(o2.getAttempt(), o1.getAttempt());
+		public int compare(ScheduleEntry o1, ScheduleEntry o2) {
+			int result = Long.compare(o1.attempt, o2.attempt);
+			return ( result != 0 ) ? result : Long.compare(o1.queueInfo.getId(), o2.queueInfo.getId());
 		}
-	};
+	});
+	private ConcurrentMap<Long, QueueInfo> queueInfoById = new ConcurrentHashMap<Long, QueueInfo>();
+	/** Items of mails by recipient IDs. Inner maps are guarded by mail locks. */
+	private ConcurrentMap<String, Map<Integer, QueueInfo>> queueInfoByMailid = new ConcurrentHashMap<String, Map<Integer, QueueInfo>>();
+	/** Items of recipients. It is guarded by the recipient dictionary. */
+	private Map<Integer, Set<QueueInfo>> queueInfoByRecipient = new HashMap<Integer, Set<QueueInfo>>();
+	private RecipientDictionary recipients = new RecipientDictionary();
+	private AtomicLong nextId = new AtomicLong();
+	private Object[] mailLocks = new Object[MAIL_LOCK_STRIPES];
+	
+	public SimpleQueueStore() {
+		for( int i = 0; i < mailLocks.length; i++ )
+			mailLocks[i] = new Object();
+	}
 	
 	@Override
 	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
 		try {
-			for( InternetAddress recipient : recipients )
-			{
-				QueueInfo queueInfo = new QueueInfo();
-				queueInfo.setExpiry(expiry);
-				queueInfo.setMailid(mailid);
-				queueInfo.setRecipient(recipient.getAddress());
-				synchronized (lock) {
-					
-					queueInfoList.add(queueInfo);
-					
-					queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(),queueInfo.getRecipient()), queueInfo);
-					
-					if( !queueInfoByMailid.containsKey(queueInfo.getMailid()) )
-						queueInfoByMailid.put(queueInfo.getMailid(), new ArrayList<QueueInfo>());
-					queueInfoByMailid.get(queueInfo.getMailid()).add(queueInfo);
-					
-					if( !queueInfoByRecipient.containsKey(queueInfo.getRecipient()) )
-						queueInfoByRecipient.put(queueInfo.getRecipient(), new ArrayList<QueueInfo>());
-					queueInfoByRecipient.get(queueInfo.getRecipient()).add(queueInfo);
-					
+			synchronized (getMailLock(mailid)) {
+				for( InternetAddress recipient : recipients )
+				{
+					QueueInfo queueInfo = new QueueInfo();
+					queueInfo.setExpiry(expiry);
+					queueInfo.setMailid(mailid);
+					queueInfo.setRecipient(recipient.getAddress());
+					index(queueInfo);
 				}
 			}
 		} catch (Exception e) {
@@ -67,11 +85,22 @@ public class SimpleQueueStore implements QueueStore {
 	}
 	
 	@Override
-	public List<String> clean() {
-		List<String> mailidList = null;
-		synchronized (lock) {
-			mailidList = new ArrayList<String>(queueInfoByMailid.keySet());
+	public void addAll(List<QueueInfo> qiList) throws MessagingException {
+		for( QueueInfo qi : qiList )
+		{
+			synchronized (getMailLock(qi.getMailid())) {
+				QueueInfo queueInfo = new QueueInfo();
+				queueInfo.setExpiry(qi.getExpiry());
+				queueInfo.setMailid(qi.getMailid());
+				queueInfo.setRecipient(qi.getRecipient());
+				index(queueInfo);
+			}
 		}
+	}
+	
+	@Override
+	public List<String> clean() {
+		List<String> mailidList = new ArrayList<String>(queueInfoByMailid.keySet());
 		Iterator<String> mailidIt = mailidList.iterator();
 		while( mailidIt.hasNext() )
 		{
@@ -90,18 +119,36 @@ public class SimpleQueueStore implements QueueStore {
 		return new QueueInfo();
 	}
 	
+	@Override
+	public long getEarliestAttempt() {
+		ScheduleEntry entry;
+		while( (entry = first()) != null )
+		{
+			synchronized (getMailLock(entry.queueInfo.getMailid())) {
+				if( entry.isValid() && isStored(entry.queueInfo) )
+					return entry.attempt;
+				schedule.remove(entry);
+			}
+		}
+		return -1;
+	}
+	
 	@Override
 	public long getNextAttempt(String mailid, String recipient) {
-		QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
-		if( qInfo != null && qInfo.hasState(DeliveryState.QUEUED) )
-			return qInfo.getAttempt();
+		synchronized (getMailLock(mailid)) {
+			QueueInfo qInfo = getQueueInfo(mailid, recipient);
+			if( qInfo != null && qInfo.hasState(DeliveryState.QUEUED) )
+				return qInfo.getAttempt();
+		}
 		return -1;
 	}
 
 	@Override
 	public boolean hasBeenRecipientHandled(String mailid, String recipient) {
-		QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
-		return ( qInfo != null && qInfo.hasState(DeliveryState.FAILED, DeliveryState.SENT) );
+		synchronized (getMailLock(mailid)) {
+			QueueInfo qInfo = getQueueInfo(mailid, recipient);
+			return ( qInfo != null && qInfo.hasState(DeliveryState.FAILED, DeliveryState.SENT) );
+		}
 	}
 	
 	@Override
@@ -111,13 +158,15 @@ public class SimpleQueueStore implements QueueStore {
 	
 	@Override
 	public boolean isCompleted(String mailid) {
-		List<QueueInfo> qibmList = queueInfoByMailid.get(mailid);
-		if( qibmList != null )
-		{
-			for( QueueInfo sqi : qibmList )
+		synchronized (getMailLock(mailid)) {
+			Map<Integer, QueueInfo> qibmMap = queueInfoByMailid.get(mailid);
+			if( qibmMap != null )
 			{
-				if( sqi.hasState(DeliveryState.IN_PROGRESS, DeliveryState.QUEUED) )
-					return false;
+				for( QueueInfo sqi : qibmMap.values() )
+				{
+					if( sqi.hasState(DeliveryState.IN_PROGRESS, DeliveryState.QUEUED) )
+						return false;
+				}
 			}
 		}
 		return true;
@@ -125,61 +174,91 @@ public class SimpleQueueStore implements QueueStore {
 	
 	@Override
 	public QueueInfo next() {
-		if( !queueInfoList.isEmpty() )
+		List<QueueInfo> qiList = nextBatch(1);
+		return qiList.isEmpty() ? null : qiList.get(0);
+	}
+	
+	@Override
+	public List<QueueInfo> nextBatch(int max) {
+		List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+		long now = System.currentTimeMillis();
+		ScheduleEntry entry;
+		while( qiList.size() < max && (entry = first()) != null && entry.attempt < now )
 		{
-			synchronized (lock) {
-
-                Collections.sort(queueInfoList, queueInfoComparator);
-
-				ListIterator<QueueInfo> queueInfoIt = queueInfoList.listIterator();
-				while( queueInfoIt.hasNext() )
+			// Only one thread could remove the entry
+			if( !schedule.remove(entry) )
+				continue;
+			QueueInfo qi = entry.queueInfo;
+			synchronized (getMailLock(qi.getMailid())) {
+				if( !entry.isValid() || !isStored(qi) )
+					continue;
+				if( !qi.isInTimeBounds() )
 				{
-					QueueInfo qi = queueInfoIt.next();
-					if( qi.isSendable() ) {
-						if( !qi.isInTimeBounds() )
-						{
-							if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
-								qi.setResultInfo("Delivery is out of time or attempt.");
-							qi.setState(DeliveryState.FAILED);
-							setSendingResult(qi);
-						}
-						else
-						{	
-							qi.setState(DeliveryState.IN_PROGRESS);
-							return qi;
-						}
-					}
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+						qi.setResultInfo("Delivery is out of time or attempt.");
+					qi.setState(DeliveryState.FAILED);
+					setSendingResult(qi);
+				}
+				else
+				{	
+					qi.setState(DeliveryState.IN_PROGRESS);
+					qiList.add(qi);
 				}
 			}
 		}
-		return null;
+		return qiList;
+	}
+	
+	@Override
+	public void postpone(QueueInfo qi, long attempt) {
+		synchronized (getMailLock(qi.getMailid())) {
+			QueueInfo uniqueQueueInfo = getUniqueQueueInfo(qi);
+			if( uniqueQueueInfo == null || !uniqueQueueInfo.hasState(DeliveryState.IN_PROGRESS) )
+				return;
+			uniqueQueueInfo.setAttempt(attempt);
+			uniqueQueueInfo.setState(DeliveryState.QUEUED);
+			schedule.add(new ScheduleEntry(uniqueQueueInfo));
+		}
 	}
 	
 	@Override
 	public void remove(String mailid) {
-		synchronized (lock) {
-			List<QueueInfo> removeableQueueInfos = queueInfoByMailid.remove(mailid);
-			if( removeableQueueInfos != null )
-			{
-				for( QueueInfo sqi : removeableQueueInfos )
-				{
-					queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
-					queueInfoByRecipient.get(sqi.getRecipient()).remove(sqi);
-				}
+		Map<Integer, QueueInfo> removeableQueueInfos;
+		synchronized (getMailLock(mailid)) {
+			removeableQueueInfos = queueInfoByMailid.remove(mailid);
+			if( removeableQueueInfos == null )
+				return;
+			for( QueueInfo sqi : removeableQueueInfos.values() )
+				unindex(sqi);
+			synchronized (recipients) {
+				for( Map.Entry<Integer, QueueInfo> removeableEntry : removeableQueueInfos.entrySet() )
+					unindexRecipient(removeableEntry.getKey(), removeableEntry.getValue());
 			}
 		}
 	}
 
 	@Override
 	public void removeRecipient(String recipient) {
-		synchronized (lock) {
-			List<QueueInfo> removeableQueueInfos = queueInfoByRecipient.remove(recipient);
-			if( removeableQueueInfos != null )
-			{
-				for( QueueInfo sqi : removeableQueueInfos )
-				{
-					queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
-					queueInfoByMailid.get(sqi.getMailid()).remove(sqi);
+		int recipientId;
+		List<QueueInfo> removeableQueueInfos;
+		synchronized (recipients) {
+			recipientId = recipients.getId(recipient);
+			Set<QueueInfo> qibrSet = ( recipientId < 0 ) ? null : queueInfoByRecipient.get(recipientId);
+			if( qibrSet == null )
+				return;
+			removeableQueueInfos = new ArrayList<QueueInfo>(qibrSet);
+		}
+		// Mail locks could not be locked while holding the dictionary
+		for( QueueInfo sqi : removeableQueueInfos )
+		{
+			synchronized (getMailLock(sqi.getMailid())) {
+				Map<Integer, QueueInfo> qibmMap = queueInfoByMailid.get(sqi.getMailid());
+				if( qibmMap == null || qibmMap.get(recipientId) != sqi )
+					continue;
+				qibmMap.remove(recipientId);
+				unindex(sqi);
+				synchronized (recipients) {
+					unindexRecipient(recipientId, sqi);
 				}
 			}
 		}
@@ -187,24 +266,177 @@ public class SimpleQueueStore implements QueueStore {
 
 	@Override
 	public void setSendingResult(QueueInfo qi) {
-		synchronized (lock) {
-			QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
+		synchronized (getMailLock(qi.getMailid())) {
+			QueueInfo uniqueQueueInfo = getUniqueQueueInfo(qi);
 			if( uniqueQueueInfo != null )
 			{
+				if( uniqueQueueInfo.hasState(DeliveryState.QUEUED) )
+					schedule.remove(new ScheduleEntry(uniqueQueueInfo));
 				uniqueQueueInfo.setAttempt(System.currentTimeMillis()+AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
 				uniqueQueueInfo.incAttemptCount();
 				uniqueQueueInfo.setState(qi.getState());
+				if( uniqueQueueInfo.hasState(DeliveryState.QUEUED) )
+					schedule.add(new ScheduleEntry(uniqueQueueInfo));
 			}
 		}
 	}
 	
+	/**
+	 * Get the stored item of a given item. Caller have to hold the lock of 
+	 * its mail.
+	 */
+	private QueueInfo getUniqueQueueInfo(QueueInfo qi) {
+		QueueInfo uniqueQueueInfo = ( 0 <= qi.getId() ) ? queueInfoById.get(qi.getId()) : null;
+		if( uniqueQueueInfo == null )
+			uniqueQueueInfo = getQueueInfo(qi.getMailid(), qi.getRecipient());
+		return uniqueQueueInfo;
+	}
+	
 	@Override
 	public int size() {
 		return queueInfoByMailid.size();
 	}
 	
-	private String createSearchKey(String mailid, String recipient) {
-		return mailid+"-"+recipient;
+	/**
+	 * Put a stored item back into the store, for example on loading a 
+	 * persisted queue. Item is scheduled, if it is QUEUED.
+	 * 
+	 * @param queueInfo The restored item.
+	 */
+	void restore(QueueInfo queueInfo) {
+		synchronized (getMailLock(queueInfo.getMailid())) {
+			index(queueInfo);
+		}
+	}
+	
+	/**
+	 * The caller have to hold the lock of mail to read the state of item.
+	 * 
+	 * @param mailid The mail ID.
+	 * @param recipient The recipient address.
+	 * @return The stored item or null, if there is no such item.
+	 */
+	QueueInfo getQueueInfo(String mailid, String recipient) {
+		int recipientId;
+		synchronized (recipients) {
+			recipientId = recipients.getId(recipient);
+		}
+		Map<Integer, QueueInfo> qibmMap = ( recipientId < 0 ) ? null : queueInfoByMailid.get(mailid);
+		if( qibmMap == null )
+			return null;
+		synchronized (getMailLock(mailid)) {
+			return qibmMap.get(recipientId);
+		}
+	}
+	
+	/**
+	 * @return List of every stored item.
+	 */
+	List<QueueInfo> getQueueInfos() {
+		return new ArrayList<QueueInfo>(queueInfoById.values());
+	}
+	
+	/**
+	 * Give a new ID to the item and put it into the indexes. Recipient of 
+	 * item is replaced by the instance of recipient dictionary. Previous 
+	 * item of the same mail and recipient is replaced. The caller have to 
+	 * hold the lock of mail.
+	 */
+	private void index(QueueInfo queueInfo) {
+		int recipientId;
+		synchronized (recipients) {
+			recipientId = recipients.acquire(queueInfo.getRecipient());
+			queueInfo.setRecipient(recipients.getRecipient(recipientId), recipients.getDomain(recipientId));
+			Set<QueueInfo> qibrSet = queueInfoByRecipient.get(recipientId);
+			if( qibrSet == null )
+			{
+				qibrSet = Collections.newSetFromMap(new HashMap<QueueInfo, Boolean>(4));
+				queueInfoByRecipient.put(recipientId, qibrSet);
+			}
+			qibrSet.add(queueInfo);
+		}
+		queueInfo.setId(nextId.getAndIncrement());
+		queueInfoById.put(queueInfo.getId(), queueInfo);
+		
+		Map<Integer, QueueInfo> qibmMap = queueInfoByMailid.get(queueInfo.getMailid());
+		if( qibmMap == null )
+		{
+			qibmMap = new HashMap<Integer, QueueInfo>(4);
+			queueInfoByMailid.put(queueInfo.getMailid(), qibmMap);
+		}
+		QueueInfo replacedQueueInfo = qibmMap.put(recipientId, queueInfo);
+		if( replacedQueueInfo != null )
+		{
+			unindex(replacedQueueInfo);
+			synchronized (recipients) {
+				unindexRecipient(recipientId, replacedQueueInfo);
+			}
+		}
+		
+		if( queueInfo.hasState(DeliveryState.QUEUED) )
+			schedule.add(new ScheduleEntry(queueInfo));
+	}
+	
+	/**
+	 * Remove the item from ID index and schedule. The caller have to hold 
+	 * the lock of mail.
+	 */
+	private void unindex(QueueInfo queueInfo) {
+		queueInfoById.remove(queueInfo.getId());
+		if( queueInfo.hasState(DeliveryState.QUEUED) )
+			schedule.remove(new ScheduleEntry(queueInfo));
+	}
+	
+	/**
+	 * Remove the item from recipient index and dictionary. The caller have 
+	 * to hold the lock of recipient dictionary.
+	 */
+	private void unindexRecipient(int recipientId, QueueInfo queueInfo) {
+		Set<QueueInfo> qibrSet = queueInfoByRecipient.get(recipientId);
+		if( qibrSet != null && qibrSet.remove(queueInfo) )
+		{
+			if( qibrSet.isEmpty() )
+				queueInfoByRecipient.remove(recipientId);
+			recipients.release(recipientId);
+		}
+	}
+	
+	/**
+	 * @return True, if the item is the stored instance, it was not removed 
+	 * or replaced.
+	 */
+	private boolean isStored(QueueInfo queueInfo) {
+		return queueInfoById.get(queueInfo.getId()) == queueInfo;
+	}
+	
+	private ScheduleEntry first() {
+		try {
+			return schedule.isEmpty() ? null : schedule.first();
+		} catch (NoSuchElementException nsee) {
+			// Emptied by an other thread
+			return null;
+		}
+	}
+	
+	private Object getMailLock(String mailid) {
+		return mailLocks[(mailid.hashCode() & 0x7fffffff) % MAIL_LOCK_STRIPES];
+	}
+	
+	/**
+	 * Snapshot of a QueueInfo's attempt time in the schedule.
+	 */
+	private static class ScheduleEntry {
+		private final long attempt;
+		private final QueueInfo queueInfo;
+		
+		ScheduleEntry(QueueInfo queueInfo) {
+			this.attempt = queueInfo.getAttempt();
+			this.queueInfo = queueInfo;
+		}
+		
+		boolean isValid() {
+			return queueInfo.hasState(DeliveryState.QUEUED) && queueInfo.getAttempt() == attempt;
+		}
 	}
 
 }
@@ -4,51 +4,127 @@ import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.AspirinInternal;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
+import java.io.Closeable;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>This class is a simple example of SQL based QueueStore implementation.</p>
  * <p>SQLite is selected, because it is a platform independent, file based, easy SQL system.</p>
+ * <p>The database is used in WAL journal mode through one connection, which
+ * always has an open transaction. Claims, sending results and removals are
+ * executed in this transaction, and a commit thread commits them together in
+ * every commit interval, so a lot of delivery results cost one fsync. Added
+ * mails are committed immediately. Storing a sending result returns only
+ * after the next commit, so a result is durable before the delivery manager
+ * completes the delivery futures or removes the mail. Listeners are notified
+ * by the delivery task when the state is set, before the result is stored,
+ * so a notified result could be lost by a crash in the commit interval and
+ * the recipient is delivered again. On a crash only claims, postponed items and
+ * removals of the last commit interval could be lost: claimed items are
+ * QUEUED again on startup anyway, and a lost removal is done again by the
+ * next cleaning.</p>
+ * <p>Configuration properties:</p>
+ * <ul>
+ *   <li>{@value #PARAM_STORE_SQLITE_DB}: path of database file, required.</li>
+ *   <li>{@value #PARAM_STORE_SQLITE_COMMIT_INTERVAL}: commit interval in
+ *   milliseconds, default is 5. If it is zero, then every change is
+ *   committed immediately.</li>
+ * </ul>
  *
  * @author Laszlo Solova
  */
-public class SqliteQueueStore implements QueueStore {
+public class SqliteQueueStore implements QueueStore, BatchQueueStore, Closeable {
 
-    public static final String PARAM_STORE_SQLITE_DB = "aspirin.store.sqlite.db";
+  public static final String PARAM_STORE_SQLITE_DB = "aspirin.store.sqlite.db";
+  public static final String PARAM_STORE_SQLITE_COMMIT_INTERVAL = "aspirin.store.sqlite.commit.interval";
 
-    private Connection conn;
+  private static final long DEFAULT_COMMIT_INTERVAL = 5;
+  private static final String OUT_OF_BOUNDS_RESULT = "Delivery is out of time or attempt.";
+  /**
+   * Items are identified by their id. It is an alias of rowid, so it is not
+   * renumbered by VACUUM, and ids of removed items are never reused.
+   */
+  private static final String QUEUEINFOS_COLUMNS = "id INTEGER PRIMARY KEY AUTOINCREMENT, mailid VARCHAR(32), recipient TEXT, resultinfo TEXT, attempt BIGINT, attemptcount INT, expiry BIGINT, dstate SMALLINT";
 
-    public SqliteQueueStore() throws Exception {
-        this((String) Aspirin.getConfiguration().getProperty(PARAM_STORE_SQLITE_DB));
-    }
+  private Connection conn;
+  private final long commitInterval;
+  /** Prepared statements by SQL, used only while holding the store lock. */
+  private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+  /** There are uncommitted changes in the open transaction. */
+  private boolean dirty = false;
+  /** Count of commits, callers waiting for a commit are checking it. */
+  private long commitCount = 0;
+  private volatile boolean closed = false;
+  private CommitThread commitThread = null;
+
+  public SqliteQueueStore() throws Exception {
+    this((String) Aspirin.getConfiguration().getProperty(PARAM_STORE_SQLITE_DB), getCommitIntervalProperty());
+  }
 
-    SqliteQueueStore(String sqliteDbPath) throws Exception {
+  SqliteQueueStore(String sqliteDbPath) throws Exception {
+    this(sqliteDbPath, DEFAULT_COMMIT_INTERVAL);
+  }
+
+  SqliteQueueStore(String sqliteDbPath, long commitInterval) throws Exception {
     if (sqliteDbPath == null)
       throw new Exception(
           "Store file is undefined. Please, check configuration.");
+    this.commitInterval = Math.max(0, commitInterval);
     // Initialize SQLite connection
     Class.forName("org.sqlite.JDBC");
     conn = DriverManager.getConnection("jdbc:sqlite:" + sqliteDbPath);
+    // Journal mode could not be changed inside a transaction
+    executeSimpleQuery("PRAGMA journal_mode=WAL");
     conn.setAutoCommit(false);
     Statement stmt = conn.createStatement();
-    stmt.execute("CREATE TABLE IF NOT EXISTS queueinfos (mailid VARCHAR(32), recipient TEXT, resultinfo TEXT, attempt BIGINT, attemptcount INT, expiry BIGINT, dstate SMALLINT)");
+    stmt.execute("CREATE TABLE IF NOT EXISTS queueinfos (" + QUEUEINFOS_COLUMNS + ")");
+    migrateIds(stmt);
     stmt.execute("CREATE INDEX IF NOT EXISTS queueinfos_mailid_idx ON queueinfos (mailid)");
     stmt.execute("CREATE INDEX IF NOT EXISTS queueinfos_recipient_idx ON queueinfos (recipient)");
-    stmt.execute("CREATE INDEX IF NOT EXISTS queueinfos_dstate_idx ON queueinfos (dstate)");
+    // Due items are found by state and attempt, bounds are checked in the index
+    stmt.execute("DROP INDEX IF EXISTS queueinfos_dstate_idx");
+    stmt.execute("CREATE INDEX IF NOT EXISTS queueinfos_dstate_attempt_idx ON queueinfos (dstate, attempt, attemptcount, expiry)");
     stmt.execute("CREATE INDEX IF NOT EXISTS queueinfos_complexmr_idx ON queueinfos (mailid, recipient)");
     conn.commit();
-      stmt.close();
-    conn.setAutoCommit(true);
+    stmt.close();
+  }
+
+  /**
+   * Tables of previous versions have no id column, they are copied to a new
+   * table with their current rowids. Indexes are dropped with the old table,
+   * and they are created again by the caller.
+   */
+  private static void migrateIds(Statement stmt) throws SQLException {
+    boolean hasId = false;
+    ResultSet rS = stmt.executeQuery("PRAGMA table_info(queueinfos)");
+    while (rS.next()) {
+      if ("id".equalsIgnoreCase(rS.getString("name")))
+        hasId = true;
+    }
+    rS.close();
+    if (hasId)
+      return;
+    stmt.execute("CREATE TABLE queueinfos_migrated (" + QUEUEINFOS_COLUMNS + ")");
+    stmt.execute("INSERT INTO queueinfos_migrated (id, mailid, recipient, resultinfo, attempt, attemptcount, expiry, dstate) SELECT rowid, mailid, recipient, resultinfo, attempt, attemptcount, expiry, dstate FROM queueinfos");
+    stmt.execute("DROP TABLE queueinfos");
+    stmt.execute("ALTER TABLE queueinfos_migrated RENAME TO queueinfos");
+  }
+
+  private static long getCommitIntervalProperty() {
+    Object commitInterval = Aspirin.getConfiguration().getProperty(PARAM_STORE_SQLITE_COMMIT_INTERVAL);
+    return (commitInterval == null) ? DEFAULT_COMMIT_INTERVAL : Long.parseLong(commitInterval.toString());
   }
 
   @Override
-  public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+  public synchronized void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
       try {
-      PreparedStatement pStmt = conn
-          .prepareStatement("INSERT INTO queueinfos (mailid, recipient, resultinfo, attempt, attemptcount, expiry, dstate) VALUES (?,?,?,?,?,?,?)");
+      executeSimpleQuery("SAVEPOINT queueing");
+      PreparedStatement pStmt = prepare("INSERT INTO queueinfos (mailid, recipient, resultinfo, attempt, attemptcount, expiry, dstate) VALUES (?,?,?,?,?,?,?)");
       for (InternetAddress recipient : recipients) {
         pStmt.setString(1, mailid);
         pStmt.setString(2, recipient.getAddress());
@@ -60,7 +136,6 @@ public class SqliteQueueStore implements QueueStore {
         pStmt.addBatch();
       }
       int[] results = pStmt.executeBatch();
-        pStmt.close();
       boolean allOkay = true;
       for (int r : results)
         if (r < 0) {
@@ -70,29 +145,77 @@ public class SqliteQueueStore implements QueueStore {
         throw new MessagingException(
             "Message queueing failed on prepared statement execution." + mailid);
       }
+      executeSimpleQuery("RELEASE queueing");
+      // Accepted mails are not waiting for the commit thread
+      conn.commit();
+      committed();
     } catch (Exception e) {
+      rollbackTo("queueing");
       throw new MessagingException("Message queueing failed: " + mailid, e);
     }
   }
 
+  /**
+   * All items are inserted in one batch and committed together.
+   */
+  @Override
+  public synchronized void addAll(List<QueueInfo> qiList) throws MessagingException {
+    try {
+      executeSimpleQuery("SAVEPOINT queueing");
+      PreparedStatement pStmt = prepare("INSERT INTO queueinfos (mailid, recipient, resultinfo, attempt, attemptcount, expiry, dstate) VALUES (?,?,?,?,?,?,?)");
+      long now = System.currentTimeMillis();
+      for (QueueInfo qi : qiList) {
+        pStmt.setString(1, qi.getMailid());
+        pStmt.setString(2, qi.getRecipient());
+        pStmt.setNull(3, Types.CLOB);
+        pStmt.setLong(4, now);
+        pStmt.setInt(5, 0);
+        pStmt.setLong(6, qi.getExpiry());
+        pStmt.setInt(7, DeliveryState.QUEUED.getStateId());
+        pStmt.addBatch();
+      }
+      int[] results = pStmt.executeBatch();
+      boolean allOkay = true;
+      for (int r : results)
+        if (r < 0) {
+          allOkay = false;
+        }
+      if (results.length != qiList.size() || !allOkay) {
+        throw new MessagingException(
+            "Message queueing failed on prepared statement execution.");
+      }
+      executeSimpleQuery("RELEASE queueing");
+      // Accepted mails are not waiting for the commit thread
+      conn.commit();
+      committed();
+    } catch (Exception e) {
+      rollbackTo("queueing");
+      throw new MessagingException("Message queueing failed: " + qiList.size() + " items", e);
+    }
+  }
+
   @Override
-  public List<String> clean() {
+  public synchronized List<String> clean() {
     List<String> usedMailIds = new ArrayList<String>();
     try {
       executeSimpleQuery("DELETE FROM queueinfos WHERE mailid NOT IN (SELECT mailid FROM queueinfos WHERE dstate IN ("
           + DeliveryState.QUEUED.getStateId()
           + ", "
           + DeliveryState.IN_PROGRESS.getStateId() + "))");
-      Statement stmt = conn.createStatement();
-      ResultSet rS = stmt
-          .executeQuery("SELECT DISTINCT mailid FROM queueinfos");
+      ResultSet rS = prepare("SELECT DISTINCT mailid FROM queueinfos").executeQuery();
       if (rS != null) {
         while (rS.next())
           usedMailIds.add(rS.getString("mailid"));
           rS.close();
       }
-      stmt.close();
-      executeSimpleQuery("VACUUM");
+      // VACUUM could not run inside a transaction
+      conn.setAutoCommit(true);
+      committed();
+      try {
+        executeSimpleQuery("VACUUM");
+      } finally {
+        conn.setAutoCommit(false);
+      }
     } catch (SQLException e) {
       AspirinInternal.getLogger().error("Store cleaning failed.", e);
     }
@@ -105,12 +228,30 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public long getNextAttempt(String mailid, String recipient) {
+  public synchronized long getEarliestAttempt() {
+    long attempt = -1;
+    try {
+      PreparedStatement pStmt = prepare("SELECT MIN(attempt) AS minattempt FROM queueinfos WHERE dstate=?");
+      pStmt.setInt(1, DeliveryState.QUEUED.getStateId());
+      ResultSet rS = pStmt.executeQuery();
+      if (rS != null && rS.next()) {
+        long minAttempt = rS.getLong("minattempt");
+        if (!rS.wasNull())
+          attempt = minAttempt;
+          rS.close();
+      }
+    } catch (SQLException e) {
+      AspirinInternal.getLogger().error("Earliest attempt checking failed.", e);
+    }
+    return attempt;
+  }
+
+  @Override
+  public synchronized long getNextAttempt(String mailid, String recipient) {
     PreparedStatement pStmt;
       int attempt = 0;
     try {
-      pStmt = conn
-          .prepareStatement("SELECT attempt FROM queueinfos WHERE mailid=? AND recipient=?");
+      pStmt = prepare("SELECT attempt FROM queueinfos WHERE mailid=? AND recipient=?");
       pStmt.setString(1, mailid);
       pStmt.setString(2, recipient);
       ResultSet rS = pStmt.executeQuery();
@@ -120,7 +261,6 @@ public class SqliteQueueStore implements QueueStore {
           attempt = attemptResult;
           rS.close();
       }
-        pStmt.close();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error("Next attempt checking failed.", e);
     }
@@ -128,12 +268,11 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public boolean hasBeenRecipientHandled(String mailid, String recipient) {
+  public synchronized boolean hasBeenRecipientHandled(String mailid, String recipient) {
     PreparedStatement pStmt;
       boolean recipientHandled = false;
     try {
-      pStmt = conn
-          .prepareStatement("SELECT dstate FROM queueinfos WHERE mailid=? AND recipient=?");
+      pStmt = prepare("SELECT dstate FROM queueinfos WHERE mailid=? AND recipient=?");
       pStmt.setString(1, mailid);
       pStmt.setString(2, recipient);
       ResultSet rS = pStmt.executeQuery();
@@ -143,7 +282,6 @@ public class SqliteQueueStore implements QueueStore {
             .getStateId();
           rS.close();
       }
-        pStmt.close();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error(
           "Concrete delivery status checking (mailid '" + mailid
@@ -153,11 +291,17 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public void init() {
+  public synchronized void init() {
     try {
       executeSimpleQuery("UPDATE queueinfos SET dstate="
           + DeliveryState.QUEUED.getStateId() + " WHERE dstate="
           + DeliveryState.IN_PROGRESS.getStateId());
+      conn.commit();
+      committed();
+      if (0 < commitInterval && commitThread == null) {
+        commitThread = new CommitThread();
+        commitThread.start();
+      }
       AspirinInternal.getLogger().info("SQLite QueueStore initialized.");
     } catch (SQLException e) {
       AspirinInternal.getLogger().error(
@@ -166,12 +310,11 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public boolean isCompleted(String mailid) {
+  public synchronized boolean isCompleted(String mailid) {
       boolean completed = false;
       PreparedStatement pStmt;
       try {
-        pStmt = conn
-          .prepareStatement("SELECT COUNT(recipient) AS recipientcount FROM queueinfos WHERE mailid=? AND (dstate="
+        pStmt = prepare("SELECT COUNT(recipient) AS recipientcount FROM queueinfos WHERE mailid=? AND (dstate="
               + DeliveryState.QUEUED.getStateId()
               + " OR dstate="
               + DeliveryState.IN_PROGRESS.getStateId() + ")");
@@ -182,7 +325,6 @@ public class SqliteQueueStore implements QueueStore {
         completed = rCount == 0;
           rS.close();
       }
-        pStmt.close();
     } catch (SQLException e) {
           AspirinInternal.getLogger().error("Completion checking failed.", e);
       }
@@ -191,68 +333,130 @@ public class SqliteQueueStore implements QueueStore {
 
   @Override
   public QueueInfo next() {
+    List<QueueInfo> qiList = nextBatch(1);
+    return qiList.isEmpty() ? null : qiList.get(0);
+  }
+
+  @Override
+  public synchronized List<QueueInfo> nextBatch(int max) {
+    List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+    List<QueueInfo> failedList = new ArrayList<QueueInfo>();
     try {
-      synchronized (this) {
-
-        /*
-         * We can filter with a complex SQL query, which can check
-         * sendable state of a QueueInfo, but this break our built-in
-         * checks and feedback, so it is easier to get all items and
-         * check it by Java code.
-         * SELECT mailid, recipient, attempt, attemptcount, expiry FROM
-         * queueinfos WHERE
-         * attempt < 1306000972154 AND
-         * attemptcount < 3 AND
-         * dstate=2 AND
-         * (expiry == -1 OR 1306000972154 < expiry )
-         * ORDER BY attempt ASC LIMIT 1
-         */
-        PreparedStatement pStmt = conn
-            .prepareStatement("SELECT mailid, recipient, attempt, attemptcount, expiry FROM queueinfos WHERE dstate=? ORDER BY attempt ASC LIMIT 100");
-        pStmt.setInt(1, DeliveryState.QUEUED.getStateId());
-        ResultSet rS = pStmt.executeQuery();
-        if (rS != null) {
-          while (rS.next()) {
-            QueueInfo qi = new QueueInfo();
-            qi.setAttempt(rS.getLong("attempt"));
-            qi.setAttemptCount(rS.getInt("attemptcount"));
-            qi.setExpiry(rS.getLong("expiry"));
-            qi.setMailid(rS.getString("mailid"));
-            qi.setRecipient(rS.getString("recipient"));
-            qi.setState(DeliveryState.QUEUED);
-
-            if (qi.isSendable()) {
-              if (!qi.isInTimeBounds()) {
-                qi.setResultInfo("Delivery is out of time or attempt.");
-                qi.setState(DeliveryState.FAILED);
-                setSendingResult(qi);
-              }
-              else {
-                qi.setState(DeliveryState.IN_PROGRESS);
-                executeSimplePreparedStatement(
-                    "UPDATE queueinfos SET dstate=? WHERE mailid=? AND recipient=?",
-                    DeliveryState.IN_PROGRESS.getStateId(), qi.getMailid(),
-                    qi.getRecipient());
-                return qi;
-              }
-            }
-          }
-            rS.close();
-        }
-          pStmt.close();
+      executeSimpleQuery("SAVEPOINT claiming");
+      long now = System.currentTimeMillis();
+      int attemptCountMax = AspirinInternal.getConfiguration().getDeliveryAttemptCount();
+
+      /*
+       * Due items out of time or attempt bounds are failed by one UPDATE.
+       * They are selected before, because listeners have to be notified
+       * about them.
+       */
+      PreparedStatement pStmt = prepare("SELECT mailid, recipient, attempt, attemptcount, expiry FROM queueinfos WHERE dstate=? AND attempt<? AND (? <= attemptcount OR (expiry <> -1 AND expiry <= ?))");
+      setDueParameters(pStmt, now, attemptCountMax);
+      ResultSet rS = pStmt.executeQuery();
+      while (rS.next()) {
+        QueueInfo qi = createQueueInfo(rS);
+        qi.setResultInfo(OUT_OF_BOUNDS_RESULT);
+        qi.incAttemptCount();
+        failedList.add(qi);
+      }
+      rS.close();
+      if (!failedList.isEmpty()) {
+        pStmt = prepare("UPDATE queueinfos SET resultinfo=?, attempt=?, attemptcount=attemptcount+1, dstate=? WHERE dstate=? AND attempt<? AND (? <= attemptcount OR (expiry <> -1 AND expiry <= ?))");
+        pStmt.setString(1, OUT_OF_BOUNDS_RESULT);
+        pStmt.setLong(2, now + AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
+        pStmt.setInt(3, DeliveryState.FAILED.getStateId());
+        pStmt.setInt(4, DeliveryState.QUEUED.getStateId());
+        pStmt.setLong(5, now);
+        pStmt.setInt(6, attemptCountMax);
+        pStmt.setLong(7, now);
+        pStmt.executeUpdate();
       }
+
+      /*
+       * Every remaining due item is sendable, the (dstate, attempt, ...)
+       * index gives them in attempt order. The selected rows are claimed in
+       * the same savepoint, so no other thread could claim them.
+       */
+      pStmt = prepare("SELECT id, mailid, recipient, attempt, attemptcount, expiry FROM queueinfos WHERE dstate=? AND attempt<? AND attemptcount<? AND (expiry=-1 OR ?<expiry) ORDER BY attempt ASC LIMIT ?");
+      setDueParameters(pStmt, now, attemptCountMax);
+      pStmt.setInt(5, max);
+      rS = pStmt.executeQuery();
+      PreparedStatement claimStmt = prepare("UPDATE queueinfos SET dstate=? WHERE id=?");
+      while (rS.next()) {
+        QueueInfo qi = createQueueInfo(rS);
+        qi.setId(rS.getLong("id"));
+        qi.setState(DeliveryState.IN_PROGRESS);
+        qiList.add(qi);
+        claimStmt.setInt(1, DeliveryState.IN_PROGRESS.getStateId());
+        claimStmt.setLong(2, qi.getId());
+        claimStmt.addBatch();
+      }
+      rS.close();
+      if (!qiList.isEmpty())
+        claimStmt.executeBatch();
+      executeSimpleQuery("RELEASE claiming");
+      if (!qiList.isEmpty() || !failedList.isEmpty())
+        changed();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error(
           "Failed get next sendable queueinfo item.", e);
+      rollbackTo("claiming");
+      qiList.clear();
+      failedList.clear();
+    }
+    // Listeners are notified only about committed results
+    if (!failedList.isEmpty())
+      awaitCommit();
+    for (QueueInfo qi : failedList)
+      qi.setState(DeliveryState.FAILED);
+    return qiList;
+  }
+
+  private static void setDueParameters(PreparedStatement pStmt, long now, int attemptCountMax) throws SQLException {
+    pStmt.setInt(1, DeliveryState.QUEUED.getStateId());
+    pStmt.setLong(2, now);
+    pStmt.setInt(3, attemptCountMax);
+    pStmt.setLong(4, now);
+  }
+
+  private static QueueInfo createQueueInfo(ResultSet rS) throws SQLException {
+    QueueInfo qi = new QueueInfo();
+    qi.setAttempt(rS.getLong("attempt"));
+    qi.setAttemptCount(rS.getInt("attemptcount"));
+    qi.setExpiry(rS.getLong("expiry"));
+    qi.setMailid(rS.getString("mailid"));
+    qi.setRecipient(rS.getString("recipient"));
+    return qi;
+  }
+
+  @Override
+  public synchronized void postpone(QueueInfo qi, long attempt) {
+    try {
+      if (0 <= qi.getId())
+        executeSimplePreparedStatement(
+            "UPDATE queueinfos SET attempt=?, dstate=? WHERE id=? AND dstate=?",
+            attempt, DeliveryState.QUEUED.getStateId(), qi.getId(),
+            DeliveryState.IN_PROGRESS.getStateId());
+      else
+        executeSimplePreparedStatement(
+            "UPDATE queueinfos SET attempt=?, dstate=? WHERE mailid=? AND recipient=? AND dstate=?",
+            attempt, DeliveryState.QUEUED.getStateId(), qi.getMailid(),
+            qi.getRecipient(), DeliveryState.IN_PROGRESS.getStateId());
+      changed();
+      qi.setAttempt(attempt);
+      qi.setState(DeliveryState.QUEUED);
+    } catch (SQLException e) {
+      AspirinInternal.getLogger().error("Postponing failed. qi=" + qi, e);
     }
-    return null;
   }
 
   @Override
-  public void remove(String mailid) {
+  public synchronized void remove(String mailid) {
     try {
       executeSimplePreparedStatement("DELETE FROM queueinfos WHERE mailid=?",
           mailid);
+      changed();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error(
           "Removing by mailid failed. mailid=" + mailid, e);
@@ -260,10 +464,11 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public void removeRecipient(String recipient) {
+  public synchronized void removeRecipient(String recipient) {
     try {
       executeSimplePreparedStatement(
           "DELETE FROM queueinfos WHERE recipient=?", recipient);
+      changed();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error(
           "Removing by recipient failed. recipient=" + recipient, e);
@@ -271,14 +476,23 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public void setSendingResult(QueueInfo qi) {
+  public synchronized void setSendingResult(QueueInfo qi) {
     try {
-      executeSimplePreparedStatement(
-          "UPDATE queueinfos SET resultinfo=?, attempt=?, attemptcount=attemptcount+1, dstate=? WHERE mailid=? AND recipient=?",
-          qi.getResultInfo(), System.currentTimeMillis()
-              + AspirinInternal.getConfiguration().getDeliveryAttemptDelay(),
-          qi.getState().getStateId(), qi.getMailid(), qi.getRecipient());
-      qi.setState(qi.getState());
+      // Items given by this store have their id
+      if (0 <= qi.getId())
+        executeSimplePreparedStatement(
+            "UPDATE queueinfos SET resultinfo=?, attempt=?, attemptcount=attemptcount+1, dstate=? WHERE id=?",
+            qi.getResultInfo(), System.currentTimeMillis()
+                + AspirinInternal.getConfiguration().getDeliveryAttemptDelay(),
+            qi.getState().getStateId(), qi.getId());
+      else
+        executeSimplePreparedStatement(
+            "UPDATE queueinfos SET resultinfo=?, attempt=?, attemptcount=attemptcount+1, dstate=? WHERE mailid=? AND recipient=?",
+            qi.getResultInfo(), System.currentTimeMillis()
+                + AspirinInternal.getConfiguration().getDeliveryAttemptDelay(),
+            qi.getState().getStateId(), qi.getMailid(), qi.getRecipient());
+      changed();
+      awaitCommit();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error("Sending result set failed. qi=" + qi,
           e);
@@ -286,25 +500,124 @@ public class SqliteQueueStore implements QueueStore {
   }
 
   @Override
-  public int size() {
+  public synchronized int size() {
     int size = 0;
     try {
-      Statement stmt = conn.createStatement();
-      ResultSet rS = stmt
-          .executeQuery("SELECT COUNT(DISTINCT mailid) AS mcount FROM queueinfos");
+      ResultSet rS = prepare("SELECT COUNT(DISTINCT mailid) AS mcount FROM queueinfos").executeQuery();
       if (rS != null && rS.next()) {
         Integer mcount = rS.getInt("mcount");
         if (0 < mcount)
           size = mcount;
           rS.close();
       }
-        stmt.close();
     } catch (SQLException e) {
       AspirinInternal.getLogger().error("Calculating queue size failed.", e);
     }
     return size;
   }
 
+  /**
+   * Commit the pending changes, and close the connection.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (commitThread != null) {
+      commitThread.interrupt();
+      try {
+        commitThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      try {
+        commit();
+        // Callers waiting for a failed commit are released
+        notifyAll();
+        for (PreparedStatement pStmt : statements.values())
+          pStmt.close();
+        statements.clear();
+        conn.close();
+      } catch (SQLException e) {
+        AspirinInternal.getLogger().error("Closing SQLite QueueStore failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Commit the open transaction, if it has changes.
+   */
+  synchronized void commit() {
+    if (!dirty)
+      return;
+    try {
+      conn.commit();
+      committed();
+    } catch (SQLException e) {
+      AspirinInternal.getLogger().error("Committing changes failed.", e);
+    }
+  }
+
+  /**
+   * Mark the open transaction as committed, and wake up the callers waiting
+   * for a commit. Caller have to hold the store lock.
+   */
+  private void committed() {
+    dirty = false;
+    commitCount++;
+    notifyAll();
+  }
+
+  /**
+   * Wait until the changes made so far are committed. The commit thread
+   * commits the changes of many callers together. The store lock is
+   * released while waiting, caller have to hold it.
+   */
+  private void awaitCommit() {
+    long commitCountBefore = commitCount;
+    while (dirty && commitCount == commitCountBefore && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Mark the open transaction as changed. Without commit thread it is
+   * committed immediately.
+   */
+  private void changed() {
+    dirty = true;
+    if (commitThread == null)
+      commit();
+  }
+
+  /**
+   * Roll back changes after the savepoint, but keep changes of other
+   * threads in the open transaction.
+   */
+  private void rollbackTo(String savepoint) {
+    try {
+      executeSimpleQuery("ROLLBACK TO " + savepoint);
+      executeSimpleQuery("RELEASE " + savepoint);
+    } catch (SQLException e) {
+      AspirinInternal.getLogger().error("Rollback failed.", e);
+    }
+  }
+
+  private PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement pStmt = statements.get(sql);
+    if (pStmt == null) {
+      pStmt = conn.prepareStatement(sql);
+      statements.put(sql, pStmt);
+    }
+    return pStmt;
+  }
+
   private void executeSimpleQuery(String query) throws SQLException {
     Statement stmt = conn.createStatement();
     stmt.execute(query);
@@ -313,7 +626,7 @@ public class SqliteQueueStore implements QueueStore {
 
   private void executeSimplePreparedStatement(String sql, Object... parameters)
       throws SQLException {
-    PreparedStatement pStmt = conn.prepareStatement(sql);
+    PreparedStatement pStmt = prepare(sql);
     int i = 1;
     for (Object parameter : parameters) {
       if (parameter instanceof String)
@@ -322,10 +635,36 @@ public class SqliteQueueStore implements QueueStore {
         pStmt.setInt(i, (Integer) parameter);
       else if (parameter instanceof Long)
         pStmt.setLong(i, (Long) parameter);
+      else if (parameter == null)
+        pStmt.setNull(i, Types.CLOB);
       i++;
     }
     pStmt.execute();
-    pStmt.close();
+  }
+
+  /**
+   * This thread commits the changes of delivery threads together, once in
+   * every commit interval.
+   */
+  private class CommitThread extends Thread {
+
+    CommitThread() {
+      super("SqliteQueueStore-Commit");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          Thread.sleep(commitInterval);
+        } catch (InterruptedException e) {
+          // Store is closed
+        }
+        commit();
+      }
+    }
+
   }
 
 }
@@ -0,0 +1,720 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Durable QueueStore implementation based on a write-ahead log. Items are
+ * held in the in-memory index of {@link SimpleQueueStore}, and every change
+ * is appended to a log file as an event: add, claim, result and remove. On
+ * startup the last snapshot and the log are replayed into the index, and the
+ * items which were IN_PROGRESS are QUEUED again.</p>
+ *
+ * <p>Events are written and synced to disk by a background thread in
+ * batches. Adding a mail returns after its event is synced, so an accepted
+ * mail is never lost. Other events are synced in every sync interval, so on
+ * a crash only the results of the last few milliseconds could be lost -
+ * these deliveries are repeated after restart.</p>
+ *
+ * <p>If the log grows larger than twice of the last snapshot, then a new
+ * compacted snapshot is written, which contains only the current items, and
+ * a new log file is started.</p>
+ *
+ * <p>Configuration properties:</p>
+ * <ul>
+ *   <li>{@value #PARAM_STORE_WAL_DIR}: directory of log and snapshot files,
+ *   required.</li>
+ *   <li>{@value #PARAM_STORE_WAL_SYNC_INTERVAL}: sync interval in
+ *   milliseconds, default is 10.</li>
+ * </ul>
+ *
+ * @author Laszlo Solova
+ *
+ */
+public class WalQueueStore extends SimpleQueueStore implements QueueStore, BatchQueueStore, Closeable {
+	
+	public static final String PARAM_STORE_WAL_DIR = "aspirin.store.wal.dir";
+	public static final String PARAM_STORE_WAL_SYNC_INTERVAL = "aspirin.store.wal.sync.interval";
+	
+	private static final long DEFAULT_SYNC_INTERVAL = 10;
+	/** Smaller logs are never compacted. */
+	private static final long COMPACTION_LOG_SIZE_MIN = 16L*1024*1024;
+	private static final int SNAPSHOT_MAGIC = 0x41575331;
+	private static final String SNAPSHOT_FILE_NAME = "queue.snapshot";
+	private static final String LOG_FILE_PREFIX = "queue-";
+	private static final String LOG_FILE_SUFFIX = ".log";
+	
+	private static final byte EVENT_ADD = 1;
+	private static final byte EVENT_CLAIM = 2;
+	private static final byte EVENT_RESULT = 3;
+	private static final byte EVENT_REMOVE = 4;
+	private static final byte EVENT_REMOVE_RECIPIENT = 5;
+	
+	private final File walDir;
+	private final long syncInterval;
+	
+	/**
+	 * Guards changes of the index together with appending their events, so
+	 * the order of events is the order of changes.
+	 */
+	private final Object walLock = new Object();
+	/** The event under construction. */
+	private final ByteArrayOutputStream eventBuffer = new ByteArrayOutputStream(256);
+	private final CRC32 eventChecksum = new CRC32();
+	private final DataOutputStream eventOut = new DataOutputStream(new CheckedOutputStream(eventBuffer, eventChecksum));
+	/** Events appended, but not written to the log file yet. */
+	private final ByteArrayOutputStream pendingBuffer = new ByteArrayOutputStream(65536);
+	private final DataOutputStream pendingOut = new DataOutputStream(pendingBuffer);
+	private long appendedSeq = 0;
+	private long syncedSeq = 0;
+	private boolean syncRequested = false;
+	private boolean closed = false;
+	private IOException failure = null;
+	private long generation = 0;
+	private LogWriter logWriter = null;
+	
+	public WalQueueStore() throws Exception {
+		this((String)Aspirin.getConfiguration().getProperty(PARAM_STORE_WAL_DIR), getSyncIntervalProperty());
+	}
+	
+	WalQueueStore(String walDirPath, long syncInterval) throws Exception {
+		if( walDirPath == null )
+			throw new Exception("Store directory is undefined. Please, check configuration.");
+		this.walDir = new File(walDirPath);
+		this.syncInterval = Math.max(1, syncInterval);
+	}
+	
+	private static long getSyncIntervalProperty() {
+		Object syncInterval = Aspirin.getConfiguration().getProperty(PARAM_STORE_WAL_SYNC_INTERVAL);
+		return ( syncInterval == null ) ? DEFAULT_SYNC_INTERVAL : Long.parseLong(syncInterval.toString());
+	}
+	
+	@Override
+	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+		synchronized (walLock) {
+			if( logWriter == null || closed )
+				throw new MessagingException("Message queueing failed, store is not open: "+mailid);
+			super.add(mailid, expiry, recipients);
+			try {
+				eventOut.writeByte(EVENT_ADD);
+				writeString(eventOut, mailid);
+				eventOut.writeLong(expiry);
+				eventOut.writeInt(recipients.size());
+				for( InternetAddress recipient : recipients )
+					writeString(eventOut, recipient.getAddress());
+				awaitSync(appendEvent());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Message queueing interrupted: "+mailid, ie);
+			} catch (IOException ioe) {
+				throw new MessagingException("Message queueing failed: "+mailid, ioe);
+			}
+			if( failure != null )
+				throw new MessagingException("Message queueing failed: "+mailid, failure);
+		}
+	}
+	
+	/**
+	 * Recipients of the same mail are written in one add event, and all 
+	 * events are synced together.
+	 */
+	@Override
+	public void addAll(List<QueueInfo> qiList) throws MessagingException {
+		if( qiList.isEmpty() )
+			return;
+		synchronized (walLock) {
+			if( logWriter == null || closed )
+				throw new MessagingException("Message queueing failed, store is not open: "+qiList.get(0).getMailid());
+			super.addAll(qiList);
+			try {
+				long seq = 0;
+				int start = 0;
+				while( start < qiList.size() )
+				{
+					QueueInfo first = qiList.get(start);
+					int end = start + 1;
+					while( end < qiList.size() && first.getMailid().equals(qiList.get(end).getMailid()) && first.getExpiry() == qiList.get(end).getExpiry() )
+						end++;
+					eventOut.writeByte(EVENT_ADD);
+					writeString(eventOut, first.getMailid());
+					eventOut.writeLong(first.getExpiry());
+					eventOut.writeInt(end - start);
+					for( int i = start; i < end; i++ )
+						writeString(eventOut, qiList.get(i).getRecipient());
+					seq = appendEvent();
+					start = end;
+				}
+				awaitSync(seq);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Message queueing interrupted.", ie);
+			} catch (IOException ioe) {
+				throw new MessagingException("Message queueing failed.", ioe);
+			}
+			if( failure != null )
+				throw new MessagingException("Message queueing failed.", failure);
+		}
+	}
+	
+	/**
+	 * Wait until the event is synced by the log writer. The caller have to 
+	 * hold walLock.
+	 */
+	private void awaitSync(long seq) throws InterruptedException {
+		syncRequested = true;
+		walLock.notifyAll();
+		while( syncedSeq < seq && failure == null )
+			walLock.wait();
+	}
+	
+	@Override
+	public void init() {
+		try {
+			if( !walDir.isDirectory() && !walDir.mkdirs() )
+				throw new IOException("Store directory could not be created: "+walDir.getAbsolutePath());
+			Map<String, Map<String, QueueInfo>> queueInfos = new LinkedHashMap<String, Map<String,QueueInfo>>();
+			long snapshotGeneration = readSnapshot(queueInfos);
+			long lastGeneration = snapshotGeneration;
+			for( Long logGeneration : listLogGenerations() )
+			{
+				if( snapshotGeneration <= logGeneration )
+					replayLog(getLogFile(logGeneration), queueInfos);
+				lastGeneration = Math.max(lastGeneration, logGeneration);
+			}
+			int itemCount = 0;
+			for( Map<String, QueueInfo> mailQueueInfos : queueInfos.values() )
+			{
+				for( QueueInfo qi : mailQueueInfos.values() )
+				{
+					if( qi.hasState(DeliveryState.IN_PROGRESS) )
+						qi.restoreState(DeliveryState.QUEUED);
+					restore(qi);
+					itemCount++;
+				}
+			}
+			synchronized (walLock) {
+				generation = lastGeneration + 1;
+				long snapshotSize = writeSnapshot(generation, getQueueInfos());
+				logWriter = new LogWriter(openLog(generation), snapshotSize);
+				logWriter.start();
+			}
+			AspirinInternal.getLogger().info("WAL QueueStore initialized. Items: "+itemCount);
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("WAL QueueStore initialization failed.", e);
+		}
+	}
+	
+	@Override
+	public List<QueueInfo> nextBatch(int max) {
+		synchronized (walLock) {
+			List<QueueInfo> qiList = super.nextBatch(max);
+			if( !qiList.isEmpty() )
+			{
+				try {
+					eventOut.writeByte(EVENT_CLAIM);
+					eventOut.writeInt(qiList.size());
+					for( QueueInfo qi : qiList )
+					{
+						writeString(eventOut, qi.getMailid());
+						writeString(eventOut, qi.getRecipient());
+					}
+					appendEvent();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("WalQueueStore.nextBatch(): Claim event could not be logged.", ioe);
+				}
+			}
+			return qiList;
+		}
+	}
+	
+	@Override
+	public void remove(String mailid) {
+		synchronized (walLock) {
+			super.remove(mailid);
+			try {
+				eventOut.writeByte(EVENT_REMOVE);
+				writeString(eventOut, mailid);
+				appendEvent();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("WalQueueStore.remove(): Remove event could not be logged. Mail="+mailid, ioe);
+			}
+		}
+	}
+	
+	@Override
+	public void removeRecipient(String recipient) {
+		synchronized (walLock) {
+			super.removeRecipient(recipient);
+			try {
+				eventOut.writeByte(EVENT_REMOVE_RECIPIENT);
+				writeString(eventOut, recipient);
+				appendEvent();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("WalQueueStore.removeRecipient(): Remove event could not be logged. Recipient="+recipient, ioe);
+			}
+		}
+	}
+	
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		synchronized (walLock) {
+			super.setSendingResult(qi);
+			QueueInfo storedQi = getQueueInfo(qi.getMailid(), qi.getRecipient());
+			if( storedQi != null )
+			{
+				try {
+					eventOut.writeByte(EVENT_RESULT);
+					writeQueueInfo(eventOut, storedQi);
+					appendEvent();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("WalQueueStore.setSendingResult(): Result event could not be logged. "+qi, ioe);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void postpone(QueueInfo qi, long attempt) {
+		synchronized (walLock) {
+			super.postpone(qi, attempt);
+			QueueInfo storedQi = getQueueInfo(qi.getMailid(), qi.getRecipient());
+			if( storedQi != null && storedQi.hasState(DeliveryState.QUEUED) )
+			{
+				try {
+					eventOut.writeByte(EVENT_RESULT);
+					writeQueueInfo(eventOut, storedQi);
+					appendEvent();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("WalQueueStore.postpone(): Postponed item could not be logged. "+qi, ioe);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Write every appended event to the log and stop the log writer. Changes
+	 * after closing are not persisted.
+	 */
+	@Override
+	public void close() {
+		LogWriter stoppedLogWriter;
+		synchronized (walLock) {
+			closed = true;
+			walLock.notifyAll();
+			stoppedLogWriter = logWriter;
+		}
+		if( stoppedLogWriter != null )
+		{
+			try {
+				stoppedLogWriter.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Move the event under construction to the pending events. Every event
+	 * is framed by its length and its CRC32 checksum, so a partially written
+	 * event at the end of log is detected on replay. Caller have to hold
+	 * walLock.
+	 *
+	 * @return Sequence number of the event.
+	 */
+	private long appendEvent() throws IOException {
+		try {
+			if( failure == null && !closed )
+			{
+				pendingOut.writeInt(eventBuffer.size());
+				eventBuffer.writeTo(pendingOut);
+				pendingOut.writeInt((int)eventChecksum.getValue());
+			}
+			return ++appendedSeq;
+		} finally {
+			eventBuffer.reset();
+			eventChecksum.reset();
+		}
+	}
+	
+	/**
+	 * Copy the current items. Caller have to hold walLock, so items do not
+	 * change while they are copied.
+	 */
+	private List<QueueInfo> copyQueueInfos() {
+		List<QueueInfo> qiList = getQueueInfos();
+		List<QueueInfo> copyList = new ArrayList<QueueInfo>(qiList.size());
+		for( QueueInfo qi : qiList )
+		{
+			QueueInfo copy = new QueueInfo();
+			copy.setMailid(qi.getMailid());
+			copy.setRecipient(qi.getRecipient());
+			copy.setResultInfo(qi.getResultInfo());
+			copy.setAttempt(qi.getAttempt());
+			copy.setAttemptCount(qi.getAttemptCount());
+			copy.setExpiry(qi.getExpiry());
+			copy.restoreState(qi.getState());
+			copyList.add(copy);
+		}
+		return copyList;
+	}
+	
+	private File getLogFile(long logGeneration) {
+		return new File(walDir, LOG_FILE_PREFIX+logGeneration+LOG_FILE_SUFFIX);
+	}
+	
+	private List<Long> listLogGenerations() {
+		List<Long> generations = new ArrayList<Long>();
+		String[] fileNames = walDir.list();
+		if( fileNames != null )
+		{
+			for( String fileName : fileNames )
+			{
+				if( fileName.startsWith(LOG_FILE_PREFIX) && fileName.endsWith(LOG_FILE_SUFFIX) )
+				{
+					try {
+						generations.add(Long.valueOf(fileName.substring(LOG_FILE_PREFIX.length(), fileName.length()-LOG_FILE_SUFFIX.length())));
+					} catch (NumberFormatException nfe) {
+						// Not a log file of this store
+					}
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+	
+	private FileChannel openLog(long logGeneration) throws IOException {
+		return new FileOutputStream(getLogFile(logGeneration), true).getChannel();
+	}
+	
+	/**
+	 * Apply events of a log file. Reading stops at the first incomplete or
+	 * corrupted event, which could be written partially on a crash.
+	 */
+	private void replayLog(File logFile, Map<String, Map<String, QueueInfo>> queueInfos) throws IOException {
+		long logSize = logFile.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536));
+		try {
+			CRC32 checksum = new CRC32();
+			byte[] event = new byte[256];
+			long position = 0;
+			while( position < logSize )
+			{
+				int eventLength = in.readInt();
+				if( eventLength <= 0 || logSize < position + eventLength + 8 )
+					break;
+				if( event.length < eventLength )
+					event = new byte[eventLength];
+				in.readFully(event, 0, eventLength);
+				checksum.reset();
+				checksum.update(event, 0, eventLength);
+				if( in.readInt() != (int)checksum.getValue() )
+					break;
+				applyEvent(new DataInputStream(new ByteArrayInputStream(event, 0, eventLength)), queueInfos);
+				position += eventLength + 8;
+			}
+			if( position < logSize )
+				AspirinInternal.getLogger().warn("WalQueueStore.replayLog(): Log file has an incomplete event at position "+position+", rest of file is skipped. File="+logFile.getAbsolutePath());
+		} catch (EOFException eofe) {
+			AspirinInternal.getLogger().warn("WalQueueStore.replayLog(): Log file has an incomplete event at the end. File="+logFile.getAbsolutePath());
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void applyEvent(DataInput in, Map<String, Map<String, QueueInfo>> queueInfos) throws IOException {
+		byte eventType = in.readByte();
+		switch (eventType)
+		{
+		case EVENT_ADD :
+			String mailid = readString(in);
+			long expiry = in.readLong();
+			int recipientCount = in.readInt();
+			for( int i = 0; i < recipientCount; i++ )
+			{
+				QueueInfo qi = new QueueInfo();
+				qi.setMailid(mailid);
+				qi.setRecipient(readString(in));
+				qi.setExpiry(expiry);
+				putQueueInfo(queueInfos, qi);
+			}
+			break;
+		case EVENT_CLAIM :
+			int claimCount = in.readInt();
+			for( int i = 0; i < claimCount; i++ )
+			{
+				Map<String, QueueInfo> mailQueueInfos = queueInfos.get(readString(in));
+				QueueInfo qi = ( mailQueueInfos == null ) ? null : mailQueueInfos.get(readString(in));
+				if( qi != null )
+					qi.restoreState(DeliveryState.IN_PROGRESS);
+			}
+			break;
+		case EVENT_RESULT :
+			QueueInfo resultQi = readQueueInfo(in);
+			Map<String, QueueInfo> mailQueueInfos = queueInfos.get(resultQi.getMailid());
+			if( mailQueueInfos != null && mailQueueInfos.containsKey(resultQi.getRecipient()) )
+				mailQueueInfos.put(resultQi.getRecipient(), resultQi);
+			break;
+		case EVENT_REMOVE :
+			queueInfos.remove(readString(in));
+			break;
+		case EVENT_REMOVE_RECIPIENT :
+			String recipient = readString(in);
+			for( Map<String, QueueInfo> recipientQueueInfos : queueInfos.values() )
+				recipientQueueInfos.remove(recipient);
+			break;
+		default:
+			throw new IOException("Unknown event type: "+eventType);
+		}
+	}
+	
+	private static void putQueueInfo(Map<String, Map<String, QueueInfo>> queueInfos, QueueInfo qi) {
+		Map<String, QueueInfo> mailQueueInfos = queueInfos.get(qi.getMailid());
+		if( mailQueueInfos == null )
+		{
+			mailQueueInfos = new LinkedHashMap<String, QueueInfo>();
+			queueInfos.put(qi.getMailid(), mailQueueInfos);
+		}
+		mailQueueInfos.put(qi.getRecipient(), qi);
+	}
+	
+	/**
+	 * @return Generation of the snapshot, which is the first log generation
+	 * not contained by the snapshot, or 0 if there is no snapshot.
+	 */
+	private long readSnapshot(Map<String, Map<String, QueueInfo>> queueInfos) throws IOException {
+		File snapshotFile = new File(walDir, SNAPSHOT_FILE_NAME);
+		if( !snapshotFile.exists() )
+			return 0;
+		CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 65536), new CRC32());
+		DataInputStream in = new DataInputStream(checkedIn);
+		try {
+			if( in.readInt() != SNAPSHOT_MAGIC )
+				throw new IOException("Invalid snapshot file: "+snapshotFile.getAbsolutePath());
+			long snapshotGeneration = in.readLong();
+			int itemCount = in.readInt();
+			for( int i = 0; i < itemCount; i++ )
+				putQueueInfo(queueInfos, readQueueInfo(in));
+			long checksum = checkedIn.getChecksum().getValue();
+			if( in.readLong() != checksum )
+				throw new IOException("Corrupted snapshot file: "+snapshotFile.getAbsolutePath());
+			return snapshotGeneration;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Write the snapshot to a temporary file and replace the previous
+	 * snapshot with it. Logs of earlier generations are deleted after it.
+	 *
+	 * @return Size of the snapshot file.
+	 */
+	private long writeSnapshot(long snapshotGeneration, List<QueueInfo> qiList) throws IOException {
+		File tempFile = new File(walDir, SNAPSHOT_FILE_NAME+".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut, 65536), new CRC32());
+			DataOutputStream out = new DataOutputStream(checkedOut);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(snapshotGeneration);
+			out.writeInt(qiList.size());
+			for( QueueInfo qi : qiList )
+				writeQueueInfo(out, qi);
+			out.writeLong(checkedOut.getChecksum().getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		File snapshotFile = new File(walDir, SNAPSHOT_FILE_NAME);
+		if( !tempFile.renameTo(snapshotFile) )
+		{
+			// Rename does not replace existing files on some platforms
+			snapshotFile.delete();
+			if( !tempFile.renameTo(snapshotFile) )
+				throw new IOException("Snapshot file could not be replaced: "+snapshotFile.getAbsolutePath());
+		}
+		for( Long logGeneration : listLogGenerations() )
+		{
+			if( logGeneration < snapshotGeneration )
+				getLogFile(logGeneration).delete();
+		}
+		return snapshotFile.length();
+	}
+	
+	private static void writeQueueInfo(DataOutput out, QueueInfo qi) throws IOException {
+		writeString(out, qi.getMailid());
+		writeString(out, qi.getRecipient());
+		writeString(out, qi.getResultInfo());
+		out.writeLong(qi.getAttempt());
+		out.writeInt(qi.getAttemptCount());
+		out.writeLong(qi.getExpiry());
+		out.writeByte(qi.getState().getStateId());
+	}
+	
+	private static QueueInfo readQueueInfo(DataInput in) throws IOException {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(readString(in));
+		qi.setRecipient(readString(in));
+		qi.setResultInfo(readString(in));
+		qi.setAttempt(in.readLong());
+		qi.setAttemptCount(in.readInt());
+		qi.setExpiry(in.readLong());
+		int stateId = in.readByte();
+		for( DeliveryState state : DeliveryState.values() )
+		{
+			if( state.getStateId() == stateId )
+				qi.restoreState(state);
+		}
+		return qi;
+	}
+	
+	/**
+	 * Strings are written as UTF-8 bytes with their length, because
+	 * writeUTF() could not write result infos longer than 64KB.
+	 */
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if( value == null )
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if( length < 0 )
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * This thread writes the pending events to the log file and syncs it.
+	 * It syncs immediately, if an added mail is waiting for it, otherwise
+	 * in every sync interval. This thread compacts the log too, so log files
+	 * are used only by this thread.
+	 */
+	private class LogWriter extends Thread {
+		
+		private FileChannel logChannel;
+		private long logSize = 0;
+		private long snapshotSize;
+		
+		LogWriter(FileChannel logChannel, long snapshotSize) {
+			super("WalQueueStore-LogWriter");
+			this.logChannel = logChannel;
+			this.snapshotSize = snapshotSize;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			boolean running = true;
+			while( running )
+			{
+				byte[] events;
+				long seq;
+				List<QueueInfo> snapshot = null;
+				long snapshotGeneration = 0;
+				synchronized (walLock) {
+					if( !closed && !syncRequested )
+					{
+						try {
+							walLock.wait(syncInterval);
+						} catch (InterruptedException ie) {
+							// Pending events are written anyway
+						}
+					}
+					syncRequested = false;
+					running = !closed;
+					events = pendingBuffer.toByteArray();
+					pendingBuffer.reset();
+					seq = appendedSeq;
+					if( running && Math.max(COMPACTION_LOG_SIZE_MIN, 2 * snapshotSize) < logSize )
+					{
+						snapshot = copyQueueInfos();
+						snapshotGeneration = ++generation;
+					}
+				}
+				try {
+					if( 0 < events.length )
+					{
+						ByteBuffer eventBuffer = ByteBuffer.wrap(events);
+						while( eventBuffer.hasRemaining() )
+							logChannel.write(eventBuffer);
+						logChannel.force(false);
+						logSize += events.length;
+					}
+					synchronized (walLock) {
+						syncedSeq = seq;
+						walLock.notifyAll();
+					}
+					if( snapshot != null )
+					{
+						/*
+						 * Events after the snapshot copy are pending for the
+						 * log of the new generation. If the snapshot could
+						 * not be finished, then the previous snapshot and
+						 * both logs are replayed on startup.
+						 */
+						logChannel.close();
+						logChannel = openLog(snapshotGeneration);
+						logSize = 0;
+						snapshotSize = writeSnapshot(snapshotGeneration, snapshot);
+						AspirinInternal.getLogger().debug("WalQueueStore: Log compacted. Items: "+snapshot.size());
+					}
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("WalQueueStore: Log could not be written, changes are not persisted anymore.", ioe);
+					synchronized (walLock) {
+						failure = ioe;
+						pendingBuffer.reset();
+						walLock.notifyAll();
+					}
+					running = false;
+				}
+			}
+			try {
+				logChannel.close();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("WalQueueStore: Log could not be closed.", ioe);
+			}
+		}
+	
+	}
+
+}
@@ -0,0 +1,72 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+
+/**
+ * <p>Test of marking campaigns and storing their merge variables.</p>
+ *
+ */
+public class CampaignTest {
+	
+	@Test
+	public void storedMessagesAreMarked() throws Exception {
+		Session session = Session.getDefaultInstance(System.getProperties());
+		String mergeMailid = Campaign.createMergeMailId("mail1");
+		Assert.assertFalse(mergeMailid.equals(Campaign.createMergeMailId("mail1")));
+		Campaign campaign = new Campaign("mail1", mergeMailid, new HashMap<String, Map<String, String>>());
+		MimeMessage mergeMessage = campaign.createMergeMessage(session);
+		Assert.assertEquals(mergeMailid, mergeMessage.getHeader(Aspirin.HEADER_MAIL_ID, null));
+		Assert.assertEquals("mail1", Campaign.getCampaignMailId(mergeMessage));
+		Assert.assertNull(Campaign.getMergeMailId(mergeMessage));
+		
+		MimeMessage template = new MimeMessage(session);
+		template.setHeader(Aspirin.HEADER_MAIL_ID, "mail1.campaign");
+		Assert.assertNull(Campaign.getMergeMailId(template));
+		template.setHeader(Campaign.HEADER_MERGE_MAIL_ID, mergeMailid);
+		Assert.assertEquals(mergeMailid, Campaign.getMergeMailId(template));
+	}
+	
+	@Test
+	public void campaignIsFoundByMergeMailId() throws Exception {
+		Assert.assertEquals("mail1.merge.x", Campaign.getCampaignMailId(Campaign.createMergeMailId("mail1.merge.x")));
+		Assert.assertNull(Campaign.getCampaignMailId("mail1"));
+	}
+	
+	@Test
+	public void variablesAreParsedAsTheyWereFormatted() throws Exception {
+		Map<String, Map<String, String>> variables = new LinkedHashMap<String, Map<String, String>>();
+		Map<String, String> janeVariables = new HashMap<String, String>();
+		janeVariables.put("name", "Jäne Doe");
+		janeVariables.put("note", "a=b\tc\r\nd%20");
+		janeVariables.put("empty", "");
+		variables.put("jane@example.com", janeVariables);
+		variables.put("john@example.com", Collections.<String, String>emptyMap());
+		String text = Campaign.formatVariables(variables);
+		Assert.assertEquals(2, text.split("\n").length);
+		Assert.assertEquals(variables, Campaign.parseVariables(text));
+	}
+	
+	@Test
+	public void nullVariablesAreNotStored() throws Exception {
+		Map<String, Map<String, String>> variables = new LinkedHashMap<String, Map<String, String>>();
+		Map<String, String> janeVariables = new HashMap<String, String>();
+		janeVariables.put("name", "Jane");
+		janeVariables.put("title", null);
+		variables.put("jane@example.com", janeVariables);
+		variables.put("john@example.com", null);
+		Map<String, Map<String, String>> parsedVariables = Campaign.parseVariables(Campaign.formatVariables(variables));
+		Assert.assertEquals(Collections.singletonMap("name", "Jane"), parsedVariables.get("jane@example.com"));
+		Assert.assertTrue(parsedVariables.get("john@example.com").isEmpty());
+	}
+
+}
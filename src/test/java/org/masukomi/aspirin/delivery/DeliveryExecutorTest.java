@@ -0,0 +1,147 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of delivery slots and limits of the delivery executor.</p>
+ *
+ */
+public class DeliveryExecutorTest {
+	
+	private DeliveryExecutor executor;
+	private CountDownLatch finish = new CountDownLatch(1);
+	
+	@After
+	public void tearDown() throws Exception {
+		finish.countDown();
+		if( executor != null )
+		{
+			executor.shutdown();
+			executor.awaitTermination(5000);
+		}
+	}
+	
+	@Test
+	public void fullExecutorBlocksUntilADeliveryIsFinished() throws Exception {
+		executor = new DeliveryExecutor(2, 0);
+		CountDownLatch started = new CountDownLatch(2);
+		executor.execute(new BlockingTask(started));
+		executor.execute(new BlockingTask(started));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(2, executor.getActiveCount());
+		
+		CountDownLatch thirdStarted = new CountDownLatch(1);
+		Thread submitter = submit(new BlockingTask(thirdStarted));
+		Assert.assertFalse(thirdStarted.await(200, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(submitter.isAlive());
+		
+		finish.countDown();
+		Assert.assertTrue(thirdStarted.await(5, TimeUnit.SECONDS));
+		submitter.join(5000);
+		Assert.assertFalse(submitter.isAlive());
+	}
+	
+	@Test
+	public void limitsAreChangedWhileRunning() throws Exception {
+		executor = new DeliveryExecutor(1, 0);
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute(new BlockingTask(started));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		// A new slot is free for the waiting delivery
+		CountDownLatch secondStarted = new CountDownLatch(1);
+		Thread submitter = submit(new BlockingTask(secondStarted));
+		Assert.assertFalse(secondStarted.await(200, TimeUnit.MILLISECONDS));
+		executor.configure(2, 0);
+		Assert.assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+		submitter.join(5000);
+		Assert.assertEquals(2, executor.getActiveCount());
+		
+		// Running deliveries are finished, then only one slot is left
+		executor.configure(1, 0);
+		finish.countDown();
+		finish = new CountDownLatch(1);
+		Assert.assertEquals(1, executor.awaitCapacity());
+		CountDownLatch thirdStarted = new CountDownLatch(1);
+		executor.execute(new BlockingTask(thirdStarted));
+		Assert.assertTrue(thirdStarted.await(5, TimeUnit.SECONDS));
+		CountDownLatch fourthStarted = new CountDownLatch(1);
+		submitter = submit(new BlockingTask(fourthStarted));
+		Assert.assertFalse(fourthStarted.await(200, TimeUnit.MILLISECONDS));
+		finish.countDown();
+		Assert.assertTrue(fourthStarted.await(5, TimeUnit.SECONDS));
+		submitter.join(5000);
+	}
+	
+	@Test
+	public void virtualThreadsAreUsedOnlyIfTheJvmSupportsThem() throws Exception {
+		executor = DeliveryExecutor.newVirtualThreadExecutor();
+		if( !isVirtualThreadSupported() )
+		{
+			Assert.assertNull(executor);
+			return;
+		}
+		Assert.assertTrue(executor.isVirtual());
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute(new BlockingTask(started));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, executor.getActiveCount());
+	}
+	
+	/**
+	 * @return True if the JVM could create virtual threads, from Java 21.
+	 */
+	static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Execute the task in a new thread, because it could block.
+	 */
+	private Thread submit(final Runnable task) {
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(task);
+				} catch (InterruptedException ie) {
+					// Test is finished
+				}
+			}
+		};
+		submitter.start();
+		return submitter;
+	}
+	
+	/**
+	 * Delivery which runs until the current finish latch is released.
+	 */
+	private class BlockingTask implements Runnable {
+		private final CountDownLatch started;
+		private final CountDownLatch finished;
+		BlockingTask(CountDownLatch started) {
+			this.started = started;
+			this.finished = finish;
+		}
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				finished.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+import org.masukomi.aspirin.store.mail.BatchMailStore;
+import org.masukomi.aspirin.store.mail.MailStore;
+import org.masukomi.aspirin.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.store.queue.QueueInfo;
+import org.masukomi.aspirin.store.queue.QueueStore;
+import org.masukomi.aspirin.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Test of adding mails to the delivery manager.</p>
+ *
+ */
+public class DeliveryManagerTest {
+	
+	private MailStore previousMailStore;
+	private QueueStore previousQueueStore;
+	private FailingMailStore mailStore;
+	private ClaimRecordingQueueStore queueStore;
+	private DeliveryManager manager;
+	
+	@Before
+	public void setUp() {
+		previousMailStore = AspirinInternal.getConfiguration().getMailStore();
+		previousQueueStore = AspirinInternal.getConfiguration().getQueueStore();
+		mailStore = new FailingMailStore();
+		AspirinInternal.getConfiguration().setMailStore(mailStore);
+		queueStore = new ClaimRecordingQueueStore();
+		AspirinInternal.getConfiguration().setQueueStore(queueStore);
+		manager = new DeliveryManager();
+	}
+	
+	@After
+	public void tearDown() {
+		AspirinInternal.getConfiguration().removeListener(manager);
+		manager.shutdown();
+		AspirinInternal.getConfiguration().setMailStore(previousMailStore);
+		AspirinInternal.getConfiguration().setQueueStore(previousQueueStore);
+	}
+	
+	@Test
+	public void unstoredMessagesFailInPerItemMode() throws Exception {
+		mailStore.failingMailids.add("mail1");
+		List<MailFuture> futures = manager.addAll(messages("mail0", "mail1", "mail2"), false);
+		Assert.assertEquals("mail0", futures.get(0).get(0, TimeUnit.SECONDS));
+		Assert.assertEquals("mail2", futures.get(2).get(0, TimeUnit.SECONDS));
+		try {
+			futures.get(1).get(0, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException ee) {
+			Assert.assertTrue(ee.getCause() instanceof MessagingException);
+		}
+		Assert.assertTrue(futures.get(1).getDelivery().isDone());
+		Assert.assertEquals(set("mail0", "mail2"), new HashSet<String>(mailStore.getMailIds()));
+	}
+	
+	@Test
+	public void unstoredMessageFailsTheBatchInAllOrNothingMode() throws Exception {
+		mailStore.failingMailids.add("mail1");
+		try {
+			manager.addAll(messages("mail0", "mail1", "mail2"), true);
+			Assert.fail();
+		} catch (MessagingException me) {
+			// Expected
+		}
+		Assert.assertTrue(mailStore.getMailIds().isEmpty());
+		
+		mailStore.failingMailids.clear();
+		List<MailFuture> futures = manager.addAll(messages("mail0", "mail1"), true);
+		Assert.assertEquals("mail0", futures.get(0).get(0, TimeUnit.SECONDS));
+		Assert.assertEquals("mail1", futures.get(1).get(0, TimeUnit.SECONDS));
+		Assert.assertEquals(set("mail0", "mail1"), new HashSet<String>(mailStore.getMailIds()));
+	}
+	
+	@Test
+	public void addedMailIsDispatchedWithoutIdleWait() throws Exception {
+		manager.start();
+		// The queue is empty, so the dispatcher waits for the idle timeout
+		Thread.sleep(200);
+		manager.add(new IdentifiedMimeMessage("mail0"));
+		QueueInfo qi = queueStore.claimedItems.poll(10, TimeUnit.SECONDS);
+		Assert.assertNotNull(qi);
+		Assert.assertEquals("mail0", qi.getMailid());
+		Assert.assertEquals("a@example.com", qi.getRecipient());
+	}
+	
+	@Test
+	public void virtualThreadModeFallsBackToThreadPool() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryThreadsVirtual(true);
+		try {
+			Assert.assertEquals(DeliveryExecutorTest.isVirtualThreadSupported(), manager.getDeliveryExecutor().isVirtual());
+		} finally {
+			AspirinInternal.getConfiguration().setDeliveryThreadsVirtual(false);
+		}
+		Assert.assertFalse(manager.getDeliveryExecutor().isVirtual());
+	}
+	
+	private List<MimeMessage> messages(String... mailids) {
+		List<MimeMessage> messages = new ArrayList<MimeMessage>();
+		for( String mailid : mailids )
+			messages.add(new IdentifiedMimeMessage(mailid));
+		return messages;
+	}
+	
+	private Set<String> set(String... values) {
+		Set<String> valueSet = new HashSet<String>();
+		for( String value : values )
+			valueSet.add(value);
+		return valueSet;
+	}
+	
+	/**
+	 * Message with a mail ID header and one recipient, without other 
+	 * content.
+	 */
+	private static class IdentifiedMimeMessage extends MimeMessage {
+		private final String mailid;
+		IdentifiedMimeMessage(String mailid) {
+			super(Session.getDefaultInstance(System.getProperties()));
+			this.mailid = mailid;
+		}
+		@Override
+		public String getHeader(String name, String delimiter) throws MessagingException {
+			if( Aspirin.HEADER_MAIL_ID.equals(name) )
+				return mailid;
+			if( "To".equals(name) )
+				return "a@example.com";
+			return null;
+		}
+	}
+	
+	/**
+	 * Queue store, which records and removes claimed items instead of giving 
+	 * them to the dispatcher.
+	 */
+	private static class ClaimRecordingQueueStore extends SimpleQueueStore {
+		final BlockingQueue<QueueInfo> claimedItems = new LinkedBlockingQueue<QueueInfo>();
+		@Override
+		public List<QueueInfo> nextBatch(int max) {
+			for( QueueInfo qi : super.nextBatch(max) )
+			{
+				claimedItems.add(qi);
+				remove(qi.getMailid());
+			}
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * Batch mail store, which fails to store the given mail IDs.
+	 */
+	private static class FailingMailStore extends SimpleMailStore implements BatchMailStore {
+		final Set<String> failingMailids = new HashSet<String>();
+		@Override
+		public void setAll(Map<String, MimeMessage> messages) throws MessagingException {
+			for( String mailid : messages.keySet() )
+			{
+				if( failingMailids.contains(mailid) )
+					throw new MessagingException("Message could not be stored. mailid="+mailid);
+			}
+			for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+				set(message.getKey(), message.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.store.queue.QueueInfo;
+
+/**
+ * <p>Test of round-robin scheduling and limits of recipient domains.</p>
+ *
+ */
+public class DomainSchedulerTest {
+	
+	@Test
+	public void domainsAreServedInRoundRobinOrder() {
+		DomainScheduler scheduler = new DomainScheduler(10, 0);
+		List<List<QueueInfo>> qiGroups = new ArrayList<List<QueueInfo>>();
+		for( int i = 0; i < 5; i++ )
+			qiGroups.add(group("mail"+i, "user@hot.example.com"));
+		qiGroups.add(group("mail5", "user@other.example.com"));
+		scheduler.addAll(qiGroups);
+		Assert.assertEquals(6, scheduler.getPendingCount());
+		long now = System.currentTimeMillis();
+		Assert.assertEquals("hot.example.com", DomainScheduler.getDomain(scheduler.next(now).get(0)));
+		Assert.assertEquals("other.example.com", DomainScheduler.getDomain(scheduler.next(now).get(0)));
+		Assert.assertEquals("hot.example.com", DomainScheduler.getDomain(scheduler.next(now).get(0)));
+		Assert.assertEquals(3, scheduler.getPendingCount());
+	}
+	
+	@Test
+	public void concurrencyIsLimitedByDomain() {
+		DomainScheduler scheduler = new DomainScheduler(1, 0);
+		List<List<QueueInfo>> qiGroups = new ArrayList<List<QueueInfo>>();
+		qiGroups.add(group("mail0", "user@example.com"));
+		qiGroups.add(group("mail1", "user@EXAMPLE.com"));
+		scheduler.addAll(qiGroups);
+		long now = System.currentTimeMillis();
+		List<QueueInfo> first = scheduler.next(now);
+		Assert.assertNotNull(first);
+		Assert.assertNull(scheduler.next(now));
+		scheduler.complete(first);
+		Assert.assertNotNull(scheduler.next(now));
+	}
+	
+	@Test
+	public void rateIsLimitedByDomain() {
+		DomainScheduler scheduler = new DomainScheduler(10, 2);
+		List<List<QueueInfo>> qiGroups = new ArrayList<List<QueueInfo>>();
+		for( int i = 0; i < 3; i++ )
+			qiGroups.add(group("mail"+i, "user@example.com"));
+		scheduler.addAll(qiGroups);
+		long now = System.currentTimeMillis();
+		Assert.assertNotNull(scheduler.next(now));
+		Assert.assertNotNull(scheduler.next(now));
+		Assert.assertNull(scheduler.next(now));
+		Assert.assertEquals(500, scheduler.getNextReadyDelay(now));
+		Assert.assertNotNull(scheduler.next(now+500));
+	}
+	
+	@Test
+	public void limitedDomainCouldNotFillTheScheduler() {
+		DomainScheduler scheduler = new DomainScheduler(1, 0, 2);
+		List<List<QueueInfo>> qiGroups = new ArrayList<List<QueueInfo>>();
+		for( int i = 0; i < 5; i++ )
+			qiGroups.add(group("mail"+i, "user@slow.example.com"));
+		qiGroups.add(group("mail5", "user@free.example.com"));
+		List<QueueInfo> rejectedList = scheduler.addAll(qiGroups);
+		Assert.assertEquals(3, rejectedList.size());
+		Assert.assertEquals("slow.example.com", DomainScheduler.getDomain(rejectedList.get(0)));
+		Assert.assertEquals(3, scheduler.getPendingCount());
+		long now = System.currentTimeMillis();
+		Assert.assertEquals("slow.example.com", DomainScheduler.getDomain(scheduler.next(now).get(0)));
+		// The slow domain is busy, the free domain is served
+		Assert.assertEquals("free.example.com", DomainScheduler.getDomain(scheduler.next(now).get(0)));
+		Assert.assertNull(scheduler.next(now));
+		// The slow domain accepts items again up to its limit
+		Assert.assertTrue(scheduler.addAll(Collections.singletonList(group("mail6", "user@slow.example.com"))).isEmpty());
+		Assert.assertEquals(1, scheduler.addAll(Collections.singletonList(group("mail7", "user@slow.example.com"))).size());
+	}
+	
+	private List<QueueInfo> group(String mailid, String recipient) {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(mailid);
+		qi.setRecipient(recipient);
+		return Collections.singletonList(qi);
+	}
+	
+}
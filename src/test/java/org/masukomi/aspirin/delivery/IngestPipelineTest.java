@@ -0,0 +1,97 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of storing batches of asynchronously added mails.</p>
+ *
+ */
+public class IngestPipelineTest {
+	
+	private IngestPipeline pipeline;
+	
+	@After
+	public void tearDown() {
+		if( pipeline != null )
+			pipeline.shutdown();
+	}
+	
+	@Test
+	public void failedBatchFailsOnlyUnfinishedItems() throws Exception {
+		final MessagingException itemFailure = new MessagingException("Recipients could not be queued.");
+		final RuntimeException batchFailure = new IllegalStateException("Store is broken.");
+		pipeline = new IngestPipeline(null, 10, 10) {
+			@Override
+			void storeBatch(List<IngestItem> batch) throws MessagingException {
+				batch.get(0).future.enqueued();
+				batch.get(1).future.failed(itemFailure);
+				throw batchFailure;
+			}
+		};
+		List<IngestPipeline.IngestItem> items = new ArrayList<IngestPipeline.IngestItem>();
+		for( int i = 0; i < 3; i++ )
+		{
+			IngestPipeline.IngestItem item = item("mail"+i);
+			items.add(item);
+			Assert.assertTrue(pipeline.submit(item));
+		}
+		pipeline.start();
+		Assert.assertEquals("mail0", items.get(0).future.get(5, TimeUnit.SECONDS));
+		Assert.assertSame(itemFailure, failure(items.get(1).future));
+		Assert.assertSame(batchFailure, failure(items.get(2).future));
+	}
+	
+	@Test
+	public void waitingItemsAreStoredOnShutdown() throws Exception {
+		final List<String> storedMailids = Collections.synchronizedList(new ArrayList<String>());
+		pipeline = new IngestPipeline(null, 10, 2) {
+			@Override
+			void storeBatch(List<IngestItem> batch) throws MessagingException {
+				for( IngestItem item : batch )
+				{
+					storedMailids.add(item.mailid);
+					item.future.enqueued();
+				}
+			}
+		};
+		List<IngestPipeline.IngestItem> items = new ArrayList<IngestPipeline.IngestItem>();
+		for( int i = 0; i < 5; i++ )
+		{
+			IngestPipeline.IngestItem item = item("mail"+i);
+			items.add(item);
+			Assert.assertTrue(pipeline.submit(item));
+		}
+		pipeline.start();
+		pipeline.shutdown();
+		Assert.assertEquals(5, storedMailids.size());
+		for( IngestPipeline.IngestItem item : items )
+			Assert.assertEquals(item.mailid, item.future.get(0, TimeUnit.SECONDS));
+		Assert.assertFalse(pipeline.submit(item("mail5")));
+	}
+	
+	private IngestPipeline.IngestItem item(String mailid) throws Exception {
+		return new IngestPipeline.IngestItem(null, mailid, Long.MAX_VALUE, Collections.singletonList(new InternetAddress("a@example.com")));
+	}
+	
+	private Throwable failure(MailFuture future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException ee) {
+			return ee.getCause();
+		}
+		Assert.fail();
+		return null;
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.delivery.TransportPool.PooledTransport;
+import org.masukomi.aspirin.store.queue.DeliveryState;
+import org.masukomi.aspirin.store.queue.QueueInfo;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * <p>Test of per recipient results of grouped deliveries.</p>
+ *
+ */
+public class SendMessageTest {
+	
+	private static final String SENT_RESPONSE = "250 2.0.0 Ok: queued";
+	
+	private Session session;
+	private URLName targetServer = new URLName("smtp://mx.example.com");
+	private FailingTransport transport;
+	private SendMessage sendMessage;
+	
+	@Before
+	public void setUp() {
+		session = Session.getInstance(new Properties());
+		transport = new FailingTransport(session, targetServer);
+		sendMessage = new SendMessage(new TransportPool() {
+			@Override
+			public PooledTransport borrow(Session session, URLName targetServer) throws MessagingException {
+				return new PooledTransport(targetServer.toString(), transport);
+			}
+		});
+	}
+	
+	@Test
+	public void rejectedRecipientsGetTheirOwnResults() throws Exception {
+		SMTPAddressFailedException permanentFailure = new SMTPAddressFailedException(new InternetAddress("b@example.com"), "RCPT TO:<b@example.com>", 550, "550 5.1.1 No such user");
+		SMTPAddressFailedException temporaryFailure = new SMTPAddressFailedException(new InternetAddress("c@example.com"), "RCPT TO:<c@example.com>", 451, "451 4.3.0 Try again later");
+		permanentFailure.setNextException(temporaryFailure);
+		transport.failure = new SendFailedException("Invalid Addresses", permanentFailure,
+				addresses("a@example.com"), new Address[0], addresses("b@example.com", "c@example.com"));
+		
+		List<QueueInfo> qiList = queueInfos("a@example.com", "B@example.com", "c@example.com");
+		DeliveryContext dCtx = handle(qiList);
+		Assert.assertEquals(DeliveryState.SENT, dCtx.getContextVariable("newstate"));
+		assertResult(qiList.get(0), DeliveryState.IN_PROGRESS, SENT_RESPONSE);
+		assertResult(qiList.get(1), DeliveryState.FAILED, "550 5.1.1 No such user");
+		assertResult(qiList.get(2), DeliveryState.QUEUED, "451 4.3.0 Try again later");
+	}
+	
+	@Test
+	public void acceptedRecipientsAreQueuedIfDataFailed() throws Exception {
+		SMTPAddressFailedException permanentFailure = new SMTPAddressFailedException(new InternetAddress("b@example.com"), "RCPT TO:<b@example.com>", 550, "550 5.1.1 No such user");
+		transport.failure = new SendFailedException("Invalid Addresses", permanentFailure,
+				new Address[0], addresses("a@example.com"), addresses("b@example.com"));
+		
+		List<QueueInfo> qiList = queueInfos("a@example.com", "b@example.com");
+		handle(qiList);
+		assertResult(qiList.get(0), DeliveryState.QUEUED, "Invalid Addresses");
+		assertResult(qiList.get(1), DeliveryState.FAILED, "550 5.1.1 No such user");
+	}
+	
+	@Test
+	public void failureWithoutRecipientResultsFailsTheDelivery() throws Exception {
+		transport.failure = new SendFailedException("554 5.7.1 Message rejected", null,
+				new Address[0], addresses("a@example.com", "b@example.com"), new Address[0]);
+		try {
+			handle(queueInfos("a@example.com", "b@example.com"));
+			Assert.fail();
+		} catch (DeliveryException de) {
+			// Expected, states are set by the delivery task
+		}
+	}
+	
+	private DeliveryContext handle(List<QueueInfo> qiList) throws Exception {
+		DeliveryContext dCtx = new DeliveryContext();
+		dCtx.setQueueInfos(qiList);
+		dCtx.setMessage(new MimeMessage(session));
+		dCtx.addContextVariable("targetservers", Collections.singletonList(targetServer));
+		sendMessage.handle(dCtx);
+		return dCtx;
+	}
+	
+	private void assertResult(QueueInfo qi, DeliveryState state, String resultInfo) {
+		Assert.assertTrue(qi.getRecipient(), qi.hasState(state));
+		Assert.assertEquals(qi.getRecipient(), resultInfo, qi.getResultInfo());
+	}
+	
+	private List<QueueInfo> queueInfos(String... recipients) {
+		List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+		for( String recipient : recipients )
+		{
+			QueueInfo qi = new QueueInfo();
+			qi.setMailid("mail1");
+			qi.setRecipient(recipient);
+			qi.setState(DeliveryState.IN_PROGRESS);
+			qiList.add(qi);
+		}
+		return qiList;
+	}
+	
+	private Address[] addresses(String... addresses) throws Exception {
+		Address[] addressArray = new Address[addresses.length];
+		for( int i = 0; i < addresses.length; i++ )
+			addressArray[i] = new InternetAddress(addresses[i]);
+		return addressArray;
+	}
+	
+	/**
+	 * SMTP transport which fails every message with the given exception,
+	 * like a server rejecting some recipients.
+	 */
+	private static class FailingTransport extends SMTPTransport {
+		
+		private SendFailedException failure;
+		
+		FailingTransport(Session session, URLName urlname) {
+			super(session, urlname);
+		}
+		
+		@Override
+		public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+			throw failure;
+		}
+		
+		@Override
+		public synchronized String getLastServerResponse() {
+			return SENT_RESPONSE;
+		}
+		
+		@Override
+		public synchronized void close() throws MessagingException {
+		}
+	}
+
+}
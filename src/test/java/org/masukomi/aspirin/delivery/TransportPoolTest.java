@@ -0,0 +1,106 @@
+package org.masukomi.aspirin.delivery;
+
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+import org.masukomi.aspirin.delivery.TransportPool.PooledTransport;
+
+/**
+ * <p>Test of SMTP connection reuse in TransportPool.</p>
+ *
+ */
+public class TransportPoolTest {
+	
+	private static int connectCount = 0;
+	private Session session;
+	private URLName targetServer = new URLName("smtp://mx.example.com");
+	
+	@Before
+	public void setUp() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryConnectionIdleTimeout(30000);
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(100);
+		session = Session.getInstance(new Properties());
+		session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", CountingTransport.class.getName(), "test", null));
+		connectCount = 0;
+	}
+	
+	@Test
+	public void connectionIsReused() throws Exception {
+		TransportPool pool = new TransportPool();
+		PooledTransport first = pool.borrow(session, targetServer);
+		pool.release(first, true);
+		PooledTransport second = pool.borrow(session, targetServer);
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, connectCount);
+		pool.close();
+	}
+	
+	@Test
+	public void failedConnectionIsNotReused() throws Exception {
+		TransportPool pool = new TransportPool();
+		PooledTransport first = pool.borrow(session, targetServer);
+		pool.release(first, false);
+		Assert.assertFalse(first.getTransport().isConnected());
+		PooledTransport second = pool.borrow(session, targetServer);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(2, connectCount);
+		pool.close();
+	}
+	
+	@Test
+	public void connectionIsClosedAfterMaxMessages() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(2);
+		TransportPool pool = new TransportPool();
+		PooledTransport pTransport = pool.borrow(session, targetServer);
+		pool.release(pTransport, true);
+		Assert.assertSame(pTransport, pool.borrow(session, targetServer));
+		pool.release(pTransport, true);
+		Assert.assertFalse(pTransport.getTransport().isConnected());
+		Assert.assertNotSame(pTransport, pool.borrow(session, targetServer));
+		pool.close();
+	}
+	
+	@Test
+	public void idleConnectionIsEvicted() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryConnectionIdleTimeout(0);
+		TransportPool pool = new TransportPool();
+		PooledTransport pTransport = pool.borrow(session, targetServer);
+		pool.release(pTransport, true);
+		pool.evictIdle();
+		Assert.assertFalse(pTransport.getTransport().isConnected());
+		Assert.assertNotSame(pTransport, pool.borrow(session, targetServer));
+		pool.close();
+	}
+	
+	/**
+	 * Transport which only counts its connections.
+	 */
+	public static class CountingTransport extends Transport {
+		
+		public CountingTransport(Session session, URLName urlname) {
+			super(session, urlname);
+		}
+		
+		@Override
+		protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+			connectCount++;
+			return true;
+		}
+		
+		@Override
+		public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.masukomi.aspirin.dns;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.mail.URLName;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of MX record caching.</p>
+ *
+ */
+public class DnsCacheTest {
+	
+	private DnsCache cache;
+	
+	@Before
+	public void setUp() {
+		AspirinInternal.getConfiguration().setDnsCacheSize(10000);
+		AspirinInternal.getConfiguration().setDnsCacheNegativeTtl(60000);
+		cache = new DnsCache();
+	}
+	
+	@Test
+	public void cachedEntryIsServedUntilTtl() throws Exception {
+		cache.put("example.com", servers("mx.example.com"), 60000);
+		Assert.assertEquals(1, cache.get("example.com").size());
+		Assert.assertEquals(1, cache.getHitCount());
+		cache.put("example.org", servers("mx.example.org"), 1);
+		Thread.sleep(5);
+		Assert.assertNull(cache.get("example.org"));
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+	
+	@Test
+	public void emptyResultIsCachedWithNegativeTtl() throws Exception {
+		cache.put("nomx.example.com", Collections.<URLName>emptyList(), 3600000);
+		Assert.assertTrue(cache.get("nomx.example.com").isEmpty());
+		AspirinInternal.getConfiguration().setDnsCacheNegativeTtl(0);
+		cache.put("nomx.example.org", Collections.<URLName>emptyList(), 3600000);
+		Assert.assertNull(cache.get("nomx.example.org"));
+	}
+	
+	@Test
+	public void fullCacheEvictsEarliestExpiringEntries() throws Exception {
+		AspirinInternal.getConfiguration().setDnsCacheSize(10);
+		for( int i = 0; i < 10; i++ )
+			cache.put("domain"+i+".com", servers("mx.domain"+i+".com"), 60000+i);
+		cache.put("domain10.com", servers("mx.domain10.com"), 120000);
+		Assert.assertEquals(10, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertNull(cache.get("domain0.com"));
+		Assert.assertNotNull(cache.get("domain10.com"));
+	}
+	
+	@Test
+	public void cacheOfResolverIsRegistered() throws Exception {
+		DnsCache resolverCache = DnsResolver.getCache();
+		ObjectName name = new ObjectName(DnsCache.MBEAN_NAME);
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		resolverCache.put("registered.example.com", servers("mx.registered.example.com"), 60000);
+		Assert.assertEquals(resolverCache.getSize(), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Size"));
+		resolverCache.clear();
+	}
+	
+	private Collection<URLName> servers(String... hosts) {
+		Collection<URLName> servers = new ArrayList<URLName>();
+		for( String host : hosts )
+			servers.add(new URLName(DnsResolver.SMTP_PROTOCOL_PREFIX+host));
+		return servers;
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of size bounded message caching.</p>
+ *
+ */
+public class CachingMailStoreTest {
+	
+	private SizedMailStore delegate;
+	private CachingMailStore store;
+	
+	@Before
+	public void setUp() {
+		delegate = new SizedMailStore();
+		store = new CachingMailStore(delegate, 1000);
+	}
+	
+	@Test
+	public void cachedMessageIsServedWithoutUnderlyingStore() throws Exception {
+		delegate.put("mail1", 100);
+		MimeMessage msg = store.get("mail1");
+		Assert.assertSame(msg, store.get("mail1"));
+		Assert.assertEquals(1, delegate.getCount);
+		Assert.assertEquals(1, store.getHitCount());
+		Assert.assertEquals(1, store.getMissCount());
+		Assert.assertEquals(100, store.getUsedBytes());
+		store.remove("mail1");
+		Assert.assertNull(store.get("mail1"));
+		Assert.assertEquals(0, store.getUsedBytes());
+	}
+	
+	@Test
+	public void leastRecentlyUsedMessagesAreEvictedBySize() throws Exception {
+		delegate.put("mail1", 400);
+		delegate.put("mail2", 400);
+		delegate.put("mail3", 400);
+		delegate.put("large", 2000);
+		store.get("mail1");
+		store.get("mail2");
+		store.get("mail1");
+		store.get("mail3");
+		Assert.assertEquals(2, store.getSize());
+		Assert.assertEquals(1, store.getEvictionCount());
+		store.get("mail1");
+		Assert.assertEquals(2, store.getHitCount());
+		store.get("large");
+		Assert.assertEquals(2, store.getSize());
+		Assert.assertEquals(800, store.getUsedBytes());
+		store.setMaxBytes(500);
+		Assert.assertEquals(1, store.getSize());
+		Assert.assertEquals(400, store.getUsedBytes());
+	}
+	
+	@Test
+	public void messageRemovedWhileLoadingIsNotCached() throws Exception {
+		delegate = new SizedMailStore() {
+			@Override
+			public MimeMessage get(String mailid) {
+				MimeMessage msg = super.get(mailid);
+				// Remove the message after it is read from the underlying store
+				store.remove(mailid);
+				return msg;
+			}
+		};
+		store = new CachingMailStore(delegate, 1000);
+		delegate.put("mail1", 100);
+		Assert.assertNotNull(store.get("mail1"));
+		Assert.assertEquals(0, store.getSize());
+		Assert.assertEquals(0, store.getUsedBytes());
+	}
+	
+	@Test
+	public void statisticsAreRegisteredUntilClose() throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(CachingMailStore.MBEAN_NAME);
+		store.init();
+		try {
+			delegate.put("mail1", 100);
+			store.get("mail1");
+			Assert.assertEquals(Long.valueOf(1), mbeanServer.getAttribute(name, "MissCount"));
+		} finally {
+			store.close();
+		}
+		Assert.assertFalse(mbeanServer.isRegistered(name));
+	}
+	
+	private static class SizedMailStore implements MailStore, RawMailStore {
+		private Map<String, Integer> sizes = new HashMap<String, Integer>();
+		private int getCount = 0;
+		
+		void put(String mailid, int size) {
+			sizes.put(mailid, size);
+		}
+		
+		@Override
+		public MimeMessage get(String mailid) {
+			getCount++;
+			return sizes.containsKey(mailid) ? new MimeMessage((Session)null) : null;
+		}
+		
+		@Override
+		public ByteBuffer getRawMessage(String mailid) {
+			return sizes.containsKey(mailid) ? ByteBuffer.allocate(sizes.get(mailid)) : null;
+		}
+		
+		@Override
+		public List<String> getMailIds() {
+			return new ArrayList<String>(sizes.keySet());
+		}
+		
+		@Override
+		public void init() {
+		}
+		
+		@Override
+		public void remove(String mailid) {
+			sizes.remove(mailid);
+		}
+		
+		@Override
+		public void set(String mailid, MimeMessage msg) {
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of sharing bodies in DeduplicatingMailStore.</p>
+ *
+ */
+public class DeduplicatingMailStoreTest {
+	
+	private static final String BODY = "Same body for everyone.\r\n";
+	
+	private File rootDir;
+	private DeduplicatingMailStore store;
+	
+	@Before
+	public void setUp() throws Exception {
+		rootDir = File.createTempFile("aspirin-dedup", "");
+		rootDir.delete();
+		store = open();
+	}
+	
+	@After
+	public void tearDown() {
+		for( File dir : rootDir.listFiles() )
+		{
+			for( File file : dir.listFiles() )
+				file.delete();
+			dir.delete();
+		}
+		rootDir.delete();
+	}
+	
+	@Test
+	public void mailsWithSameBodyShareIt() throws Exception {
+		put("mail1", "To: a@example.com\r\n\r\n"+BODY);
+		put("mail2", "To: b@example.com\r\n\r\n"+BODY);
+		put("mail3", "To: c@example.com\r\n\r\nOther body.\r\n");
+		Assert.assertEquals(2, countBodies());
+		Assert.assertEquals("To: b@example.com\r\n\r\n"+BODY, content("mail2"));
+		
+		store.remove("mail1");
+		store.remove("mail3");
+		Assert.assertEquals(1, countBodies());
+		Assert.assertEquals("To: b@example.com\r\n\r\n"+BODY, content("mail2"));
+		store.remove("mail2");
+		Assert.assertEquals(0, countBodies());
+	}
+	
+	@Test
+	public void reopenedStoreCountsMailsOfBodies() throws Exception {
+		put("mail1", "To: a@example.com\r\n\r\n"+BODY);
+		put("mail2", "To: b@example.com\r\n\r\n"+BODY);
+		put("mail2", "To: b@example.com\r\n\r\nChanged body.\r\n");
+		
+		store = open();
+		Assert.assertEquals(2, store.getMailIds().size());
+		Assert.assertEquals("To: a@example.com\r\n\r\n"+BODY, content("mail1"));
+		store.remove("mail1");
+		Assert.assertEquals(1, countBodies());
+		Assert.assertEquals("To: b@example.com\r\n\r\nChanged body.\r\n", content("mail2"));
+	}
+	
+	@Test
+	public void mailIdsAreEncodedInFileNames() throws Exception {
+		put("mail/1@example.com", "To: a@example.com\r\n\r\n"+BODY);
+		Assert.assertEquals("To: a@example.com\r\n\r\n"+BODY, content("mail/1@example.com"));
+		
+		store = open();
+		Assert.assertEquals("mail/1@example.com", store.getMailIds().get(0));
+		Assert.assertEquals("To: a@example.com\r\n\r\n"+BODY, content("mail/1@example.com"));
+		store.remove("mail/1@example.com");
+		Assert.assertEquals(0, new File(rootDir, "headers").listFiles().length);
+	}
+	
+	private DeduplicatingMailStore open() throws Exception {
+		DeduplicatingMailStore deduplicatingMailStore = new DeduplicatingMailStore(rootDir.getAbsolutePath());
+		deduplicatingMailStore.init();
+		return deduplicatingMailStore;
+	}
+	
+	private void put(String mailid, String rawMessage) throws Exception {
+		byte[] rawMessageBytes = rawMessage.getBytes("US-ASCII");
+		store.put(mailid, rawMessageBytes, rawMessageBytes.length);
+	}
+	
+	private String content(String mailid) throws Exception {
+		ByteBuffer rawMessage = store.getRawMessage(mailid);
+		byte[] rawMessageBytes = new byte[rawMessage.remaining()];
+		rawMessage.get(rawMessageBytes);
+		return new String(rawMessageBytes, "US-ASCII");
+	}
+	
+	private int countBodies() {
+		return new File(rootDir, "bodies").listFiles().length;
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of writing FileMailStore files and loading them from manifest and
+ * from directories.</p>
+ *
+ */
+public class FileMailStoreTest {
+	
+	private File storeDir;
+	private FileMailStore store;
+	
+	@Before
+	public void setUp() throws Exception {
+		storeDir = File.createTempFile("aspirin-file", "");
+		storeDir.delete();
+		new File(storeDir, "0").mkdirs();
+		new File(storeDir, "1").mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		if( store != null )
+			store.close();
+		delete(storeDir);
+	}
+	
+	@Test
+	public void mailIdsAreDecodedFromFileNames() throws Exception {
+		write("0/mail%2F1%40example.com.msg", "first");
+		write("1/mail2.msg", "second");
+		write("1/mail3.msg.tmp", "unfinished");
+		store = open();
+		Assert.assertEquals(2, store.getMailIds().size());
+		Assert.assertEquals("first", content("mail/1@example.com"));
+		Assert.assertEquals("second", content("mail2"));
+		Assert.assertFalse(new File(storeDir, "1/mail3.msg.tmp").exists());
+	}
+	
+	@Test
+	public void onlyLargeMessagesAreMapped() throws Exception {
+		write("0/mail1.msg", "small");
+		write("1/mail2.msg", "larger");
+		store = open();
+		store.setMappedMessageSize(6);
+		Assert.assertFalse(store.getRawMessage("mail1").isDirect());
+		Assert.assertTrue(store.getRawMessage("mail2").isDirect());
+		Assert.assertTrue(store.getRawMessage("mail1").isReadOnly());
+		Assert.assertEquals("small", content("mail1"));
+		Assert.assertEquals("larger", content("mail2"));
+		store.remove("mail1");
+		Assert.assertNull(store.getRawMessage("mail1"));
+		Assert.assertFalse(new File(storeDir, "0/mail1.msg").exists());
+	}
+	
+	@Test
+	public void manifestIsUsedInsteadOfDirectories() throws Exception {
+		write("0/mail1.msg", "first");
+		store = open();
+		store.close();
+		Assert.assertTrue(new File(storeDir, "manifest").exists());
+		// Files not in manifest are not listed
+		write("1/mail2.msg", "second");
+		store = open();
+		Assert.assertEquals(1, store.getMailIds().size());
+		Assert.assertEquals("first", content("mail1"));
+		Assert.assertFalse(new File(storeDir, "manifest").exists());
+		store.close();
+		
+		write("manifest", "aspirin-filemailstore-manifest 1\n0/mail1.msg\n");
+		store = open();
+		Assert.assertEquals(2, store.getMailIds().size());
+	}
+	
+	@Test
+	public void concurrentWritesAreSyncedInBatches() throws Exception {
+		store = new FileMailStore();
+		store.setRootDir(storeDir);
+		// Writers wait for the same batch
+		store.setSyncInterval(50);
+		store.init();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> writers = new ArrayList<Thread>();
+		for( int i = 0; i < 4; i++ )
+		{
+			final int writer = i;
+			writers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						Map<String, MimeMessage> messages = new LinkedHashMap<String, MimeMessage>();
+						messages.put("mail"+writer+"a", new ContentMimeMessage("first of "+writer));
+						messages.put("mail"+writer+"b", new ContentMimeMessage("second of "+writer));
+						store.setAll(messages);
+					} catch (Throwable t) {
+						synchronized (failures) {
+							failures.add(t);
+						}
+					}
+				}
+			});
+		}
+		for( Thread writerThread : writers )
+			writerThread.start();
+		for( Thread writerThread : writers )
+			writerThread.join();
+		Assert.assertTrue(failures.isEmpty());
+		store.set("mail/5@example.com", new ContentMimeMessage("single"));
+		
+		Assert.assertEquals(9, store.getMailIds().size());
+		Assert.assertEquals("second of 2", content("mail2b"));
+		Assert.assertEquals("single", content("mail/5@example.com"));
+		Assert.assertEquals(0, countFiles(storeDir, ".tmp"));
+		Assert.assertEquals(9, countFiles(storeDir, ".msg"));
+		store.close();
+		
+		store = open();
+		Assert.assertEquals(9, store.getMailIds().size());
+		Assert.assertEquals("first of 0", content("mail0a"));
+	}
+	
+	@Test
+	public void writerDoesNotWaitForTheSyncInterval() throws Exception {
+		store = new FileMailStore();
+		store.setRootDir(storeDir);
+		store.setSyncInterval(60000);
+		store.init();
+		long start = System.currentTimeMillis();
+		for( int i = 0; i < 10; i++ )
+			store.set("mail"+i, new ContentMimeMessage("content of "+i));
+		Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+		Assert.assertEquals("content of 9", content("mail9"));
+	}
+	
+	private FileMailStore open() {
+		FileMailStore fileMailStore = new FileMailStore();
+		fileMailStore.setRootDir(storeDir);
+		fileMailStore.init();
+		return fileMailStore;
+	}
+	
+	private void write(String path, String content) throws Exception {
+		FileOutputStream out = new FileOutputStream(new File(storeDir, path));
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+	
+	private String content(String mailid) throws Exception {
+		ByteBuffer content = store.getRawMessage(mailid);
+		byte[] contentBytes = new byte[content.remaining()];
+		content.get(contentBytes);
+		return new String(contentBytes, "UTF-8");
+	}
+	
+	private static int countFiles(File dir, String suffix) {
+		int count = 0;
+		for( File file : dir.listFiles() )
+		{
+			if( file.isDirectory() )
+				count += countFiles(file, suffix);
+			else if( file.getName().endsWith(suffix) )
+				count++;
+		}
+		return count;
+	}
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if( files != null )
+		{
+			for( File child : files )
+				delete(child);
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Message which writes its content as it is.
+	 */
+	private static class ContentMimeMessage extends MimeMessage {
+		private final String content;
+		
+		ContentMimeMessage(String content) {
+			super((Session)null);
+			this.content = content;
+		}
+		
+		@Override
+		public void writeTo(OutputStream os) throws IOException, MessagingException {
+			os.write(content.getBytes("UTF-8"));
+		}
+	}
+
+}
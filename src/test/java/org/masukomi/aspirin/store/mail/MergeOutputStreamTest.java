@@ -0,0 +1,56 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of replacing merge tokens in written content.</p>
+ *
+ */
+public class MergeOutputStreamTest {
+	
+	private Map<String, byte[]> values;
+	
+	@Before
+	public void setUp() throws Exception {
+		values = new HashMap<String, byte[]>();
+		values.put("name", "Jane".getBytes("UTF-8"));
+		values.put("recipient", "jane@example.com".getBytes("UTF-8"));
+	}
+	
+	@Test
+	public void knownTokensAreReplaced() throws Exception {
+		Assert.assertEquals("Dear Jane, <jane@example.com>", merge("Dear ${name}, <${recipient}>"));
+	}
+	
+	@Test
+	public void unknownTokensAndDollarsAreKept() throws Exception {
+		Assert.assertEquals("${unknown} costs $5 or ${ name}", merge("${unknown} costs $5 or ${ name}"));
+	}
+	
+	@Test
+	public void tokensSplitBetweenWritesAreReplaced() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MergeOutputStream mergeOut = new MergeOutputStream(out, values);
+		mergeOut.write("Hello $".getBytes("US-ASCII"));
+		mergeOut.write("{na".getBytes("US-ASCII"));
+		mergeOut.write("me}! ${na".getBytes("US-ASCII"));
+		Assert.assertEquals("Hello Jane! ", out.toString("US-ASCII"));
+		mergeOut.finish();
+		Assert.assertEquals("Hello Jane! ${na", out.toString("US-ASCII"));
+	}
+	
+	private String merge(String content) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MergeOutputStream mergeOut = new MergeOutputStream(out, values);
+		mergeOut.write(content.getBytes("US-ASCII"));
+		mergeOut.finish();
+		return out.toString("US-ASCII");
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of rendering messages of campaign recipients.</p>
+ *
+ */
+public class MergedMimeMessageTest {
+	
+	private Session session;
+	private RawMimeMessage template;
+	
+	@Before
+	public void setUp() throws Exception {
+		session = Session.getDefaultInstance(System.getProperties());
+		template = new RawMimeMessage(session, ByteBuffer.wrap((
+				"Subject: Hello ${name}\r\n"+
+				"X-Note: ${note}\r\n"+
+				"To: all@example.com\r\n"+
+				"Cc: copy@example.com\r\n"+
+				"Content-Type: text/plain; charset=UTF-8\r\n"+
+				"Content-Transfer-Encoding: 8bit\r\n"+
+				"\r\n"+
+				"Dear ${name}, ${recipient}\r\n").getBytes("US-ASCII")));
+	}
+	
+	@Test
+	public void headersAreMergedWithEncodedValues() throws Exception {
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("name", "Jäne");
+		variables.put("note", "ASCII");
+		MergedMimeMessage message = new MergedMimeMessage(session, template, "jane@example.com", variables);
+		String subject = message.getHeader("Subject", null);
+		Assert.assertTrue(subject.startsWith("Hello =?UTF-8?"));
+		Assert.assertEquals("Hello Jäne", MimeUtility.decodeText(subject));
+		Assert.assertEquals("ASCII", message.getHeader("X-Note", null));
+		Assert.assertEquals("jane@example.com", message.getHeader("To", null));
+		Assert.assertNull(message.getHeader("Cc"));
+		Assert.assertEquals("Dear Jäne, jane@example.com\r\n", body(message));
+	}
+	
+	@Test
+	public void lineBreaksOfValuesCouldNotAddHeaders() throws Exception {
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("name", "Jane\r\nBcc: other@example.com");
+		variables.put("note", "first\nsecond\r\n\r\nbody");
+		MergedMimeMessage message = new MergedMimeMessage(session, template, "jane@example.com", variables);
+		Assert.assertNull(message.getHeader("Bcc"));
+		Assert.assertEquals("Hello Jane Bcc: other@example.com", message.getHeader("Subject", null));
+		Assert.assertEquals("first second body", message.getHeader("X-Note", null));
+	}
+	
+	@Test
+	public void nullValuesAreNotDefined() throws Exception {
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("name", null);
+		MergedMimeMessage message = new MergedMimeMessage(session, template, "jane@example.com", variables);
+		Assert.assertEquals("Hello ${name}", message.getHeader("Subject", null));
+	}
+	
+	@Test
+	public void preparedTemplatesAreMergedInTextParts() throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart textPart = new MimeBodyPart();
+		textPart.setText("Kedves ${name}, árvíztűrő tükörfúrógép.", "ISO-8859-2");
+		multipart.addBodyPart(textPart);
+		MimeBodyPart dataPart = new MimeBodyPart();
+		dataPart.setDataHandler(new DataHandler(new ByteArrayDataSource("${name}\r\n".getBytes("US-ASCII"), "application/octet-stream")));
+		dataPart.setHeader("Content-Transfer-Encoding", "7bit");
+		multipart.addBodyPart(dataPart);
+		message.setContent(multipart);
+		message.saveChanges();
+		MergedMimeMessage.prepareTemplate(message);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		RawMimeMessage preparedTemplate = new RawMimeMessage(session, ByteBuffer.wrap(out.toByteArray()));
+		
+		MergedMimeMessage merged = new MergedMimeMessage(session, preparedTemplate, "jane@example.com", Collections.singletonMap("name", "Jäne"));
+		out = new ByteArrayOutputStream();
+		merged.writeTo(out);
+		MimeMessage sent = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+		Multipart sentMultipart = (Multipart)sent.getContent();
+		BodyPart sentText = sentMultipart.getBodyPart(0);
+		Assert.assertEquals("8bit", sentText.getHeader("Content-Transfer-Encoding")[0]);
+		Assert.assertEquals("Kedves Jäne, árvíztűrő tükörfúrógép.", sentText.getContent());
+		BodyPart sentData = sentMultipart.getBodyPart(1);
+		Assert.assertEquals("base64", sentData.getHeader("Content-Transfer-Encoding")[0]);
+		Assert.assertEquals("${name}\r\n", new String(read(sentData.getInputStream()), "US-ASCII"));
+	}
+	
+	private byte[] read(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int count;
+		while( (count = in.read(buffer)) != -1 )
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+	
+	private String body(MergedMimeMessage message) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		String content = out.toString("UTF-8");
+		return content.substring(content.indexOf("\r\n\r\n") + 4);
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of reading delivery informations from headers of messages.</p>
+ *
+ */
+public class MessageHeadersTest {
+	
+	@Test
+	public void headersAreReadUntilTheBody() throws Exception {
+		Date expiry = new Date(System.currentTimeMillis()+60000);
+		InputStream in = new ByteArrayInputStream((
+				Aspirin.HEADER_MAIL_ID+": mail1\r\n"+
+				Aspirin.HEADER_EXPIRY+": "+AspirinInternal.expiryFormat.format(expiry)+"\r\n"+
+				"To: a@example.com,\r\n b@example.com\r\n"+
+				"Cc: c@example.com\r\n"+
+				"\r\n"+
+				"To: body@example.com\r\n").getBytes("US-ASCII"));
+		MessageHeaders headers = MessageHeaders.read(in);
+		Assert.assertEquals("mail1", headers.getMailID());
+		Assert.assertEquals(expiry.getTime(), headers.getExpiry());
+		Assert.assertEquals(addresses("a@example.com", "b@example.com", "c@example.com"), addresses(headers.getRecipients()));
+		// The body is not read
+		Assert.assertEquals('T', in.read());
+	}
+	
+	@Test
+	public void headersOfMessageAreUsed() throws Exception {
+		MimeMessage message = new MimeMessage(Session.getDefaultInstance(System.getProperties()));
+		message.setHeader(Aspirin.HEADER_MAIL_ID, "mail2");
+		message.addHeader("To", "a@example.com");
+		message.addHeader("To", "b@example.com");
+		message.setHeader("Bcc", "c@example.com");
+		MessageHeaders headers = MessageHeaders.of(message);
+		Assert.assertEquals("mail2", headers.getMailID());
+		Assert.assertEquals(addresses("a@example.com", "b@example.com", "c@example.com"), addresses(headers.getRecipients()));
+	}
+	
+	@Test
+	public void missingHeadersAreNotFound() throws Exception {
+		MessageHeaders headers = MessageHeaders.read(new ByteArrayInputStream("Subject: test\r\n\r\n".getBytes("US-ASCII")));
+		Assert.assertNull(headers.getMailID());
+		Assert.assertTrue(headers.getRecipients().isEmpty());
+		Assert.assertTrue(System.currentTimeMillis() < headers.getExpiry());
+	}
+	
+	private List<String> addresses(String... addresses) {
+		List<String> addressList = new ArrayList<String>();
+		for( String address : addresses )
+			addressList.add(address);
+		return addressList;
+	}
+	
+	private List<String> addresses(Collection<InternetAddress> recipients) {
+		List<String> addressList = new ArrayList<String>();
+		for( InternetAddress recipient : recipients )
+			addressList.add(recipient.getAddress());
+		return addressList;
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.masukomi.aspirin.store.mail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of segments, tombstones and compaction in SegmentMailStore.</p>
+ *
+ */
+public class SegmentMailStoreTest {
+	
+	private File storeDir;
+	private SegmentMailStore store;
+	
+	@Before
+	public void setUp() throws Exception {
+		storeDir = File.createTempFile("aspirin-segment", "");
+		storeDir.delete();
+		store = open();
+	}
+	
+	@After
+	public void tearDown() {
+		store.close();
+		for( File file : storeDir.listFiles() )
+			file.delete();
+		storeDir.delete();
+	}
+	
+	@Test
+	public void reopenedStoreHasLastVersionOfMails() throws Exception {
+		put("mail1", "first");
+		put("mail2", "second");
+		put("mail1", "overwritten");
+		store.remove("mail2");
+		Assert.assertEquals("overwritten", content("mail1"));
+		store.close();
+		
+		store = open();
+		Assert.assertEquals("overwritten", content("mail1"));
+		Assert.assertNull(store.getRawMessage("mail2"));
+		Assert.assertEquals(1, store.getMailIds().size());
+	}
+	
+	@Test
+	public void compactedSegmentsAreDeletedWithoutLosingMails() throws Exception {
+		for( int i = 0; i < 200; i++ )
+			put("mail"+i, "content of mail "+i);
+		int segmentCount = countSegments();
+		Assert.assertTrue(2 < segmentCount);
+		for( int i = 0; i < 200; i++ )
+		{
+			if( i % 10 != 0 )
+				store.remove("mail"+i);
+		}
+		ByteBuffer readBeforeCompaction = store.getRawMessage("mail0");
+		store.compact();
+		Assert.assertTrue(countSegments() < segmentCount);
+		Assert.assertEquals("content of mail 0", toString(readBeforeCompaction));
+		store.close();
+		
+		store = open();
+		Assert.assertEquals(20, store.getMailIds().size());
+		for( int i = 0; i < 200; i += 10 )
+			Assert.assertEquals("content of mail "+i, content("mail"+i));
+	}
+	
+	@Test
+	public void incompleteRecordAtEndOfSegmentIsSkipped() throws Exception {
+		put("mail1", "first");
+		store.close();
+		RandomAccessFile segmentFile = new RandomAccessFile(new File(storeDir, "segment-0.dat"), "rw");
+		String firstRecord = "mail1first";
+		segmentFile.seek(8 + 3 + firstRecord.length());
+		segmentFile.write(new byte[] {0, 0, 0, 0, 1, 0, 5, 'm'});
+		segmentFile.close();
+		
+		store = open();
+		Assert.assertEquals("first", content("mail1"));
+		put("mail2", "second");
+		store.close();
+		
+		store = open();
+		Assert.assertEquals("first", content("mail1"));
+		Assert.assertEquals("second", content("mail2"));
+	}
+	
+	private SegmentMailStore open() throws Exception {
+		SegmentMailStore segmentMailStore = new SegmentMailStore(storeDir.getAbsolutePath(), 1024);
+		segmentMailStore.init();
+		return segmentMailStore;
+	}
+	
+	private void put(String mailid, String content) throws Exception {
+		byte[] contentBytes = content.getBytes("UTF-8");
+		store.put(mailid, contentBytes, contentBytes.length);
+	}
+	
+	private String content(String mailid) throws Exception {
+		return toString(store.getRawMessage(mailid));
+	}
+	
+	private String toString(ByteBuffer content) throws Exception {
+		byte[] contentBytes = new byte[content.remaining()];
+		content.get(contentBytes);
+		return new String(contentBytes, "UTF-8");
+	}
+	
+	private int countSegments() {
+		return storeDir.listFiles().length;
+	}
+
+}
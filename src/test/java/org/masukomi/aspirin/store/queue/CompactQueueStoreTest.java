@@ -0,0 +1,129 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of slots and scheduling in CompactQueueStore.</p>
+ *
+ */
+public class CompactQueueStoreTest {
+	
+	private CompactQueueStore store;
+	
+	@Before
+	public void setUp() {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(3);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		store = new CompactQueueStore();
+	}
+	
+	@Test
+	public void everyItemIsClaimedOnce() throws Exception {
+		for( int i = 0; i < 3000; i++ )
+			store.add("mail"+i, -1L, recipients("a"+i+"@example.com", "b@example.com"));
+		Thread.sleep(2);
+		Set<String> claimed = new HashSet<String>();
+		List<QueueInfo> qiList;
+		while( !(qiList = store.nextBatch(100)).isEmpty() )
+		{
+			for( QueueInfo qi : qiList )
+			{
+				Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+				Assert.assertTrue(claimed.add(qi.getMailid()+"/"+qi.getRecipient()));
+			}
+		}
+		Assert.assertEquals(6000, claimed.size());
+		Assert.assertEquals(3000, store.size());
+	}
+	
+	@Test
+	public void resultsAreStoredUntilMailIsCompleted() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		Thread.sleep(2);
+		List<QueueInfo> qiList = store.nextBatch(10);
+		Assert.assertEquals(2, qiList.size());
+		QueueInfo sentQi = qiList.get(0);
+		sentQi.setState(DeliveryState.SENT);
+		store.setSendingResult(sentQi);
+		QueueInfo requeuedQi = qiList.get(1);
+		requeuedQi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(requeuedQi);
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", sentQi.getRecipient()));
+		Assert.assertFalse(store.isCompleted("mail1"));
+		Assert.assertEquals(1, requeuedQi.getAttemptCount());
+		Thread.sleep(2);
+		
+		QueueInfo qi = store.next();
+		Assert.assertEquals(requeuedQi.getRecipient(), qi.getRecipient());
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertTrue(store.isCompleted("mail1"));
+		Assert.assertTrue(store.clean().isEmpty());
+		Assert.assertEquals(0, store.size());
+	}
+	
+	@Test
+	public void postponedItemKeepsItsAttemptCount() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		Thread.sleep(2);
+		long now = System.currentTimeMillis();
+		for( QueueInfo qi : store.nextBatch(10) )
+			store.postpone(qi, "a@example.com".equals(qi.getRecipient()) ? now + 60000 : now - 1);
+		List<QueueInfo> qiList = store.nextBatch(10);
+		Assert.assertEquals(1, qiList.size());
+		Assert.assertEquals("b@example.com", qiList.get(0).getRecipient());
+		Assert.assertEquals(0, qiList.get(0).getAttemptCount());
+		Assert.assertEquals(now + 60000, store.getNextAttempt("mail1", "a@example.com"));
+		Assert.assertFalse(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void exhaustedItemFailsWithoutDelivery() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(1);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		Thread.sleep(2);
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(qi);
+		Thread.sleep(2);
+		Assert.assertNull(store.next());
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertTrue(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void removedItemsAreNotDeliveredAndSlotsAreReused() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, recipients("a@example.com", "c@example.com"));
+		store.remove("mail1");
+		store.removeRecipient("a@example.com");
+		store.add("mail3", -1L, recipients("d@example.com"));
+		Thread.sleep(2);
+		Set<String> claimed = new HashSet<String>();
+		QueueInfo qi;
+		while( (qi = store.next()) != null )
+			claimed.add(qi.getMailid()+"/"+qi.getRecipient());
+		Assert.assertEquals(2, claimed.size());
+		Assert.assertTrue(claimed.contains("mail2/c@example.com"));
+		Assert.assertTrue(claimed.contains("mail3/d@example.com"));
+	}
+	
+	private Collection<InternetAddress> recipients(String... addresses) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipients.add(new InternetAddress(address));
+		return recipients;
+	}
+
+}
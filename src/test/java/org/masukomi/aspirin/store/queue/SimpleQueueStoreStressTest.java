@@ -0,0 +1,156 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of SimpleQueueStore used by producer, delivery and cleaner threads
+ * at the same time.</p>
+ *
+ */
+public class SimpleQueueStoreStressTest {
+	
+	private static final int PRODUCERS = 4;
+	private static final int WORKERS = 6;
+	private static final int MAILS_PER_PRODUCER = 500;
+	private static final long TIMEOUT = 60000;
+	
+	private SimpleQueueStore store;
+	private ConcurrentMap<Long, QueueInfo> inProgress = new ConcurrentHashMap<Long, QueueInfo>();
+	private Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+	private AtomicInteger runningProducers = new AtomicInteger(PRODUCERS);
+	private volatile boolean finished = false;
+	
+	@Before
+	public void setUp() {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(3);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		store = new SimpleQueueStore();
+	}
+	
+	@Test
+	public void everyItemIsDeliveredOnceAtATimeAndCleaned() throws Exception {
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int i = 0; i < PRODUCERS; i++ )
+			threads.add(new Producer(i));
+		for( int i = 0; i < WORKERS; i++ )
+			threads.add(new Worker(i));
+		Thread cleaner = new Cleaner();
+		threads.add(cleaner);
+		for( Thread thread : threads )
+			thread.start();
+		
+		cleaner.join(TIMEOUT);
+		finished = true;
+		for( Thread thread : threads )
+			thread.join(TIMEOUT);
+		
+		if( !errors.isEmpty() )
+			throw new AssertionError(errors.peek());
+		Assert.assertFalse("Store is not emptied in time.", cleaner.isAlive());
+		Assert.assertEquals(0, store.size());
+		Assert.assertEquals(-1, store.getEarliestAttempt());
+		Assert.assertTrue(store.nextBatch(10).isEmpty());
+		Assert.assertTrue(inProgress.isEmpty());
+	}
+	
+	private Collection<InternetAddress> recipients(String... addresses) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipients.add(new InternetAddress(address));
+		return recipients;
+	}
+	
+	private class Producer extends Thread {
+		private final int producerId;
+		
+		Producer(int producerId) {
+			this.producerId = producerId;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for( int i = 0; i < MAILS_PER_PRODUCER; i++ )
+				{
+					// Recipients are shared by mails of every producer
+					store.add("mail"+producerId+"-"+i, -1L, recipients("a"+(i % 50)+"@example.com", "b"+(i % 7)+"@example"+(i % 3)+".com"));
+					if( producerId == 0 && i == MAILS_PER_PRODUCER / 2 )
+						store.removeRecipient("a0@example.com");
+				}
+			} catch (Throwable t) {
+				errors.add(t);
+			} finally {
+				runningProducers.decrementAndGet();
+			}
+		}
+	}
+	
+	private class Worker extends Thread {
+		private final Random random;
+		
+		Worker(int workerId) {
+			this.random = new Random(workerId);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while( !finished )
+				{
+					List<QueueInfo> qiList = store.nextBatch(20);
+					if( qiList.isEmpty() )
+						Thread.yield();
+					for( QueueInfo qi : qiList )
+					{
+						Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+						Assert.assertTrue(qi.getAttemptCount() < 3);
+						Assert.assertNull("Item is claimed twice: "+qi.getMailid()+"/"+qi.getRecipient(), inProgress.putIfAbsent(qi.getId(), qi));
+					}
+					for( QueueInfo qi : qiList )
+					{
+						int result = random.nextInt(3);
+						qi.setState(( result == 0 ) ? DeliveryState.QUEUED : ( result == 1 ) ? DeliveryState.FAILED : DeliveryState.SENT);
+						inProgress.remove(qi.getId());
+						store.setSendingResult(qi);
+					}
+				}
+			} catch (Throwable t) {
+				errors.add(t);
+			}
+		}
+	}
+	
+	private class Cleaner extends Thread {
+		@Override
+		public void run() {
+			try {
+				while( errors.isEmpty() )
+				{
+					boolean produced = ( runningProducers.get() == 0 );
+					store.clean();
+					if( produced && store.size() == 0 )
+						return;
+					Thread.sleep(1);
+				}
+			} catch (Throwable t) {
+				errors.add(t);
+			}
+		}
+	}
+
+}
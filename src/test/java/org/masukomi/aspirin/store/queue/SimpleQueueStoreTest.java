@@ -0,0 +1,140 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of scheduling in SimpleQueueStore.</p>
+ *
+ */
+public class SimpleQueueStoreTest {
+	
+	private SimpleQueueStore store;
+	
+	@Before
+	public void setUp() {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(3);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(300000);
+		store = new SimpleQueueStore();
+	}
+	
+	@Test
+	public void nextGivesBackEveryDueItemOnce() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, recipients("c@example.com"));
+		int count = 0;
+		QueueInfo qi;
+		while( (qi = store.next()) != null )
+		{
+			Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+			count++;
+		}
+		Assert.assertEquals(3, count);
+		Assert.assertNull(store.next());
+	}
+	
+	@Test
+	public void nextBatchClaimsAtMostMaxItems() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com", "c@example.com"));
+		List<QueueInfo> qiList = store.nextBatch(2);
+		Assert.assertEquals(2, qiList.size());
+		for( QueueInfo qi : qiList )
+			Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+		Assert.assertEquals(1, store.nextBatch(2).size());
+		Assert.assertTrue(store.nextBatch(2).isEmpty());
+	}
+	
+	@Test
+	public void rescheduledItemIsNotDueBeforeDelay() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com"));
+		QueueInfo qi = store.next();
+		Assert.assertNotNull(qi);
+		qi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(qi);
+		Assert.assertNull(store.next());
+		Assert.assertEquals(1, qi.getAttemptCount());
+		Assert.assertTrue(0 < store.getNextAttempt("mail1", "a@example.com"));
+	}
+	
+	@Test
+	public void rescheduledItemIsDueAfterDelay() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(qi);
+		Thread.sleep(5);
+		Assert.assertSame(qi, store.next());
+	}
+	
+	@Test
+	public void postponedItemKeepsItsAttemptCount() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		Thread.sleep(2);
+		long now = System.currentTimeMillis();
+		for( QueueInfo qi : store.nextBatch(10) )
+			store.postpone(qi, "a@example.com".equals(qi.getRecipient()) ? now + 60000 : now - 1);
+		List<QueueInfo> qiList = store.nextBatch(10);
+		Assert.assertEquals(1, qiList.size());
+		Assert.assertEquals("b@example.com", qiList.get(0).getRecipient());
+		Assert.assertEquals(0, qiList.get(0).getAttemptCount());
+		Assert.assertEquals(now + 60000, store.getNextAttempt("mail1", "a@example.com"));
+		Assert.assertFalse(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void exhaustedItemFailsWithoutDelivery() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(1);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(qi);
+		Thread.sleep(5);
+		Assert.assertNull(store.next());
+		Assert.assertTrue(qi.hasState(DeliveryState.FAILED));
+		Assert.assertTrue(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void removedItemIsNotDelivered() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com"));
+		store.add("mail2", -1L, recipients("b@example.com"));
+		store.remove("mail1");
+		QueueInfo qi = store.next();
+		Assert.assertEquals("mail2", qi.getMailid());
+		Assert.assertNull(store.next());
+	}
+	
+	@Test
+	public void itemsOfRecipientShareInternedAddress() throws Exception {
+		store.add("mail1", -1L, recipients("a@Example.com", "b@example.com"));
+		store.add("mail2", -1L, recipients(new String("a@Example.com")));
+		QueueInfo qi1 = store.getQueueInfo("mail1", "a@Example.com");
+		QueueInfo qi2 = store.getQueueInfo("mail2", "a@Example.com");
+		Assert.assertTrue(qi1.getId() != qi2.getId());
+		Assert.assertSame(qi1.getRecipient(), qi2.getRecipient());
+		Assert.assertSame(qi1.getRecipientDomain(), store.getQueueInfo("mail1", "b@example.com").getRecipientDomain());
+		Assert.assertEquals("example.com", qi1.getRecipientDomain());
+		store.remove("mail1");
+		store.removeRecipient("a@Example.com");
+		Assert.assertNull(store.getQueueInfo("mail2", "a@Example.com"));
+		Assert.assertTrue(store.isCompleted("mail2"));
+	}
+	
+	private Collection<InternetAddress> recipients(String... addresses) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipients.add(new InternetAddress(address));
+		return recipients;
+	}
+
+}
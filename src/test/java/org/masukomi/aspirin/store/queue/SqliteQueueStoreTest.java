@@ -0,0 +1,178 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of group commit and savepoints in SqliteQueueStore.</p>
+ *
+ */
+public class SqliteQueueStoreTest {
+	
+	private File dbFile;
+	private SqliteQueueStore store;
+	private Connection reader;
+	
+	@Before
+	public void setUp() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(3);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		dbFile = File.createTempFile("aspirin-sqlite", ".db");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if( reader != null )
+			reader.close();
+		if( store != null )
+			store.close();
+		dbFile.delete();
+		new File(dbFile.getPath()+"-wal").delete();
+		new File(dbFile.getPath()+"-shm").delete();
+	}
+	
+	@Test
+	public void resultIsCommittedBeforeItIsStored() throws Exception {
+		// The commit thread commits first after the interval
+		store = open(2000);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		Assert.assertEquals(DeliveryState.QUEUED.getStateId(), readState("mail1", "a@example.com"));
+		Thread.sleep(2);
+		QueueInfo qi = store.next();
+		// The claim waits for the commit thread
+		Assert.assertEquals(DeliveryState.QUEUED.getStateId(), readState("mail1", "a@example.com"));
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertEquals(DeliveryState.SENT.getStateId(), readState("mail1", "a@example.com"));
+		Assert.assertTrue(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void failedAddKeepsOtherChangesOfTransaction() throws Exception {
+		store = open(1000);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		Thread.sleep(2);
+		Assert.assertNotNull(store.next());
+		List<InternetAddress> invalidRecipients = recipients("b@example.com");
+		invalidRecipients.add(null);
+		try {
+			store.add("mail2", -1L, invalidRecipients);
+			Assert.fail();
+		} catch (MessagingException me) {
+			// Expected, nothing of mail2 is queued
+		}
+		Assert.assertTrue(store.isCompleted("mail2"));
+		Assert.assertEquals(1, store.size());
+		// The claim of mail1 is not rolled back
+		Assert.assertNull(store.next());
+		store.commit();
+		Assert.assertEquals(DeliveryState.IN_PROGRESS.getStateId(), readState("mail1", "a@example.com"));
+	}
+	
+	@Test
+	public void dueItemsAreClaimedInBatches() throws Exception {
+		store = open(0);
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com", "c@example.com"));
+		Thread.sleep(2);
+		List<QueueInfo> qiList = store.nextBatch(2);
+		Assert.assertEquals(2, qiList.size());
+		for( QueueInfo qi : qiList )
+		{
+			Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+			Assert.assertTrue(0 < qi.getId());
+			Assert.assertEquals(DeliveryState.IN_PROGRESS.getStateId(), readState("mail1", qi.getRecipient()));
+		}
+		Assert.assertEquals(1, store.nextBatch(2).size());
+		Assert.assertTrue(store.nextBatch(2).isEmpty());
+	}
+	
+	@Test
+	public void exhaustedItemFailsWithoutDelivery() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(1);
+		store = open(0);
+		store.add("mail1", -1L, recipients("a@example.com"));
+		Thread.sleep(2);
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.QUEUED);
+		store.setSendingResult(qi);
+		Thread.sleep(2);
+		Assert.assertNull(store.next());
+		Assert.assertEquals(DeliveryState.FAILED.getStateId(), readState("mail1", "a@example.com"));
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertTrue(store.isCompleted("mail1"));
+	}
+	
+	@Test
+	public void itemsOfPreviousTablesKeepTheirIds() throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:"+dbFile.getAbsolutePath());
+		Statement stmt = conn.createStatement();
+		stmt.execute("CREATE TABLE queueinfos (mailid VARCHAR(32), recipient TEXT, resultinfo TEXT, attempt BIGINT, attemptcount INT, expiry BIGINT, dstate SMALLINT)");
+		stmt.execute("INSERT INTO queueinfos VALUES ('mail1', 'a@example.com', NULL, 0, 0, -1, "+DeliveryState.QUEUED.getStateId()+")");
+		stmt.execute("INSERT INTO queueinfos VALUES ('mail1', 'b@example.com', NULL, 0, 0, -1, "+DeliveryState.QUEUED.getStateId()+")");
+		stmt.execute("DELETE FROM queueinfos WHERE recipient='a@example.com'");
+		stmt.close();
+		conn.close();
+		
+		store = open(0);
+		QueueInfo qi = store.next();
+		Assert.assertEquals("b@example.com", qi.getRecipient());
+		Assert.assertEquals(2, qi.getId());
+		// Cleaning vacuums the database, but the id is kept
+		store.add("mail2", -1L, recipients("c@example.com"));
+		store.clean();
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertEquals(DeliveryState.SENT.getStateId(), readState("mail1", "b@example.com"));
+		Assert.assertEquals(DeliveryState.QUEUED.getStateId(), readState("mail2", "c@example.com"));
+		Thread.sleep(2);
+		Assert.assertTrue(2 < store.next().getId());
+	}
+	
+	private SqliteQueueStore open(long commitInterval) throws Exception {
+		SqliteQueueStore sqliteStore = new SqliteQueueStore(dbFile.getAbsolutePath(), commitInterval);
+		sqliteStore.init();
+		return sqliteStore;
+	}
+	
+	/**
+	 * Read the committed state of an item through an other connection.
+	 */
+	private int readState(String mailid, String recipient) throws Exception {
+		if( reader == null )
+			reader = DriverManager.getConnection("jdbc:sqlite:"+dbFile.getAbsolutePath());
+		PreparedStatement pStmt = reader.prepareStatement("SELECT dstate FROM queueinfos WHERE mailid=? AND recipient=?");
+		try {
+			pStmt.setString(1, mailid);
+			pStmt.setString(2, recipient);
+			ResultSet rS = pStmt.executeQuery();
+			Assert.assertTrue(rS.next());
+			return rS.getInt("dstate");
+		} finally {
+			pStmt.close();
+		}
+	}
+	
+	private List<InternetAddress> recipients(String... addresses) throws Exception {
+		List<InternetAddress> recipientList = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipientList.add(new InternetAddress(address));
+		return recipientList;
+	}
+
+}
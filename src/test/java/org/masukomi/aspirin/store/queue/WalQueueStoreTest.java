@@ -0,0 +1,135 @@
+package org.masukomi.aspirin.store.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.AspirinInternal;
+
+/**
+ * <p>Test of replaying WalQueueStore after restart.</p>
+ *
+ */
+public class WalQueueStoreTest {
+	
+	private File walDir;
+	private WalQueueStore store;
+	
+	@Before
+	public void setUp() throws Exception {
+		AspirinInternal.getConfiguration().setDeliveryAttemptCount(3);
+		AspirinInternal.getConfiguration().setDeliveryAttemptDelay(0);
+		walDir = File.createTempFile("aspirin-wal", "");
+		walDir.delete();
+		store = open();
+	}
+	
+	@After
+	public void tearDown() {
+		store.close();
+		for( File file : walDir.listFiles() )
+			file.delete();
+		walDir.delete();
+	}
+	
+	@Test
+	public void reopenedStoreHasItemsWithTheirResults() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, recipients("c@example.com"));
+		store.add("mail3", -1L, recipients("d@example.com"));
+		store.remove("mail3");
+		QueueInfo sentQi = store.getQueueInfo("mail1", "a@example.com");
+		sentQi.setState(DeliveryState.SENT);
+		store.setSendingResult(sentQi);
+		store.close();
+		
+		store = open();
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertFalse(store.hasBeenRecipientHandled("mail1", "b@example.com"));
+		Assert.assertEquals(1, store.getQueueInfo("mail1", "a@example.com").getAttemptCount());
+		Assert.assertNull(store.getQueueInfo("mail3", "d@example.com"));
+		Assert.assertEquals(2, store.size());
+	}
+	
+	@Test
+	public void claimedItemsAreQueuedAfterReopen() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com", "b@example.com"));
+		Thread.sleep(2);
+		Assert.assertEquals(2, store.nextBatch(10).size());
+		store.close();
+		
+		store = open();
+		Thread.sleep(2);
+		Assert.assertEquals(2, store.nextBatch(10).size());
+	}
+	
+	@Test
+	public void incompleteEventAtEndOfLogIsSkipped() throws Exception {
+		store.add("mail1", -1L, recipients("a@example.com"));
+		store.close();
+		File[] logFiles = walDir.listFiles();
+		for( File logFile : logFiles )
+		{
+			if( logFile.getName().endsWith(".log") )
+			{
+				FileOutputStream out = new FileOutputStream(logFile, true);
+				out.write(new byte[] {0, 0, 0, 100, 1, 2});
+				out.close();
+			}
+		}
+		
+		store = open();
+		Assert.assertNotNull(store.getQueueInfo("mail1", "a@example.com"));
+		store.add("mail2", -1L, recipients("b@example.com"));
+		store.close();
+		
+		store = open();
+		Assert.assertEquals(2, store.size());
+	}
+	
+	@Test
+	public void itemsAddedTogetherAreReplayed() throws Exception {
+		List<QueueInfo> qiList = new ArrayList<QueueInfo>();
+		qiList.add(queueInfo("mail1", "a@example.com"));
+		qiList.add(queueInfo("mail1", "b@example.com"));
+		qiList.add(queueInfo("mail2", "c@example.com"));
+		store.addAll(qiList);
+		Assert.assertEquals(2, store.size());
+		store.close();
+		
+		store = open();
+		Assert.assertEquals(2, store.size());
+		Assert.assertNotNull(store.getQueueInfo("mail1", "b@example.com"));
+		Assert.assertEquals(1000L, store.getQueueInfo("mail2", "c@example.com").getExpiry());
+	}
+	
+	private WalQueueStore open() throws Exception {
+		WalQueueStore walQueueStore = new WalQueueStore(walDir.getAbsolutePath(), 10);
+		walQueueStore.init();
+		return walQueueStore;
+	}
+	
+	private QueueInfo queueInfo(String mailid, String recipient) {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(mailid);
+		qi.setRecipient(recipient);
+		qi.setExpiry(( "mail2".equals(mailid) ) ? 1000L : -1L);
+		return qi;
+	}
+	
+	private Collection<InternetAddress> recipients(String... addresses) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipients.add(new InternetAddress(address));
+		return recipients;
+	}
+
+}